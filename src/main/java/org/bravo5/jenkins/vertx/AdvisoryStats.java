@@ -0,0 +1,102 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How an advisory handler's verdicts compare with the ones that were
+ * actually used, and how long it took to give them.
+ */
+class AdvisoryStats {
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong agreed = new AtomicLong();
+    private final AtomicLong disagreed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    // {{{ recordSent
+    void recordSent() {
+        sent.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ recordReply
+    /**
+     * @param advice the handler's verdict
+     * @param actual the verdict that was used
+     * @param latencyMillis how long the reply took
+     */
+    void recordReply(final Verdict advice,
+                     final Verdict actual,
+                     final long latencyMillis)
+    {
+        if (advice.isBlocked() == actual.isBlocked()) {
+            agreed.incrementAndGet();
+        } else {
+            disagreed.incrementAndGet();
+        }
+
+        latencyTracker.record(latencyMillis);
+    }
+    // }}}
+
+    // {{{ recordFailure
+    /**
+     * The handler replied with an error.
+     */
+    void recordFailure() {
+        failed.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ recordTimeout
+    /**
+     * The handler never replied.
+     */
+    void recordTimeout() {
+        timedOut.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ recordDropped
+    /**
+     * The handler wasn't asked because too many requests were queued.
+     */
+    void recordDropped() {
+        dropped.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ toJson
+    /**
+     * <pre>
+     * {
+     *     "sent": 1200,
+     *     "agreed": 1150,
+     *     "disagreed": 42,
+     *     "failed": 0,
+     *     "timedOut": 8,
+     *     "dropped": 0,
+     *     "latencyP99Millis": 35
+     * }
+     * </pre>
+     *
+     * Counts are since the handler registered; the latency covers its most
+     * recent replies.
+     */
+    JsonObject toJson() {
+        return new JsonObject()
+            .putNumber("sent", sent.get())
+            .putNumber("agreed", agreed.get())
+            .putNumber("disagreed", disagreed.get())
+            .putNumber("failed", failed.get())
+            .putNumber("timedOut", timedOut.get())
+            .putNumber("dropped", dropped.get())
+            .putNumber("latencyP99Millis", latencyTracker.getP99());
+    }
+    // }}}
+}
@@ -0,0 +1,323 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends Run artifacts to consumers as a sequence of {@link Buffer} chunks.
+ * Each chunk starts with its index as a 4-byte big-endian int, followed by
+ * the data.  Chunks are only sent while the consumer has credits left, and
+ * it grants more by acknowledging what it has received, so a large artifact
+ * can't flood the EventBus.
+ *
+ * Files are read on the scheduler's thread, never on an event loop.
+ */
+class ArtifactStreamer {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final String METRIC_CHUNKS = "artifact.chunks";
+    static final String METRIC_BYTES = "artifact.bytes";
+
+    /** Credits granted when the consumer doesn't ask for any. */
+    static final int DEFAULT_CREDITS = 4;
+
+    /** Most chunks that may be unacknowledged at once. */
+    private static final int MAX_CREDITS = 64;
+
+    /** Each transfer holds a few chunks' worth of memory in flight. */
+    private static final int MAX_TRANSFERS = 64;
+
+    private final EventBus eventBus;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+    private final int chunkBytes;
+    private final long idleMillis;
+
+    /** Transfers keyed by the address chunks are sent to. */
+    private final ConcurrentMap<String,Transfer> transfers = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> expiryFuture;
+
+    // {{{ constructor
+    /**
+     * @param eventBus the EventBus
+     * @param scheduler reads and sends chunks; inline if null
+     * @param clock source of time for idle transfers
+     * @param chunkBytes size of each chunk's data
+     * @param idleMillis how long a transfer waits for an ack before it's
+     *        dropped
+     */
+    ArtifactStreamer(final EventBus eventBus,
+                     final ScheduledExecutorService scheduler,
+                     final Clock clock,
+                     final int chunkBytes,
+                     final long idleMillis)
+    {
+        this.eventBus = eventBus;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.chunkBytes = chunkBytes;
+        this.idleMillis = idleMillis;
+
+        if (scheduler != null) {
+            expiryFuture = scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        expire();
+                    }
+                },
+                idleMillis,
+                idleMillis,
+                TimeUnit.MILLISECONDS
+            );
+        }
+    }
+    // }}}
+
+    // {{{ close
+    void close() {
+        if (expiryFuture != null) {
+            expiryFuture.cancel(false);
+        }
+
+        transfers.clear();
+    }
+    // }}}
+
+    // {{{ start
+    /**
+     * Starts sending an artifact, replacing any transfer to the same address.
+     *
+     * @param address where chunks are sent
+     * @param artifactsDir the Run's artifacts directory
+     * @param path the artifact's path, relative to artifactsDir
+     * @param fromChunk index of the first chunk to send
+     * @param credits number of chunks that may be sent before an ack
+     * @return the artifact's size, chunk size and number of chunks
+     * @throws IllegalArgumentException if the artifact doesn't exist or the
+     *         transfer can't be started
+     * @throws IOException if the artifact's path can't be resolved
+     */
+    JsonObject start(final String address,
+                     final File artifactsDir,
+                     final String path,
+                     final int fromChunk,
+                     final int credits)
+        throws IOException
+    {
+        File file = new File(artifactsDir, path).getCanonicalFile();
+
+        if (! file.getPath().startsWith(artifactsDir.getCanonicalPath() + File.separator)) {
+            // "../../config.xml" and the like
+            throw new IllegalArgumentException("no such artifact " + path);
+        }
+
+        if (! file.isFile()) {
+            throw new IllegalArgumentException("no such artifact " + path);
+        }
+
+        if (credits <= 0 || credits > MAX_CREDITS) {
+            throw new IllegalArgumentException("invalid credits " + credits);
+        }
+
+        long size = file.length();
+        int chunks = (int) ((size + chunkBytes - 1) / chunkBytes);
+
+        if (fromChunk < 0 || fromChunk > chunks) {
+            throw new IllegalArgumentException("invalid fromChunk " + fromChunk);
+        }
+
+        if (! transfers.containsKey(address) && transfers.size() >= MAX_TRANSFERS) {
+            throw new IllegalArgumentException("too many transfers");
+        }
+
+        Transfer transfer = new Transfer(address, file, size, chunks, fromChunk, credits);
+        transfers.put(address, transfer);
+
+        pump(transfer);
+
+        return new JsonObject()
+            .putNumber("size", size)
+            .putNumber("chunkBytes", chunkBytes)
+            .putNumber("chunks", chunks);
+    }
+    // }}}
+
+    // {{{ ack
+    /**
+     * @param address the transfer's address
+     * @param credits number of chunks the consumer is ready for
+     * @return false if there's no such transfer
+     */
+    boolean ack(final String address, final int credits) {
+        Transfer transfer = transfers.get(address);
+
+        if (transfer != null) {
+            transfer.grant(credits);
+
+            pump(transfer);
+        }
+
+        return transfer != null;
+    }
+    // }}}
+
+    // {{{ cancel
+    /**
+     * @param address the transfer's address
+     * @return false if there's no such transfer
+     */
+    boolean cancel(final String address) {
+        return transfers.remove(address) != null;
+    }
+    // }}}
+
+    // {{{ expire
+    /**
+     * Drops transfers whose consumer has stopped acknowledging chunks.
+     */
+    void expire() {
+        long cutoff = clock.currentTimeMillis() - idleMillis;
+
+        Iterator<Transfer> iter = transfers.values().iterator();
+        while (iter.hasNext()) {
+            Transfer transfer = iter.next();
+
+            if (transfer.isIdleSince(cutoff)) {
+                logger.info("transfer to {} idle, dropping", transfer.address);
+
+                iter.remove();
+            }
+        }
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ pump
+    private void pump(final Transfer transfer) {
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    if (transfer.send()) {
+                        transfers.remove(transfer.address, transfer);
+                    }
+                } catch (IOException e) {
+                    // the consumer will time out and can resume
+                    logger.error("unable to read " + transfer.file, e);
+
+                    transfers.remove(transfer.address, transfer);
+                }
+            }
+        };
+
+        if (scheduler == null) {
+            task.run();
+        } else {
+            scheduler.execute(task);
+        }
+    }
+    // }}}
+
+    /**
+     * One artifact being sent to one consumer.
+     */
+    private class Transfer {
+        private final String address;
+        private final File file;
+        private final long size;
+        private final int chunks;
+
+        private int nextChunk;
+        private int credits;
+        private long lastActivity;
+
+        // {{{ constructor
+        Transfer(final String address,
+                 final File file,
+                 final long size,
+                 final int chunks,
+                 final int nextChunk,
+                 final int credits)
+        {
+            this.address = address;
+            this.file = file;
+            this.size = size;
+            this.chunks = chunks;
+            this.nextChunk = nextChunk;
+            this.credits = credits;
+            this.lastActivity = clock.currentTimeMillis();
+        }
+        // }}}
+
+        // {{{ grant
+        synchronized void grant(final int moreCredits) {
+            credits = Math.min(MAX_CREDITS, credits + Math.max(0, moreCredits));
+            lastActivity = clock.currentTimeMillis();
+        }
+        // }}}
+
+        // {{{ isIdleSince
+        synchronized boolean isIdleSince(final long cutoff) {
+            return lastActivity < cutoff;
+        }
+        // }}}
+
+        // {{{ send
+        /**
+         * Sends as many chunks as there are credits for.
+         *
+         * @return true if the last chunk has been sent
+         */
+        synchronized boolean send() throws IOException {
+            if (credits > 0 && nextChunk < chunks) {
+                try (
+                    FileChannel channel =
+                        FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                ) {
+                    while (credits > 0 && nextChunk < chunks) {
+                        long position = (long) nextChunk * chunkBytes;
+                        int length = (int) Math.min(chunkBytes, size - position);
+
+                        // read straight into the chunk, after its index
+                        ByteBuffer chunk = ByteBuffer.allocate(4 + length);
+                        chunk.putInt(nextChunk);
+
+                        while (chunk.hasRemaining()) {
+                            if (channel.read(chunk, position + chunk.position() - 4) < 0) {
+                                throw new IOException(file + " shrank while being sent");
+                            }
+                        }
+
+                        eventBus.send(address, new Buffer(chunk.array()));
+
+                        Metrics.increment(METRIC_CHUNKS);
+                        Metrics.add(METRIC_BYTES, length);
+
+                        nextChunk++;
+                        credits--;
+                    }
+                }
+            }
+
+            return nextChunk >= chunks;
+        }
+        // }}}
+    }
+}
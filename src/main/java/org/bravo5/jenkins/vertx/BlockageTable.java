@@ -0,0 +1,256 @@
+package org.bravo5.jenkins.vertx;
+
+import hudson.model.Label;
+import hudson.model.Queue;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Block rules pushed by EventBus handlers, so that canRun can be answered
+ * without a round trip.
+ *
+ * A rule matches a task name, a label, or a regular expression applied to the
+ * item's parameters.  There is at most one rule per task name, label or
+ * pattern; pushing another one replaces it.  Every rule expires, so one that
+ * is forgotten can't block the queue for good; expired rules are dropped the
+ * next time they're looked at.  A rule pushed on behalf of a registered
+ * handler is also dropped when that handler goes away.
+ */
+class BlockageTable {
+    /** Lifetime of a rule pushed without ttlMillis or expiresAt. */
+    static final long DEFAULT_TTL_MILLIS = 60L * 60L * 1000L;
+
+    /** Longest a rule may last. */
+    static final long MAX_TTL_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private final ConcurrentMap<String,Rule> byTaskName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,Rule> byLabel = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,Rule> byParamsPattern = new ConcurrentHashMap<>();
+
+    // {{{ block
+    /**
+     * Adds a rule.
+     *
+     * <pre>
+     * {
+     *     "taskName": "foo",           // or "label", or "paramsPattern"
+     *     "reason": "change freeze",
+     *     "ttlMillis": 60000           // or "expiresAt"; optional
+     * }
+     * </pre>
+     *
+     * Without ttlMillis or expiresAt, the rule lasts {@link
+     * #DEFAULT_TTL_MILLIS}; no rule lasts longer than {@link #MAX_TTL_MILLIS}.
+     *
+     * @param json the rule definition
+     * @param owner address of the handler the rule belongs to; may be null
+     * @param now the current time, in epoch millis
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    void block(final JsonObject json, final String owner, final long now) {
+        String reason = json.getString("reason", "blocked via vert.x");
+        long expiresAt = now + DEFAULT_TTL_MILLIS;
+
+        Number ttlMillis = json.getNumber("ttlMillis");
+        Number absoluteExpiry = json.getNumber("expiresAt");
+
+        if (ttlMillis != null) {
+            expiresAt = now + Math.min(ttlMillis.longValue(), MAX_TTL_MILLIS);
+        } else if (absoluteExpiry != null) {
+            expiresAt = Math.min(absoluteExpiry.longValue(), now + MAX_TTL_MILLIS);
+        }
+
+        String taskName = json.getString("taskName");
+        String label = json.getString("label");
+        String paramsPattern = json.getString("paramsPattern");
+
+        if (taskName != null) {
+            byTaskName.put(taskName, new Rule(reason, expiresAt, null, owner));
+        } else if (label != null) {
+            byLabel.put(label, new Rule(reason, expiresAt, null, owner));
+        } else if (paramsPattern != null) {
+            // throws PatternSyntaxException, an IllegalArgumentException
+            Pattern pattern = Pattern.compile(paramsPattern);
+
+            byParamsPattern.put(paramsPattern, new Rule(reason, expiresAt, pattern, owner));
+        } else {
+            throw new IllegalArgumentException("missing taskName, label or paramsPattern");
+        }
+    }
+    // }}}
+
+    // {{{ unblock
+    /**
+     * Removes the rule with the same selector.
+     *
+     * @param json a rule definition; only the selector is used
+     * @return true if a rule was removed
+     * @throws IllegalArgumentException if no selector is given
+     */
+    boolean unblock(final JsonObject json) {
+        String taskName = json.getString("taskName");
+        String label = json.getString("label");
+        String paramsPattern = json.getString("paramsPattern");
+
+        Rule removed;
+
+        if (taskName != null) {
+            removed = byTaskName.remove(taskName);
+        } else if (label != null) {
+            removed = byLabel.remove(label);
+        } else if (paramsPattern != null) {
+            removed = byParamsPattern.remove(paramsPattern);
+        } else {
+            throw new IllegalArgumentException("missing taskName, label or paramsPattern");
+        }
+
+        return removed != null;
+    }
+    // }}}
+
+    // {{{ removeOwnedBy
+    /**
+     * Removes the rules pushed on behalf of a handler.
+     *
+     * @param owner the handler's address
+     * @return the number of rules removed
+     */
+    int removeOwnedBy(final String owner) {
+        return removeOwnedBy(byTaskName, owner)
+            + removeOwnedBy(byLabel, owner)
+            + removeOwnedBy(byParamsPattern, owner);
+    }
+    // }}}
+
+    // {{{ clear
+    void clear() {
+        byTaskName.clear();
+        byLabel.clear();
+        byParamsPattern.clear();
+    }
+    // }}}
+
+    // {{{ isEmpty
+    boolean isEmpty() {
+        return byTaskName.isEmpty() && byLabel.isEmpty() && byParamsPattern.isEmpty();
+    }
+    // }}}
+
+    // {{{ check
+    /**
+     * @param queueItem the item being dispatched
+     * @param now the current time, in epoch millis
+     * @return the reason the item is blocked, or null if no rule matches
+     */
+    String check(final Queue.Item queueItem, final long now) {
+        String reason = null;
+
+        if (! isEmpty()) {
+            reason = check(byTaskName, queueItem.task.getName(), now);
+
+            if (reason == null && ! byLabel.isEmpty()) {
+                Label label = queueItem.task.getAssignedLabel();
+
+                if (label != null) {
+                    reason = check(byLabel, label.getName(), now);
+                }
+            }
+
+            if (reason == null && ! byParamsPattern.isEmpty()) {
+                String params = queueItem.getParams();
+
+                for (String key : byParamsPattern.keySet()) {
+                    Rule rule = live(byParamsPattern, key, now);
+
+                    if (rule != null && rule.pattern.matcher(params).find()) {
+                        reason = rule.reason;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return reason;
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ check
+    private static String check(final ConcurrentMap<String,Rule> rules,
+                                final String key,
+                                final long now)
+    {
+        Rule rule = key == null ? null : live(rules, key, now);
+
+        return rule == null ? null : rule.reason;
+    }
+    // }}}
+
+    // {{{ removeOwnedBy
+    private static int removeOwnedBy(final ConcurrentMap<String,Rule> rules,
+                                     final String owner)
+    {
+        int removed = 0;
+
+        Iterator<Rule> iter = rules.values().iterator();
+        while (iter.hasNext()) {
+            if (owner.equals(iter.next().owner)) {
+                iter.remove();
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+    // }}}
+
+    // {{{ live
+    /**
+     * Looks up a rule, discarding it if it has expired.
+     */
+    private static Rule live(final ConcurrentMap<String,Rule> rules,
+                             final String key,
+                             final long now)
+    {
+        Rule rule = rules.get(key);
+
+        if (rule != null && now >= rule.expiresAt) {
+            rules.remove(key, rule);
+            rule = null;
+        }
+
+        return rule;
+    }
+    // }}}
+
+    /**
+     * A single block rule.
+     */
+    private static class Rule {
+        private final String reason;
+        private final long expiresAt;
+        private final Pattern pattern;
+
+        /** Address of the handler that pushed the rule; may be null. */
+        private final String owner;
+
+        // {{{ constructor
+        Rule(final String reason,
+             final long expiresAt,
+             final Pattern pattern,
+             final String owner)
+        {
+            this.reason = reason;
+            this.expiresAt = expiresAt;
+            this.pattern = pattern;
+            this.owner = owner;
+        }
+        // }}}
+    }
+}
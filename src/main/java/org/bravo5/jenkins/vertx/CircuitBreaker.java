@@ -0,0 +1,139 @@
+package org.bravo5.jenkins.vertx;
+
+import java.util.Locale;
+
+/**
+ * Stops asking a handler that keeps timing out or failing.
+ *
+ * After a number of consecutive timeouts or error replies the breaker opens
+ * and the handler is skipped, which lets queue items run.  Once the cool-down
+ * has passed a single probe request is let through; a reply closes the
+ * breaker again and another failure re-opens it.
+ */
+class CircuitBreaker {
+    /**
+     * Breaker states.
+     */
+    enum State {
+        /** Requests flow normally. */
+        CLOSED,
+
+        /** Requests are skipped. */
+        OPEN,
+
+        /** A single probe request is in flight. */
+        HALF_OPEN;
+
+        // {{{ toString
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+        // }}}
+    }
+
+    private final int failureThreshold;
+    private final long coolDownMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    // {{{ constructor
+    /**
+     * @param failureThreshold consecutive failures before opening
+     * @param coolDownMillis time spent open before probing
+     */
+    CircuitBreaker(final int failureThreshold, final long coolDownMillis) {
+        this.failureThreshold = failureThreshold;
+        this.coolDownMillis = coolDownMillis;
+    }
+    // }}}
+
+    // {{{ getState
+    synchronized State getState() {
+        return state;
+    }
+    // }}}
+
+    // {{{ allowRequest
+    /**
+     * @param now the current time, in epoch millis
+     * @return true if the handler may be asked
+     */
+    synchronized boolean allowRequest(final long now) {
+        boolean allowed;
+
+        switch (state) {
+            case OPEN:
+                allowed = now - openedAt >= coolDownMillis;
+
+                if (allowed) {
+                    state = State.HALF_OPEN;
+                }
+                break;
+
+            case HALF_OPEN:
+                // the probe is still outstanding
+                allowed = false;
+                break;
+
+            default:
+                allowed = true;
+                break;
+        }
+
+        return allowed;
+    }
+    // }}}
+
+    // {{{ recordReply
+    /**
+     * Records a reply from the handler, other than an error.
+     */
+    synchronized void recordReply() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+    // }}}
+
+    // {{{ recordAbandoned
+    /**
+     * Records a request that was given up on before it could time out.  A
+     * probe that ends this way is retried on the next request.
+     */
+    synchronized void recordAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+    // }}}
+
+    // {{{ recordTimeout
+    /**
+     * Records a request that went unanswered.
+     *
+     * @param now the current time, in epoch millis
+     */
+    synchronized void recordTimeout(final long now) {
+        recordFailure(now);
+    }
+    // }}}
+
+    // {{{ recordFailure
+    /**
+     * Records an error reply; it counts the same as a timeout.
+     *
+     * @param now the current time, in epoch millis
+     */
+    synchronized void recordFailure(final long now) {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,20 @@
+package org.bravo5.jenkins.vertx;
+
+/**
+ * Source of the current time, so that time-dependent behaviour can be tested.
+ */
+interface Clock {
+    /** The system clock. */
+    Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    // {{{ currentTimeMillis
+    /**
+     * @return the current time, in epoch millis
+     */
+    long currentTimeMillis();
+    // }}}
+}
@@ -0,0 +1,165 @@
+package org.bravo5.jenkins.vertx;
+
+import org.bravo5.jenkins.vertx.codec.CborCodec;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Wraps large messages in a Deflate-compressed envelope:
+ *
+ * <pre>
+ * {
+ *     "envelope": "deflate",
+ *     "format": "json",
+ *     "size": 81234,
+ *     "data": "eJzt…"
+ * }
+ * </pre>
+ *
+ * <code>format</code> is <code>json</code> for UTF-8 JSON text or
+ * <code>cbor</code> for {@link CborCodec} data, <code>size</code> is the
+ * length of the uncompressed data and <code>data</code> is the compressed
+ * data, base64-encoded.  Consumers can use {@link #open(JsonObject)} to get
+ * the original message back.
+ */
+public final class CompressedEnvelope {
+    static final String METRIC_COUNT = "compress.count";
+    static final String METRIC_BYTES_IN = "compress.bytesIn";
+    static final String METRIC_BYTES_OUT = "compress.bytesOut";
+    static final String METRIC_MICROS = "compress.micros";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Fastest; most of the gain for JSON comes from the first level. */
+    private static final int LEVEL = 1;
+
+    /**
+     * Utility classes don't get constructors.
+     */
+    private CompressedEnvelope() {
+        throw new UnsupportedOperationException("don't do that.");
+    }
+
+    // {{{ wrap
+    /**
+     * @param data the encoded message
+     * @param format "json" or "cbor"
+     * @return the envelope
+     */
+    static JsonObject wrap(final byte[] data, final String format) {
+        long started = System.nanoTime();
+
+        Deflater deflater = new Deflater(LEVEL);
+        byte[] compressed;
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] chunk = new byte[8192];
+
+            while (! deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+            }
+
+            compressed = out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+
+        Metrics.increment(METRIC_COUNT);
+        Metrics.add(METRIC_BYTES_IN, data.length);
+        Metrics.add(METRIC_BYTES_OUT, compressed.length);
+        Metrics.add(METRIC_MICROS, (System.nanoTime() - started) / 1000L);
+
+        return new JsonObject()
+            .putString("envelope", "deflate")
+            .putString("format", format)
+            .putNumber("size", data.length)
+            .putString("data", DatatypeConverter.printBase64Binary(compressed));
+    }
+    // }}}
+
+    // {{{ isEnvelope
+    /**
+     * @param msg a message published by the plugin
+     * @return true if it's a compressed envelope
+     */
+    public static boolean isEnvelope(final JsonObject msg) {
+        return "deflate".equals(msg.getString("envelope"));
+    }
+    // }}}
+
+    // {{{ open
+    /**
+     * @param msg a message published by the plugin
+     * @return the original message; msg itself if it isn't an envelope
+     * @throws IllegalArgumentException if the envelope is corrupt
+     */
+    public static JsonObject open(final JsonObject msg) {
+        JsonObject opened = msg;
+
+        if (isEnvelope(msg)) {
+            byte[] data = inflate(
+                DatatypeConverter.parseBase64Binary(msg.getString("data")),
+                msg.getNumber("size").intValue()
+            );
+
+            if ("cbor".equals(msg.getString("format"))) {
+                opened = CborCodec.decode(data);
+            } else {
+                opened = new JsonObject(new String(data, UTF8));
+            }
+        }
+
+        return opened;
+    }
+    // }}}
+
+    // {{{ open
+    /**
+     * @param buffer a CBOR-encoded message published by the plugin
+     * @return the original message
+     * @throws IllegalArgumentException if the data is corrupt
+     */
+    public static JsonObject open(final Buffer buffer) {
+        return open(CborCodec.decode(buffer));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ inflate
+    private static byte[] inflate(final byte[] compressed, final int size) {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(compressed);
+
+            byte[] data = new byte[size];
+            int length = inflater.inflate(data);
+
+            if (length != size || ! inflater.finished()) {
+                throw new IllegalArgumentException("envelope size mismatch");
+            }
+
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt envelope: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,119 @@
+package org.bravo5.jenkins.vertx;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Maps keys onto a set of members such that adding or removing a member only
+ * moves the keys that belonged to it (or now belong to it).
+ *
+ * Each member is placed on the ring at several points to even out the
+ * distribution.  Lookups don't lock; membership changes rebuild the ring.
+ */
+class ConsistentHashRing {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Points on the ring per member. */
+    private static final int VIRTUAL_NODES = 128;
+
+    private final Set<String> members = new TreeSet<>();
+
+    /** Replaced, never modified, when membership changes. */
+    private volatile NavigableMap<Long,String> ring = new TreeMap<>();
+
+    // {{{ add
+    /**
+     * @param member the member to add
+     */
+    synchronized void add(final String member) {
+        if (members.add(member)) {
+            rebuild();
+        }
+    }
+    // }}}
+
+    // {{{ remove
+    /**
+     * @param member the member to remove
+     */
+    synchronized void remove(final String member) {
+        if (members.remove(member)) {
+            rebuild();
+        }
+    }
+    // }}}
+
+    // {{{ isEmpty
+    boolean isEmpty() {
+        return ring.isEmpty();
+    }
+    // }}}
+
+    // {{{ memberFor
+    /**
+     * @param key the key to look up
+     * @return the member responsible for the key, or null if there are none
+     */
+    String memberFor(final String key) {
+        NavigableMap<Long,String> snapshot = ring;
+
+        String member = null;
+
+        if (! snapshot.isEmpty()) {
+            Map.Entry<Long,String> entry = snapshot.ceilingEntry(hash(key == null ? "" : key));
+
+            if (entry == null) {
+                entry = snapshot.firstEntry();
+            }
+
+            member = entry.getValue();
+        }
+
+        return member;
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ rebuild
+    private void rebuild() {
+        NavigableMap<Long,String> newRing = new TreeMap<>();
+
+        for (String member : members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                newRing.put(hash(member + "#" + i), member);
+            }
+        }
+
+        ring = newRing;
+    }
+    // }}}
+
+    // {{{ hash
+    private static long hash(final String key) {
+        MessageDigest md5;
+
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+
+        byte[] digest = md5.digest(key.getBytes(UTF8));
+
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+
+        return hash;
+    }
+    // }}}
+}
@@ -7,6 +7,8 @@ import jenkins.model.Jenkins;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.Queue;
 import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.Util;
 
 import org.slf4j.Logger;
@@ -20,8 +22,26 @@ import org.vertx.java.core.Handler;
 
 import static org.bravo5.jenkins.vertx.SerializeUtil.serializeToJson;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -36,15 +56,88 @@ public class EventBusQueueTaskDispatcher
     
     private static final String QTD_ADDR = "jenkins.queueTaskDispatcher";
 
+    /** Where notifications about the dispatcher's handlers are published. */
+    private static final String QTD_STATUS_ADDR = "jenkins.queueTaskDispatcher.status";
+
+    /** Number of threads used to send canRun requests. */
+    private static final int SENDER_THREADS = 2;
+
+    /** Advisory messages waiting to be built before new ones are dropped. */
+    private static final int MAX_QUEUED_ADVISORIES = 1000;
+
+    static final String METRIC_CANRUN_ISSUED = "queueTaskDispatcher.canRun.issued";
+    static final String METRIC_CANRUN_COALESCED = "queueTaskDispatcher.canRun.coalesced";
+    static final String METRIC_ADVISORY_DROPPED = "queueTaskDispatcher.advisory.dropped";
+
     private EventBus eventBus;
+    private ReplyCorrelator replyCorrelator;
+
+    /**
+     * Builds and sends advisory messages, so that canRun neither serializes
+     * them nor competes with them for the sender threads.
+     */
+    private ThreadPoolExecutor advisorySender;
+
+    /** Only used from the advisorySender's thread. */
+    private ReplyCorrelator advisoryCorrelator;
     private Jenkins jenkins;
+    /**
+     * Upper bound on how long to wait for a handler.  The actual timeout
+     * adapts to each handler's observed latency.
+     */
     private int timeoutMillis = 5000;
 
+    /** Consecutive timeouts after which a handler is skipped. */
+    private int breakerThreshold = 5;
+
+    /** How long a handler is skipped before it's probed again. */
+    private long breakerCoolDownMillis = 30000L;
+
+    /**
+     * How often handlers with expired leases, and verdicts for items that
+     * have left the queue, are evicted.
+     */
+    private static final long EVICTION_INTERVAL_MILLIS = 1000L;
+
+    private Clock clock = Clock.SYSTEM;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> evictionTask;
+    private ScheduledFuture<?> advisoryStatsTask;
+
+    /** How often statistics for advisory handlers are published. */
+    private long advisoryStatsIntervalMillis = 60000L;
+
+    /**
+     * How long verdicts from a canRunBatch reply are used for, unless the
+     * handler specifies cacheMillis.  Roughly one queue maintenance cycle.
+     */
+    private int batchWindowMillis = 1000;
+
+    /** Block rules pushed by handlers. */
+    private final BlockageTable blockageTable = new BlockageTable();
+
+    /** How the verdicts of several handlers are combined. */
+    private volatile VerdictPolicy policy = VerdictPolicy.ANY_BLOCK;
+
     /**
-     * Address of EventBus handler that has registered for QueueTaskDispatcher 
-     * actions.
+     * EventBus handlers that have registered for QueueTaskDispatcher actions,
+     * keyed by address.
      */
-    private String registeredHandlerId;
+    private final ConcurrentMap<String,HandlerRegistration> registeredHandlers =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Members of each shard group; every item is sent to just one member of
+     * each group.
+     */
+    private final ConcurrentMap<String,ConsistentHashRing> shardGroups =
+        new ConcurrentHashMap<>();
+    
+    /**
+     * canRun requests waiting on the handlers, keyed by queue item id.
+     */
+    private final ConcurrentMap<Integer,FutureTask<Verdict>> inFlightCanRuns =
+        new ConcurrentHashMap<>();
     
     // {{{ setJenkins
     /** 
@@ -65,6 +158,54 @@ public class EventBusQueueTaskDispatcher
      */
     public void setEventBus(final EventBus eventBus) {
         this.eventBus = eventBus;
+
+        if (replyCorrelator != null) {
+            replyCorrelator.close();
+            advisoryCorrelator.close();
+            advisorySender.shutdownNow();
+        }
+
+        replyCorrelator = new ReplyCorrelator(eventBus, SENDER_THREADS);
+        advisoryCorrelator = new ReplyCorrelator(eventBus, 0);
+        
+        advisorySender = new ThreadPoolExecutor(
+            1, 1,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_ADVISORIES),
+            new ReplyCorrelator.SenderThreadFactory("vertx-advisory-sender-"),
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(final Runnable r,
+                                              final ThreadPoolExecutor executor)
+                {
+                    // advice is only worth having if it's cheap
+                    Metrics.increment(METRIC_ADVISORY_DROPPED);
+                    
+                    ((AdvisoryTask) r).dropped();
+                }
+            }
+        );
+    }
+    // }}}
+
+    // {{{ setScheduler
+    /** 
+     * Setter for scheduler, used for housekeeping.
+     *
+     * @param scheduler new value for scheduler
+     */
+    public void setScheduler(final ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+    // }}}
+    
+    // {{{ setClock
+    /** 
+     * Setter for clock.
+     *
+     * @param clock new value for clock
+     */
+    void setClock(final Clock clock) {
+        this.clock = clock;
     }
     // }}}
 
@@ -79,9 +220,86 @@ public class EventBusQueueTaskDispatcher
     }
     // }}}
     
+    // {{{ setBreakerThreshold
+    /** 
+     * Setter for breakerThreshold; applies to handlers registered afterwards.
+     *
+     * @param breakerThreshold new value for breakerThreshold
+     */
+    public void setBreakerThreshold(final int breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+    // }}}
+    
+    // {{{ setBreakerCoolDownMillis
+    /** 
+     * Setter for breakerCoolDownMillis; applies to handlers registered
+     * afterwards.
+     *
+     * @param breakerCoolDownMillis new value for breakerCoolDownMillis
+     */
+    public void setBreakerCoolDownMillis(final long breakerCoolDownMillis) {
+        this.breakerCoolDownMillis = breakerCoolDownMillis;
+    }
+    // }}}
+    
+    // {{{ setBatchWindowMillis
+    /** 
+     * Setter for batchWindowMillis.
+     *
+     * @param batchWindowMillis new value for batchWindowMillis
+     */
+    public void setBatchWindowMillis(final int batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+    // }}}
+    
+    // {{{ setAdvisoryStatsIntervalMillis
+    /** 
+     * Setter for advisoryStatsIntervalMillis.  Takes effect on {@link #init}.
+     *
+     * @param advisoryStatsIntervalMillis new value for advisoryStatsIntervalMillis
+     */
+    public void setAdvisoryStatsIntervalMillis(final long advisoryStatsIntervalMillis) {
+        this.advisoryStatsIntervalMillis = advisoryStatsIntervalMillis;
+    }
+    // }}}
+    
+    // {{{ setPolicy
+    /** 
+     * Setter for policy.
+     *
+     * @param policy new value for policy
+     */
+    public void setPolicy(final VerdictPolicy policy) {
+        this.policy = policy;
+    }
+    // }}}
+    
     // {{{ init
     public void init() {
         eventBus.registerHandler(QTD_ADDR, this);
+
+        if (scheduler != null) {
+            evictionTask = scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        evictExpiredHandlers();
+                        evictLeftItems();
+                    }
+                },
+                EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS
+            );
+
+            advisoryStatsTask = scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        publishAdvisoryStats();
+                    }
+                },
+                advisoryStatsIntervalMillis, advisoryStatsIntervalMillis, TimeUnit.MILLISECONDS
+            );
+        }
     }
     // }}}
     
@@ -91,6 +309,18 @@ public class EventBusQueueTaskDispatcher
      */
     public void close() {
         eventBus.unregisterHandler(QTD_ADDR, this);
+
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+        }
+
+        if (advisoryStatsTask != null) {
+            advisoryStatsTask.cancel(false);
+        }
+
+        replyCorrelator.close();
+        advisorySender.shutdownNow();
+        advisoryCorrelator.close();
     }
     // }}}
     
@@ -112,6 +342,26 @@ public class EventBusQueueTaskDispatcher
                         unregisterHandler(msg);
                         break;
 
+                    case "heartbeat":
+                        heartbeat(msg);
+                        break;
+
+                    case "setPolicy":
+                        setPolicy(msg);
+                        break;
+
+                    case "invalidate":
+                        invalidate(msg);
+                        break;
+
+                    case "block":
+                        block(msg);
+                        break;
+
+                    case "unblock":
+                        unblock(msg);
+                        break;
+
                     default:
                         sendError(msg, "unknown action " + action);
                         break;
@@ -131,23 +381,39 @@ public class EventBusQueueTaskDispatcher
         /*
         {
             "action": "register",
-            "handlerAddress" : queueTaskDispatcherId
+            "handlerAddress" : queueTaskDispatcherId,
+            // optional; "sync" (default), "batch", "advisory" or "push"
+            "mode" : "batch",
+            // optional; items are spread across the members of a group
+            "group" : "capacity",
+            // optional; the handler is evicted if it doesn't send a
+            // heartbeat within this time
+            "leaseMillis" : 30000,
+            // optional; whether to also send canTake messages
+            "canTake" : true,
+            // optional; "full" (default) or "summary"
+            "payload" : "summary"
         }
         */
         
-        String handlerAddr = msg.body.getString("handlerAddress");
+        HandlerRegistration reg;
         
-        if (handlerAddr == null) {
+        try {
+            reg = HandlerRegistration.fromMessage(
+                msg.body,
+                new CircuitBreaker(breakerThreshold, breakerCoolDownMillis),
+                clock.currentTimeMillis()
+            );
+        } catch (IllegalArgumentException e) {
+            sendError(msg, e.getMessage());
+            return;
+        }
+        
+        if (reg == null) {
             sendError(msg, "missing handlerAddress");
         } else {
-            if (registeredHandlerId != null) {
-                logger.warn(
-                    "replacing existing handler {} with {}",
-                    registeredHandlerId, handlerAddr
-                );
-            }
+            addRegistration(reg);
 
-            registeredHandlerId = handlerAddr;
             sendOk(msg);
         }
     }
@@ -167,8 +433,7 @@ public class EventBusQueueTaskDispatcher
         if (handlerAddr == null) {
             sendError(msg, "missing handlerAddress");
         } else {
-            if (handlerAddr.equals(registeredHandlerId)) {
-                registeredHandlerId = null;
+            if (dropRegistration(handlerAddr) != null) {
                 sendOk(msg);
             } else {
                 sendError(msg, "handler ID mismatch");
@@ -177,195 +442,1300 @@ public class EventBusQueueTaskDispatcher
     }
     // }}}
     
-    // {{{ canRun
-    /** {@inheritDoc} */
-    @Override
-    public CauseOfBlockage canRun(final Queue.Item queueItem) {
-        final String _handlerId = registeredHandlerId;
-
-        CauseOfBlockage cause = null;
+    // {{{ heartbeat
+    private void heartbeat(final Message<JsonObject> msg) {
+        /*
+        {
+            "action": "heartbeat",
+            "handlerAddress" : queueTaskDispatcherId
+        }
+        */
         
-        if (registeredHandlerId == null) {
-            logger.debug("no handler registered");
+        String handlerAddr = msg.body.getString("handlerAddress");
+        
+        if (handlerAddr == null) {
+            sendError(msg, "missing handlerAddress");
         } else {
-            // invoke EventBus#send() in a thread and use a BlockingQueue to
-            // retrieve the reply.  This appears to be the only way to work with
-            // Vert.x in a synchronous fashion.
-            
-            final BlockingQueue<JsonObject> replyQueue = new ArrayBlockingQueue<>(1);
-            
-            Thread t = new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        eventBus.send(_handlerId, createPayload(queueItem),
-                            new Handler<Message<JsonObject>>() {
-                                public void handle(final Message<JsonObject> msg) {
-                                    replyQueue.add(msg.body);
-                                }
-                            }
-                        );
-                    } catch (Exception e) {
-                        // no exceptions are declared to be thrown, but this 
-                        // ensures an orderly communication between this thread
-                        // and the caller.
-                        logger.error("unable to send message", e);
-                        replyQueue.add(new JsonObject().putString("error", "got exception"));
-                    }
-                }
-            });
+            HandlerRegistration reg = registeredHandlers.get(handlerAddr);
             
-            t.setContextClassLoader(getClass().getClassLoader());
-            t.start();
-
-            try {
-                final JsonObject reply =
-                    replyQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-                
-                if (reply == null) {
-                    logger.error("timeout waiting for reply from {}", registeredHandlerId);
-                } else {
-                    if (! reply.getBoolean("canRun", true)) {
-                        cause = new CauseOfBlockage() {
-                            @Override
-                            public String getShortDescription() {
-                                return reply.getString("reason", "reason not specified");
-                            }
-                        };
-                    }
-                }
-            } catch (InterruptedException e) {
-                logger.error("interrupted waiting for reply");
+            if (reg == null) {
+                // possibly evicted already; the handler should register again
+                sendError(msg, "not registered");
+            } else {
+                reg.renewLease(clock.currentTimeMillis());
+                sendOk(msg);
             }
         }
-        
-        return cause;
     }
     // }}}
-
-    // ========================================================== private stuff
-
-    // {{{ createPayload
-    private JsonObject createPayload(final Queue.Item queueItem) {
-        // can't use serializeToJson() here; that'll cause an
-        // infinite loop!  I think it's due to "why".
-
+    
+    // {{{ setPolicy
+    private void setPolicy(final Message<JsonObject> msg) {
         /*
         {
-            "action":"canRun",
-            "item":{
-                "actions":[
-                    {
-                        "causes":[{"shortDescription":"Started by user anonymous","userId":null,"userName":"anonymous"}]}
-                ],
-                "blocked":false,
-                "buildable":true,
-                "id":5,
-                "inQueueSince":1348006835051,
-                "params":"",
-                "stuck":false,
-                "task":{"name":"foo","url":"http://localhost:8080/job/foo/","color":"blue"},
-                "why":"Waiting for next available executor",
-                "buildableStartMilliseconds":1348006840462
-            }
+            "action": "setPolicy",
+            "policy": "anyBlock" | "majority" | "firstReply"
         }
         */
-
-        JsonObject payload = 
-            new JsonObject()
-                .putString("action", "canRun")
-                .putObject(
-                    "item",
-                    new JsonObject()
-                        .putBoolean("blocked", queueItem.isBlocked())
-                        .putBoolean("buildable", queueItem.isBuildable())
-                        .putNumber("id", queueItem.id)
-                        .putNumber("inQueueSince", queueItem.getInQueueSince())
-                        .putString("params", queueItem.getParams())
-                        .putBoolean("stuck", queueItem.isStuck())
-                        .putObject(
-                            "task",
-                            new JsonObject()
-                                .putString("name", queueItem.task.getName())
-                                .putString("url", Util.encode(jenkins.getRootUrl() + queueItem.task.getUrl()))
-                        )
-                );
         
-        // need to serialize actions by hand
-        JsonArray jsonActions = new JsonArray();
-        for (Action action : queueItem.getActions()) {
-            jsonActions.addObject(serializeToJson(action));
-        }
-
-        payload
-            .getObject("item")
-            .putArray("actions", jsonActions);
-
-        if (queueItem instanceof Queue.NotWaitingItem) {
-            payload
-                .getObject("item")
-                .putNumber(
-                    "buildableStartMilliseconds",
-                    ((Queue.NotWaitingItem) queueItem).buildableStartMilliseconds
-                );
-        } else if (queueItem instanceof Queue.WaitingItem) {
-            payload
-                .getObject("item")
-                .putNumber(
-                    "timestamp",
-                    ((Queue.WaitingItem) queueItem).timestamp.getTimeInMillis()
-                );
+        try {
+            policy = VerdictPolicy.fromString(msg.body.getString("policy"));
+            sendOk(msg);
+        } catch (IllegalArgumentException e) {
+            sendError(msg, e.getMessage());
         }
-
-        return payload;
-    }
-    // }}}
-
-    // {{{ sendError
-    private void sendError(final Message<JsonObject> message, final String error) {
-        sendError(message, error, null);
     }
     // }}}
-
-    // {{{ sendError
-    private void sendError(final Message<JsonObject> message,
-                           final String error,
-                           final Exception e)
-    {
-        logger.error(error, e);
+    
+    // {{{ invalidate
+    private void invalidate(final Message<JsonObject> msg) {
+        /*
+        {
+            "action": "invalidate",
+            // optional; only this handler's verdicts are invalidated
+            "handlerAddress": queueTaskDispatcherId,
+            // optional; everything is invalidated if neither is given
+            "itemId": 5,
+            "taskName": "foo"
+        }
+        */
         
-        JsonObject json = new JsonObject()
-            .putString("status", "error")
-            .putString("message", error);
-
-        message.reply(json);
+        String handlerAddr = msg.body.getString("handlerAddress");
+        Number itemId = msg.body.getNumber("itemId");
+        String taskName = msg.body.getString("taskName");
+        
+        for (HandlerRegistration reg : registeredHandlers.values()) {
+            if (handlerAddr != null && ! handlerAddr.equals(reg.getAddress())) {
+                continue;
+            }
+            
+            VerdictCache verdictCache = reg.getVerdictCache();
+            NodeVerdictCache nodeVerdictCache = reg.getNodeVerdictCache();
+            
+            if (itemId != null) {
+                verdictCache.invalidateItem(itemId.intValue());
+            }
+            
+            if (taskName != null) {
+                verdictCache.invalidateTask(taskName);
+                nodeVerdictCache.invalidateTask(taskName);
+            }
+            
+            if (itemId == null && taskName == null) {
+                verdictCache.invalidateAll();
+                nodeVerdictCache.invalidateAll();
+            }
+        }
+        
+        sendOk(msg);
     }
     // }}}
-
-    // {{{ sendOk
-    private void sendOk(final Message<JsonObject> message) {
-        sendOk(message, null);
+    
+    // {{{ block
+    private void block(final Message<JsonObject> msg) {
+        /*
+        {
+            "action": "block",
+            // one of
+            "taskName": "foo",
+            "label": "gpu",
+            "paramsPattern": "deploy=prod",
+            
+            "reason": "change freeze",
+            // optional; one of
+            "ttlMillis": 60000,
+            "expiresAt": 1348006835051,
+            // optional; the rule is removed when this handler goes away
+            "handlerAddress": queueTaskDispatcherId
+        }
+        */
+        
+        String owner = msg.body.getString("handlerAddress");
+        
+        try {
+            // so that the owner can't go away before its rule is added
+            synchronized (registeredHandlers) {
+                if (owner != null && ! registeredHandlers.containsKey(owner)) {
+                    sendError(msg, "not registered");
+                } else {
+                    blockageTable.block(msg.body, owner, clock.currentTimeMillis());
+                    sendOk(msg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(msg, "invalid rule: " + e.getMessage());
+        }
     }
     // }}}
-
-    // {{{ sendOk
-    private void sendOk(final Message<JsonObject> message, final JsonObject obj) {
-        sendStatus("ok", message, obj);
+    
+    // {{{ unblock
+    private void unblock(final Message<JsonObject> msg) {
+        /*
+        {
+            "action": "unblock",
+            // one of
+            "taskName": "foo",
+            "label": "gpu",
+            "paramsPattern": "deploy=prod"
+        }
+        */
+        
+        try {
+            if (blockageTable.unblock(msg.body)) {
+                sendOk(msg);
+            } else {
+                sendError(msg, "no such rule");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(msg, "invalid rule: " + e.getMessage());
+        }
     }
     // }}}
-
-    // {{{ sendStatus
-    private void sendStatus(final String status,
-                            final Message<JsonObject> message,
-                            final JsonObject obj)
-    {
-        JsonObject resp = new JsonObject()
-            .putString("status", status);
-
-        if (obj != null) {
-            resp.putObject("result", obj);
+    
+    // {{{ evictExpiredHandlers
+    /**
+     * Removes handlers whose lease has expired.  Invoked periodically.
+     */
+    void evictExpiredHandlers() {
+        long now = clock.currentTimeMillis();
+        
+        for (HandlerRegistration reg : registeredHandlers.values()) {
+            if (reg.isLeaseExpired(now)) {
+                synchronized (registeredHandlers) {
+                    // it may have renewed or re-registered in the meantime
+                    if (registeredHandlers.get(reg.getAddress()) != reg
+                        || ! reg.isLeaseExpired(now))
+                    {
+                        continue;
+                    }
+                    
+                    dropRegistration(reg.getAddress());
+                }
+                
+                logger.warn("evicted handler {}; lease expired", reg.getAddress());
+                
+                publishStatus(
+                    new JsonObject()
+                        .putString("action", "handlerEvicted")
+                        .putString("handlerAddress", reg.getAddress())
+                        .putNumber("leaseMillis", reg.getLeaseMillis())
+                );
+            }
         }
-
-        message.reply(resp);
     }
     // }}}
+    
+    // {{{ evictLeftItems
+    /**
+     * Discards cached verdicts for items that are no longer in the queue,
+     * having been started or cancelled.  Invoked periodically.
+     */
+    void evictLeftItems() {
+        Set<Integer> queued = new HashSet<>();
+        
+        for (Queue.Item item : jenkins.getQueue().getItems()) {
+            queued.add(item.id);
+        }
+        
+        for (HandlerRegistration reg : registeredHandlers.values()) {
+            VerdictCache verdictCache = reg.getVerdictCache();
+            
+            for (Integer itemId : verdictCache.itemIds()) {
+                if (! queued.contains(itemId)) {
+                    verdictCache.invalidateItem(itemId);
+                }
+            }
+        }
+    }
+    // }}}
+    
+    // {{{ publishAdvisoryStats
+    /**
+     * Gives up on advisory replies that are overdue and publishes the
+     * statistics of all advisory handlers.
+     */
+    void publishAdvisoryStats() {
+        /*
+        {
+            "action":"advisoryStats",
+            "handlers":[
+                {"handlerAddress":"…", "sent":1200, "agreed":1150, …}
+            ]
+        }
+        */
+        
+        for (ReplyCorrelator.PendingReply reply : advisoryCorrelator.expire(timeoutMillis)) {
+            HandlerRegistration reg = registeredHandlers.get(reply.getAddress());
+            
+            if (reg != null && reg.getMode() == HandlerRegistration.Mode.ADVISORY) {
+                reg.getAdvisoryStats().recordTimeout();
+            }
+        }
+        
+        JsonArray jsonHandlers = new JsonArray();
+        
+        for (HandlerRegistration reg : registeredHandlers.values()) {
+            if (reg.getMode() == HandlerRegistration.Mode.ADVISORY) {
+                jsonHandlers.addObject(
+                    reg.getAdvisoryStats().toJson()
+                        .putString("handlerAddress", reg.getAddress())
+                );
+            }
+        }
+        
+        if (jsonHandlers.size() > 0) {
+            publishStatus(
+                new JsonObject()
+                    .putString("action", "advisoryStats")
+                    .putArray("handlers", jsonHandlers)
+            );
+        }
+    }
+    // }}}
+    
+    // {{{ canRun
+    /** {@inheritDoc} */
+    @Override
+    public CauseOfBlockage canRun(final Queue.Item queueItem) {
+        Verdict verdict = Verdict.ALLOW;
+        
+        String blockedBy = blockageTable.check(queueItem, clock.currentTimeMillis());
+        
+        if (blockedBy != null) {
+            verdict = new Verdict(blockedBy, 0L);
+        } else if (registeredHandlers.isEmpty()) {
+            logger.debug("no handler registered");
+        } else {
+            List<HandlerRegistration> handlers = new ArrayList<>();
+            List<HandlerRegistration> advisors = new ArrayList<>();
+            
+            for (HandlerRegistration reg : selectHandlers(queueItem)) {
+                if (reg.getMode() == HandlerRegistration.Mode.ADVISORY) {
+                    advisors.add(reg);
+                } else if (reg.isAsked()) {
+                    handlers.add(reg);
+                }
+            }
+            
+            if (! handlers.isEmpty()) {
+                verdict = askHandlersCoalesced(queueItem, handlers);
+            }
+            
+            if (! advisors.isEmpty()) {
+                consultAdvisors(queueItem, advisors, verdict);
+            }
+        }
+        
+        return verdict.toCauseOfBlockage();
+    }
+    // }}}
+
+    // {{{ canTake
+    /** {@inheritDoc} */
+    @Override
+    public CauseOfBlockage canTake(final Node node, final Queue.BuildableItem item) {
+        CauseOfBlockage cause = null;
+        
+        if (! registeredHandlers.isEmpty()) {
+            List<HandlerRegistration> handlers = new ArrayList<>();
+            
+            for (HandlerRegistration reg : selectHandlers(item)) {
+                if (reg.isCanTake() && reg.isAsked()) {
+                    handlers.add(reg);
+                }
+            }
+            
+            if (! handlers.isEmpty()) {
+                cause = askHandlers(
+                    new CanTakeQuery(node, item), handlers
+                ).toCauseOfBlockage();
+            }
+        }
+        
+        return cause;
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ addRegistration
+    private void addRegistration(final HandlerRegistration reg) {
+        synchronized (registeredHandlers) {
+            HandlerRegistration previous = removeRegistration(reg.getAddress());
+            
+            if (previous != null) {
+                logger.info("replaced existing registration for {}", reg.getAddress());
+            }
+            
+            registeredHandlers.put(reg.getAddress(), reg);
+            
+            if (reg.getGroup() != null) {
+                ConsistentHashRing ring = shardGroups.get(reg.getGroup());
+                
+                if (ring == null) {
+                    ring = new ConsistentHashRing();
+                    shardGroups.put(reg.getGroup(), ring);
+                }
+                
+                ring.add(reg.getAddress());
+            }
+        }
+    }
+    // }}}
+    
+    // {{{ removeRegistration
+    /**
+     * @return the removed registration, or null if there was none
+     */
+    private HandlerRegistration removeRegistration(final String handlerAddr) {
+        synchronized (registeredHandlers) {
+            HandlerRegistration reg = registeredHandlers.remove(handlerAddr);
+            
+            if (reg != null && reg.getGroup() != null) {
+                ConsistentHashRing ring = shardGroups.get(reg.getGroup());
+                
+                ring.remove(handlerAddr);
+                
+                if (ring.isEmpty()) {
+                    shardGroups.remove(reg.getGroup());
+                }
+            }
+            
+            return reg;
+        }
+    }
+    // }}}
+    
+    // {{{ dropRegistration
+    /**
+     * Removes a handler that's going away, along with the block rules it
+     * pushed.
+     *
+     * @return the removed registration, or null if there was none
+     */
+    private HandlerRegistration dropRegistration(final String handlerAddr) {
+        synchronized (registeredHandlers) {
+            HandlerRegistration reg = removeRegistration(handlerAddr);
+            
+            if (reg != null) {
+                int removed = blockageTable.removeOwnedBy(handlerAddr);
+                
+                if (removed > 0) {
+                    logger.info("removed {} block rules of {}", removed, handlerAddr);
+                }
+            }
+            
+            return reg;
+        }
+    }
+    // }}}
+    
+    // {{{ selectHandlers
+    /**
+     * @return the handlers that get a say about the item: every handler
+     *         outside of a shard group, plus one member of each group chosen
+     *         by the item's task name.
+     */
+    private List<HandlerRegistration> selectHandlers(final Queue.Item queueItem) {
+        List<HandlerRegistration> handlers = new ArrayList<>();
+        
+        for (HandlerRegistration reg : registeredHandlers.values()) {
+            if (reg.getGroup() == null) {
+                handlers.add(reg);
+            }
+        }
+        
+        if (! shardGroups.isEmpty()) {
+            String taskName = queueItem.task.getName();
+            
+            for (ConsistentHashRing ring : shardGroups.values()) {
+                String member = ring.memberFor(taskName);
+                HandlerRegistration reg =
+                    member == null ? null : registeredHandlers.get(member);
+                
+                // may have been unregistered in the meantime
+                if (reg != null) {
+                    handlers.add(reg);
+                }
+            }
+        }
+        
+        return handlers;
+    }
+    // }}}
+
+    // {{{ askHandlersCoalesced
+    /**
+     * Asks the handlers about the item, unless another thread is already
+     * doing so; then that request's verdict is shared.
+     */
+    private Verdict askHandlersCoalesced(final Queue.Item queueItem,
+                                         final List<HandlerRegistration> handlers)
+    {
+        FutureTask<Verdict> request = new FutureTask<>(new Callable<Verdict>() {
+            public Verdict call() {
+                return askHandlers(new CanRunQuery(queueItem), handlers);
+            }
+        });
+        
+        FutureTask<Verdict> inFlight = inFlightCanRuns.putIfAbsent(queueItem.id, request);
+        
+        if (inFlight == null) {
+            Metrics.increment(METRIC_CANRUN_ISSUED);
+            
+            try {
+                request.run();
+            } finally {
+                inFlightCanRuns.remove(queueItem.id, request);
+            }
+            
+            inFlight = request;
+        } else {
+            Metrics.increment(METRIC_CANRUN_COALESCED);
+            
+            logger.debug("sharing in-flight request for item {}", queueItem.id);
+        }
+        
+        Verdict verdict = Verdict.ALLOW;
+        
+        try {
+            verdict = inFlight.get();
+        } catch (InterruptedException e) {
+            logger.error("interrupted waiting for in-flight request");
+            
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("unable to query handlers", e.getCause());
+        }
+        
+        return verdict;
+    }
+    // }}}
+    
+    // {{{ consultAdvisors
+    /**
+     * Queues the item for the advisory handlers without waiting; their
+     * replies are compared with the verdict that was actually used.  If the
+     * queue is full, the advisors aren't consulted about this item.
+     */
+    private void consultAdvisors(final Queue.Item queueItem,
+                                 final List<HandlerRegistration> advisors,
+                                 final Verdict actual)
+    {
+        advisorySender.execute(new AdvisoryTask(queueItem, advisors, actual));
+    }
+    // }}}
+    
+    // {{{ askHandlers
+    /**
+     * Combines the verdicts of the given handlers, using cached verdicts
+     * where possible.
+     */
+    private Verdict askHandlers(final Query query,
+                                final List<HandlerRegistration> handlers)
+    {
+        VerdictPolicy.Tally tally = policy.newTally(handlers.size());
+        List<HandlerRegistration> uncached = new ArrayList<>();
+        
+        long now = clock.currentTimeMillis();
+        
+        for (HandlerRegistration handler : handlers) {
+            Verdict cached = query.getCached(handler, now);
+            
+            if (cached == null) {
+                uncached.add(handler);
+            } else {
+                tally.addCached(cached);
+            }
+        }
+        
+        if (! tally.isDecided()) {
+            collectReplies(query, uncached, tally);
+        }
+        
+        return tally.getResult();
+    }
+    // }}}
+    
+    // {{{ collectReplies
+    /**
+     * Queries the handlers in parallel and adds their verdicts to the tally
+     * until it's decided or the handlers' timeouts expire.  Handlers that
+     * don't answer in time, or whose circuit breaker is open, don't get a
+     * vote.
+     */
+    private void collectReplies(final Query query,
+                                final List<HandlerRegistration> handlers,
+                                final VerdictPolicy.Tally tally)
+    {
+        final BlockingQueue<ReplyCorrelator.PendingReply> replies =
+            new LinkedBlockingQueue<>();
+        
+        ReplyCorrelator.ReplyListener listener = new ReplyCorrelator.ReplyListener() {
+            public void replied(final ReplyCorrelator.PendingReply reply) {
+                replies.add(reply);
+            }
+        };
+        
+        List<HandlerRegistration> allowed = new ArrayList<>();
+        
+        long now = clock.currentTimeMillis();
+        long waitMillis = 0L;
+        
+        for (HandlerRegistration handler : handlers) {
+            CircuitBreaker breaker = handler.getCircuitBreaker();
+            CircuitBreaker.State breakerState = breaker.getState();
+            
+            boolean allowRequest = breaker.allowRequest(now);
+            
+            publishBreakerStateChange(handler, breakerState);
+            
+            if (allowRequest) {
+                allowed.add(handler);
+                
+                waitMillis = Math.max(
+                    waitMillis,
+                    handler.getLatencyTracker().getTimeoutMillis(timeoutMillis)
+                );
+            } else {
+                logger.debug("circuit open; skipping {}", handler.getAddress());
+            }
+        }
+        
+        // one deadline for all of them, fixed before anything is sent; it's
+        // for actual waiting, so it uses the real clock
+        long deadline = System.currentTimeMillis() + waitMillis;
+        
+        Map<ReplyCorrelator.PendingReply,HandlerRegistration> outstanding =
+            new HashMap<>();
+        
+        for (HandlerRegistration handler : allowed) {
+            outstanding.put(
+                replyCorrelator.send(handler.getAddress(), query.getPayload(handler), listener),
+                handler
+            );
+        }
+        
+        int asked = outstanding.size();
+        ReplyCorrelator.PendingReply slowest = null;
+        
+        try {
+            while (! outstanding.isEmpty() && ! tally.isDecided()) {
+                long remaining = deadline - System.currentTimeMillis();
+                
+                ReplyCorrelator.PendingReply reply = remaining > 0
+                    ? replies.poll(remaining, TimeUnit.MILLISECONDS)
+                    : null;
+                
+                if (reply == null) {
+                    expireAll(outstanding, waitMillis);
+                    continue;
+                }
+                
+                HandlerRegistration handler = outstanding.remove(reply);
+                
+                if (handler == null) {
+                    // arrived just as it was expired
+                    continue;
+                }
+                
+                CircuitBreaker.State breakerState = handler.getCircuitBreaker().getState();
+                
+                if (Verdict.isError(reply.getBody())) {
+                    logger.warn("error reply from {} for {}", handler.getAddress(), query);
+                    
+                    // a fast error says nothing about how long answers take
+                    handler.getCircuitBreaker().recordFailure(clock.currentTimeMillis());
+                    
+                    tally.abstain();
+                } else {
+                    handler.getCircuitBreaker().recordReply();
+                    handler.getLatencyTracker().record(reply.getLatencyMillis());
+                    
+                    tally.add(
+                        query.interpret(handler, reply.getBody(), clock.currentTimeMillis())
+                    );
+                }
+                
+                publishBreakerStateChange(handler, breakerState);
+                
+                if (slowest == null || reply.getLatencyMillis() > slowest.getLatencyMillis()) {
+                    slowest = reply;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.error("interrupted waiting for replies");
+            
+            Thread.currentThread().interrupt();
+        }
+        
+        // whatever's left isn't needed any more
+        for (Map.Entry<ReplyCorrelator.PendingReply,HandlerRegistration> entry : outstanding.entrySet()) {
+            replyCorrelator.cancel(entry.getKey());
+            
+            CircuitBreaker breaker = entry.getValue().getCircuitBreaker();
+            CircuitBreaker.State breakerState = breaker.getState();
+            
+            breaker.recordAbandoned();
+            
+            publishBreakerStateChange(entry.getValue(), breakerState);
+        }
+        
+        if (slowest != null) {
+            logger.debug(
+                "{} of {} handlers replied for {}; slowest was {} at {}ms",
+                asked - outstanding.size(), handlers.size(),
+                query, slowest.getAddress(), slowest.getLatencyMillis()
+            );
+        }
+    }
+    // }}}
+    
+    // {{{ expireAll
+    /**
+     * Gives up on the requests still outstanding once the deadline has
+     * passed.
+     *
+     * @param waitMillis how long they were waited for
+     */
+    private void expireAll(final Map<ReplyCorrelator.PendingReply,HandlerRegistration> outstanding,
+                           final long waitMillis)
+    {
+        long clockNow = clock.currentTimeMillis();
+        
+        for (Map.Entry<ReplyCorrelator.PendingReply,HandlerRegistration> entry : outstanding.entrySet()) {
+            HandlerRegistration handler = entry.getValue();
+            
+            replyCorrelator.cancel(entry.getKey());
+            
+            logger.error(
+                "timeout waiting {}ms for reply from {}",
+                waitMillis, handler.getAddress()
+            );
+            
+            CircuitBreaker.State breakerState = handler.getCircuitBreaker().getState();
+            
+            handler.getCircuitBreaker().recordTimeout(clockNow);
+            handler.getLatencyTracker().record(waitMillis);
+            
+            publishBreakerStateChange(handler, breakerState);
+        }
+        
+        outstanding.clear();
+    }
+    // }}}
+    
+    // {{{ publishBreakerStateChange
+    /**
+     * Lets everyone know if a handler's circuit breaker changed state.
+     */
+    private void publishBreakerStateChange(final HandlerRegistration handler,
+                                           final CircuitBreaker.State previousState)
+    {
+        CircuitBreaker.State state = handler.getCircuitBreaker().getState();
+        
+        if (state != previousState) {
+            logger.warn(
+                "circuit breaker for {} is now {}, was {}",
+                handler.getAddress(), state, previousState
+            );
+            
+            publishStatus(
+                new JsonObject()
+                    .putString("action", "breakerStateChanged")
+                    .putString("handlerAddress", handler.getAddress())
+                    .putString("state", state.toString())
+                    .putString("previousState", previousState.toString())
+            );
+        }
+    }
+    // }}}
+    
+    // {{{ publishStatus
+    /**
+     * Publishes a notification about the dispatcher, possibly from a Jenkins
+     * thread.
+     */
+    private void publishStatus(final JsonObject msg) {
+        ClassLoader oldContextClassLoader =
+            Thread.currentThread().getContextClassLoader();
+
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+
+        try { 
+            eventBus.publish(QTD_STATUS_ADDR, msg);
+        } finally { 
+           Thread.currentThread().setContextClassLoader(oldContextClassLoader); 
+        }
+    }
+    // }}}
+    
+    // {{{ createPayload
+    private JsonObject createPayload(final Queue.Item queueItem,
+                                     final PayloadMode payloadMode)
+    {
+        return new JsonObject()
+            .putString("action", "canRun")
+            .putObject("item", createItemJson(queueItem, payloadMode));
+    }
+    // }}}
+
+    // {{{ createItemJson
+    private JsonObject createItemJson(final Queue.Item queueItem,
+                                      final PayloadMode payloadMode)
+    {
+        return payloadMode == PayloadMode.SUMMARY
+            ? SummarySerializer.summarize(queueItem)
+            : createItemJson(queueItem);
+    }
+    // }}}
+
+    // {{{ createItemJson
+    private JsonObject createItemJson(final Queue.Item queueItem) {
+        // can't use serializeToJson() here; that'll cause an
+        // infinite loop!  I think it's due to "why".
+
+        /*
+        {
+            "actions":[
+                {
+                    "causes":[{"shortDescription":"Started by user anonymous","userId":null,"userName":"anonymous"}]}
+            ],
+            "blocked":false,
+            "buildable":true,
+            "id":5,
+            "inQueueSince":1348006835051,
+            "params":"",
+            "stuck":false,
+            "task":{"name":"foo","url":"http://localhost:8080/job/foo/","color":"blue"},
+            "why":"Waiting for next available executor",
+            "buildableStartMilliseconds":1348006840462
+        }
+        */
+
+        JsonObject item = 
+            new JsonObject()
+                .putBoolean("blocked", queueItem.isBlocked())
+                .putBoolean("buildable", queueItem.isBuildable())
+                .putNumber("id", queueItem.id)
+                .putNumber("inQueueSince", queueItem.getInQueueSince())
+                .putString("params", queueItem.getParams())
+                .putBoolean("stuck", queueItem.isStuck())
+                .putObject(
+                    "task",
+                    new JsonObject()
+                        .putString("name", queueItem.task.getName())
+                        .putString("url", Util.encode(jenkins.getRootUrl() + queueItem.task.getUrl()))
+                );
+        
+        // need to serialize actions by hand
+        JsonArray jsonActions = new JsonArray();
+        for (Action action : queueItem.getActions()) {
+            jsonActions.addObject(serializeToJson(action));
+        }
+
+        item.putArray("actions", jsonActions);
+
+        if (queueItem instanceof Queue.NotWaitingItem) {
+            item.putNumber(
+                "buildableStartMilliseconds",
+                ((Queue.NotWaitingItem) queueItem).buildableStartMilliseconds
+            );
+        } else if (queueItem instanceof Queue.WaitingItem) {
+            item.putNumber(
+                "timestamp",
+                ((Queue.WaitingItem) queueItem).timestamp.getTimeInMillis()
+            );
+        }
+
+        return item;
+    }
+    // }}}
+
+    // {{{ createBatchPayload
+    private JsonObject createBatchPayload(final Iterable<Queue.Item> items,
+                                          final PayloadMode payloadMode)
+    {
+        /*
+        {
+            "action":"canRunBatch",
+            "items":[ {…}, … ]
+        }
+        */
+        
+        JsonArray jsonItems = new JsonArray();
+        for (Queue.Item item : items) {
+            jsonItems.addObject(createItemJson(item, payloadMode));
+        }
+        
+        return new JsonObject()
+            .putString("action", "canRunBatch")
+            .putArray("items", jsonItems);
+    }
+    // }}}
+
+    // {{{ createNodeJson
+    private JsonObject createNodeJson(final Node node) {
+        /*
+        {
+            "name":"gpu-1",
+            "labels":"linux gpu",
+            "numExecutors":2,
+            "mode":"EXCLUSIVE",
+            "online":true
+        }
+        */
+        
+        Computer computer = node.toComputer();
+        
+        return new JsonObject()
+            .putString("name", node.getNodeName())
+            .putString("labels", node.getLabelString())
+            .putNumber("numExecutors", node.getNumExecutors())
+            .putString("mode", node.getMode().name())
+            .putBoolean("online", computer != null && computer.isOnline());
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message, final String error) {
+        sendError(message, error, null);
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message,
+                           final String error,
+                           final Exception e)
+    {
+        logger.error(error, e);
+        
+        JsonObject json = new JsonObject()
+            .putString("status", "error")
+            .putString("message", error);
+
+        message.reply(json);
+    }
+    // }}}
+
+    // {{{ sendOk
+    private void sendOk(final Message<JsonObject> message) {
+        sendOk(message, null);
+    }
+    // }}}
+
+    // {{{ sendOk
+    private void sendOk(final Message<JsonObject> message, final JsonObject obj) {
+        sendStatus("ok", message, obj);
+    }
+    // }}}
+
+    // {{{ sendStatus
+    private void sendStatus(final String status,
+                            final Message<JsonObject> message,
+                            final JsonObject obj)
+    {
+        JsonObject resp = new JsonObject()
+            .putString("status", status);
+
+        if (obj != null) {
+            resp.putObject("result", obj);
+        }
+
+        message.reply(resp);
+    }
+    // }}}
+
+    /**
+     * A question put to the handlers, such as canRun for a particular item.
+     */
+    private abstract static class Query {
+        // {{{ getCached
+        /**
+         * @param handler the handler being asked
+         * @param now the current time, in epoch millis
+         * @return the handler's cached verdict, or null if there isn't one
+         */
+        abstract Verdict getCached(HandlerRegistration handler, long now);
+        // }}}
+        
+        // {{{ getPayload
+        /**
+         * @param handler the handler being asked
+         * @return the message to send to the handler
+         */
+        abstract JsonObject getPayload(HandlerRegistration handler);
+        // }}}
+        
+        // {{{ interpret
+        /**
+         * Turns a handler's reply into a verdict, caching whatever it's
+         * allowed to.
+         *
+         * @param handler the handler that replied
+         * @param reply the reply
+         * @param now the current time, in epoch millis
+         * @return the handler's verdict
+         */
+        abstract Verdict interpret(HandlerRegistration handler, JsonObject reply, long now);
+        // }}}
+    }
+    
+    /**
+     * Sends an item to advisory handlers.  Runs on the advisorySender's
+     * thread, where the item is serialized; it may have moved on in the
+     * queue by then, which is fine for advice.
+     */
+    private class AdvisoryTask implements Runnable {
+        private final Queue.Item queueItem;
+        private final List<HandlerRegistration> advisors;
+        private final Verdict actual;
+        
+        // {{{ constructor
+        AdvisoryTask(final Queue.Item queueItem,
+                     final List<HandlerRegistration> advisors,
+                     final Verdict actual)
+        {
+            this.queueItem = queueItem;
+            this.advisors = advisors;
+            this.actual = actual;
+        }
+        // }}}
+        
+        // {{{ run
+        /** {@inheritDoc} */
+        public void run() {
+            Map<PayloadMode,JsonObject> payloads = new EnumMap<>(PayloadMode.class);
+            
+            for (final HandlerRegistration advisor : advisors) {
+                JsonObject msg = payloads.get(advisor.getPayloadMode());
+                
+                if (msg == null) {
+                    msg = createPayload(queueItem, advisor.getPayloadMode());
+                    payloads.put(advisor.getPayloadMode(), msg);
+                }
+                
+                final AdvisoryStats stats = advisor.getAdvisoryStats();
+                
+                stats.recordSent();
+                
+                advisoryCorrelator.send(
+                    advisor.getAddress(),
+                    msg,
+                    new ReplyCorrelator.ReplyListener() {
+                        public void replied(final ReplyCorrelator.PendingReply reply) {
+                            JsonObject body = reply.getBody();
+                            
+                            if (Verdict.isError(body)) {
+                                stats.recordFailure();
+                            } else {
+                                stats.recordReply(
+                                    Verdict.fromReply(body, "canRun", 0L, 0L),
+                                    actual,
+                                    reply.getLatencyMillis()
+                                );
+                            }
+                        }
+                    }
+                );
+            }
+        }
+        // }}}
+        
+        // {{{ dropped
+        /**
+         * The task didn't fit in the queue.
+         */
+        void dropped() {
+            for (HandlerRegistration advisor : advisors) {
+                advisor.getAdvisoryStats().recordDropped();
+            }
+        }
+        // }}}
+    }
+    
+    /**
+     * Can a queue item run?  Handlers registered in batch mode are asked
+     * about the whole queue.
+     */
+    private class CanRunQuery extends Query {
+        private final Queue.Item queueItem;
+        
+        private final Map<PayloadMode,JsonObject> payloads =
+            new EnumMap<>(PayloadMode.class);
+        private final Map<PayloadMode,JsonObject> batchPayloads =
+            new EnumMap<>(PayloadMode.class);
+        
+        /** The items in the batch, keyed by id. */
+        private final Map<Integer,Queue.Item> batchItems = new LinkedHashMap<>();
+        
+        // {{{ constructor
+        CanRunQuery(final Queue.Item queueItem) {
+            this.queueItem = queueItem;
+        }
+        // }}}
+        
+        // {{{ getCached
+        /** {@inheritDoc} */
+        Verdict getCached(final HandlerRegistration handler, final long now) {
+            return handler.getVerdictCache().get(queueItem, now);
+        }
+        // }}}
+        
+        // {{{ getPayload
+        /** {@inheritDoc} */
+        JsonObject getPayload(final HandlerRegistration handler) {
+            PayloadMode payloadMode = handler.getPayloadMode();
+            JsonObject msg;
+            
+            if (handler.getMode() == HandlerRegistration.Mode.BATCH) {
+                if (batchItems.isEmpty()) {
+                    for (Queue.Item item : jenkins.getQueue().getItems()) {
+                        batchItems.put(item.id, item);
+                    }
+                    
+                    // the item may be in transit between the queue's lists
+                    batchItems.put(queueItem.id, queueItem);
+                }
+                
+                msg = batchPayloads.get(payloadMode);
+                
+                if (msg == null) {
+                    msg = createBatchPayload(batchItems.values(), payloadMode);
+                    batchPayloads.put(payloadMode, msg);
+                }
+            } else {
+                msg = payloads.get(payloadMode);
+                
+                if (msg == null) {
+                    msg = createPayload(queueItem, payloadMode);
+                    payloads.put(payloadMode, msg);
+                }
+            }
+            
+            return msg;
+        }
+        // }}}
+        
+        // {{{ interpret
+        /** {@inheritDoc} */
+        Verdict interpret(final HandlerRegistration handler,
+                          final JsonObject reply,
+                          final long now)
+        {
+            VerdictCache verdictCache = handler.getVerdictCache();
+            
+            Verdict verdict;
+            
+            if (handler.getMode() == HandlerRegistration.Mode.BATCH) {
+                /*
+                {
+                    "verdicts":[
+                        {"id":5, "canRun":false, "reason":"don't wanna", "cacheMillis":30000},
+                        …
+                    ]
+                }
+                */
+                
+                Map<Integer,Verdict> verdicts = new HashMap<>();
+                
+                JsonArray jsonVerdicts = reply.getArray("verdicts");
+                if (jsonVerdicts != null) {
+                    for (Object o : jsonVerdicts) {
+                        JsonObject jsonVerdict = (JsonObject) o;
+                        Number id = jsonVerdict.getNumber("id");
+                        
+                        if (id != null) {
+                            verdicts.put(
+                                id.intValue(),
+                                Verdict.fromReply(jsonVerdict, "canRun", now, batchWindowMillis)
+                            );
+                        }
+                    }
+                }
+                
+                verdict = Verdict.ALLOW;
+                
+                // items the handler didn't mention may run
+                for (Queue.Item item : batchItems.values()) {
+                    Verdict itemVerdict = verdicts.get(item.id);
+                    
+                    if (itemVerdict == null) {
+                        itemVerdict = new Verdict(null, now + batchWindowMillis);
+                    }
+                    
+                    verdictCache.put(item, itemVerdict, now);
+                    
+                    if (item.id == queueItem.id) {
+                        verdict = itemVerdict;
+                    }
+                }
+            } else {
+                verdict = Verdict.fromReply(reply, "canRun", now, 0L);
+                
+                verdictCache.put(queueItem, verdict, now);
+            }
+            
+            return verdict;
+        }
+        // }}}
+        
+        // {{{ toString
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "item " + queueItem.id;
+        }
+        // }}}
+    }
+    
+    /**
+     * Can a node take a buildable item?  Handlers are asked about all nodes
+     * at once, so the following canTake calls for the same item on other
+     * nodes can be answered from the cache.
+     */
+    private class CanTakeQuery extends Query {
+        private final Node node;
+        private final Queue.BuildableItem queueItem;
+        
+        private JsonArray jsonNodes;
+        private final Map<PayloadMode,JsonObject> payloads =
+            new EnumMap<>(PayloadMode.class);
+        
+        /** The nodes in the query, keyed by name. */
+        private final Map<String,Node> nodes = new LinkedHashMap<>();
+        
+        // {{{ constructor
+        CanTakeQuery(final Node node, final Queue.BuildableItem queueItem) {
+            this.node = node;
+            this.queueItem = queueItem;
+        }
+        // }}}
+        
+        // {{{ getCached
+        /** {@inheritDoc} */
+        Verdict getCached(final HandlerRegistration handler, final long now) {
+            return handler.getNodeVerdictCache().get(node, queueItem, now);
+        }
+        // }}}
+        
+        // {{{ getPayload
+        /** {@inheritDoc} */
+        JsonObject getPayload(final HandlerRegistration handler) {
+            /*
+            {
+                "action":"canTake",
+                "node":"gpu-1",
+                "item":{…},
+                "nodes":[ {…}, … ]
+            }
+            */
+            
+            if (jsonNodes == null) {
+                // the master
+                nodes.put(jenkins.getNodeName(), jenkins);
+                
+                for (Node n : jenkins.getNodes()) {
+                    nodes.put(n.getNodeName(), n);
+                }
+                
+                nodes.put(node.getNodeName(), node);
+                
+                jsonNodes = new JsonArray();
+                for (Node n : nodes.values()) {
+                    jsonNodes.addObject(createNodeJson(n));
+                }
+            }
+            
+            PayloadMode payloadMode = handler.getPayloadMode();
+            JsonObject payload = payloads.get(payloadMode);
+            
+            if (payload == null) {
+                payload = new JsonObject()
+                    .putString("action", "canTake")
+                    .putString("node", node.getNodeName())
+                    .putObject("item", createItemJson(queueItem, payloadMode))
+                    .putArray("nodes", jsonNodes);
+                
+                payloads.put(payloadMode, payload);
+            }
+            
+            return payload;
+        }
+        // }}}
+        
+        // {{{ interpret
+        /** {@inheritDoc} */
+        Verdict interpret(final HandlerRegistration handler,
+                          final JsonObject reply,
+                          final long now)
+        {
+            /*
+            {
+                "verdicts":[
+                    {"node":"gpu-1", "canTake":false, "reason":"busy", "cacheMillis":30000},
+                    …
+                ]
+            }
+            
+            or, for just the node in question:
+            
+            {"canTake":false, "reason":"busy"}
+            */
+            
+            NodeVerdictCache nodeVerdictCache = handler.getNodeVerdictCache();
+            
+            Verdict verdict;
+            
+            JsonArray jsonVerdicts = reply.getArray("verdicts");
+            
+            if (jsonVerdicts == null) {
+                verdict = Verdict.fromReply(reply, "canTake", now, 0L);
+                
+                nodeVerdictCache.put(node, queueItem, verdict, now);
+            } else {
+                Map<String,Verdict> verdicts = new HashMap<>();
+                
+                for (Object o : jsonVerdicts) {
+                    JsonObject jsonVerdict = (JsonObject) o;
+                    String nodeName = jsonVerdict.getString("node");
+                    
+                    if (nodeName != null) {
+                        verdicts.put(
+                            nodeName,
+                            Verdict.fromReply(jsonVerdict, "canTake", now, batchWindowMillis)
+                        );
+                    }
+                }
+                
+                verdict = Verdict.ALLOW;
+                
+                // nodes the handler didn't mention may take the item
+                for (Node n : nodes.values()) {
+                    Verdict nodeVerdict = verdicts.get(n.getNodeName());
+                    
+                    if (nodeVerdict == null) {
+                        nodeVerdict = new Verdict(null, now + batchWindowMillis);
+                    }
+                    
+                    nodeVerdictCache.put(n, queueItem, nodeVerdict, now);
+                    
+                    if (n == node) {
+                        verdict = nodeVerdict;
+                    }
+                }
+            }
+            
+            return verdict;
+        }
+        // }}}
+        
+        // {{{ toString
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "item " + queueItem.id + " on node '" + node.getNodeName() + "'";
+        }
+        // }}}
+    }
 }
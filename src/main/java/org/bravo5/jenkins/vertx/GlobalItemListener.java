@@ -8,6 +8,8 @@ import hudson.Extension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.kohsuke.stapler.export.TreePruner;
+
 import org.vertx.java.core.json.JsonObject;
 import static org.bravo5.jenkins.vertx.SerializeUtil.serializeToJson;
 
@@ -17,11 +19,22 @@ import static org.bravo5.jenkins.vertx.SerializeUtil.serializeToJson;
 @Extension
 public class GlobalItemListener extends ItemListener {
     private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Set the system property to "summary" for compact Items. */
+    private static final PayloadMode PAYLOAD_MODE =
+        PayloadMode.fromProperty(GlobalItemListener.class.getName() + ".payload");
+
+    /** Set the system property to "true" to publish updates as patches. */
+    private static final boolean PUBLISH_PATCHES =
+        Boolean.getBoolean(GlobalItemListener.class.getName() + ".patches");
     
     // {{{ onLoaded
     /** {@inheritDoc} */
     @Override
     public void onLoaded() {
+        // configuration was (re)loaded; classes may have changed
+        SerializeUtil.invalidateModels();
+
         PluginImpl.ebPublish(
             "jenkins.item",
             new JsonObject().putString("action", "allLoaded")
@@ -33,12 +46,7 @@ public class GlobalItemListener extends ItemListener {
     /** {@inheritDoc} */
     @Override
     public void onCreated(final Item item) {
-        PluginImpl.ebPublish(
-            "jenkins.item",
-            new JsonObject()
-                .putString("action", "created")
-                .putObject("item", serializeToJson(item))
-        );
+        publish("created", item);
     }
     // }}}
     
@@ -46,12 +54,11 @@ public class GlobalItemListener extends ItemListener {
     /** {@inheritDoc} */
     @Override
     public void onUpdated(final Item item) {
-        PluginImpl.ebPublish(
-            "jenkins.item",
-            new JsonObject()
-                .putString("action", "updated")
-                .putObject("item", serializeToJson(item))
-        );
+        if (PUBLISH_PATCHES) {
+            publishPatch(item);
+        } else {
+            publish("updated", item);
+        }
     }
     // }}}
     
@@ -59,13 +66,14 @@ public class GlobalItemListener extends ItemListener {
     /** {@inheritDoc} */
     @Override
     public void onCopied(final Item src, final Item item) {
-        PluginImpl.ebPublish(
-            "jenkins.item",
-            new JsonObject()
-                .putString("action", "copied")
-                .putObject("src", serializeToJson(src))
-                .putObject("item", serializeToJson(item))
-        );
+        publish(new ProjectedEvent() {
+            JsonObject build(final TreePruner pruner) {
+                return new JsonObject()
+                    .putString("action", "copied")
+                    .putObject("src", itemToJson(src, pruner))
+                    .putObject("item", itemToJson(item, pruner));
+            }
+        });
     }
     // }}}
     
@@ -73,14 +81,21 @@ public class GlobalItemListener extends ItemListener {
     /** {@inheritDoc} */
     @Override
     public void onRenamed(final Item item, final String oldName, final String newName) {
-        PluginImpl.ebPublish(
-            "jenkins.item",
-            new JsonObject()
-                .putString("action", "renamed")
-                .putObject("item", serializeToJson(item))
-                .putString("oldName", oldName)
-                .putString("newName", newName)
+        String parentName = item.getParent().getFullName();
+        
+        PluginImpl.getItemSnapshots().remove(
+            parentName.isEmpty() ? oldName : parentName + "/" + oldName
         );
+        
+        publish(new ProjectedEvent() {
+            JsonObject build(final TreePruner pruner) {
+                return new JsonObject()
+                    .putString("action", "renamed")
+                    .putObject("item", itemToJson(item, pruner))
+                    .putString("oldName", oldName)
+                    .putString("newName", newName);
+            }
+        });
     }
     // }}}
     
@@ -88,12 +103,94 @@ public class GlobalItemListener extends ItemListener {
     /** {@inheritDoc} */
     @Override
     public void onDeleted(final Item item) {
-        PluginImpl.ebPublish(
-            "jenkins.item",
-            new JsonObject()
-                .putString("action", "deleted")
-                .putObject("item", serializeToJson(item))
-        );
+        PluginImpl.getItemSnapshots().remove(item.getFullName());
+        
+        publish("deleted", item);
+    }
+    // }}}
+    
+    // {{{ itemToJson
+    /**
+     * @return the item as it's published: summarized or serialized
+     */
+    static JsonObject itemToJson(final Item item, final TreePruner pruner) {
+        return PAYLOAD_MODE == PayloadMode.SUMMARY
+            ? SummarySerializer.summarize(item)
+            : serializeToJson(item, pruner);
+    }
+    // }}}
+    
+    // {{{ publish
+    private void publish(final String action, final Item item) {
+        publish(new ProjectedEvent() {
+            JsonObject build(final TreePruner pruner) {
+                return new JsonObject()
+                    .putString("action", action)
+                    .putObject("item", itemToJson(item, pruner));
+            }
+        });
+    }
+    // }}}
+    
+    // {{{ publishPatch
+    /**
+     * Publishes the changes since the item was last published, or the whole
+     * item if it hasn't been.  Projections still get the whole item.
+     */
+    private void publishPatch(final Item item) {
+        /*
+        {
+            "action":"updated",
+            "fullName":"parameterized",
+            "seq":8,
+            "previousSeq":7,
+            "patch":[ {"op":"replace", "path":"/description", "value":"…"}, … ]
+        }
+        */
+        
+        if (PluginImpl.hasConsumers("jenkins.item")) {
+            JsonObject json = itemToJson(item, SerializeUtil.DEFAULT_PRUNER);
+            ItemSnapshots.Snapshot snapshot =
+                PluginImpl.getItemSnapshots().update(item.getFullName(), json);
+            
+            JsonObject msg = new JsonObject()
+                .putString("action", "updated")
+                .putString("fullName", item.getFullName())
+                .putNumber("seq", snapshot.getSeq());
+            
+            if (snapshot.getPrevious() == null) {
+                msg.putObject("item", json);
+            } else {
+                msg
+                    .putNumber("previousSeq", snapshot.getPreviousSeq())
+                    .putArray("patch", JsonPatch.diff(snapshot.getPrevious(), json));
+            }
+            
+            PluginImpl.ebPublish("jenkins.item", msg);
+        }
+        
+        if (PAYLOAD_MODE != PayloadMode.SUMMARY) {
+            PluginImpl.ebPublishProjections("jenkins.item", new ProjectedEvent() {
+                JsonObject build(final TreePruner pruner) {
+                    return new JsonObject()
+                        .putString("action", "updated")
+                        .putObject("item", serializeToJson(item, pruner));
+                }
+            });
+        }
+    }
+    // }}}
+    
+    // {{{ publish
+    private void publish(final ProjectedEvent event) {
+        if (PAYLOAD_MODE == PayloadMode.SUMMARY) {
+            // projections don't apply to summaries
+            if (PluginImpl.hasConsumers("jenkins.item")) {
+                PluginImpl.ebPublish("jenkins.item", event.build(SerializeUtil.DEFAULT_PRUNER));
+            }
+        } else {
+            PluginImpl.ebPublish("jenkins.item", event);
+        }
     }
     // }}}
 }
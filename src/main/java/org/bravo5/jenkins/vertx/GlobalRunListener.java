@@ -13,9 +13,15 @@ import jenkins.model.Jenkins;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.kohsuke.stapler.export.TreePruner;
+
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.json.JsonArray;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Broadcasts notifications regarding Runs to the EventBus.
  */
@@ -23,10 +29,52 @@ import org.vertx.java.core.json.JsonArray;
 public class GlobalRunListener extends RunListener<Run> {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /** Set the system property to "summary" for compact Runs. */
+    private static final PayloadMode PAYLOAD_MODE =
+        PayloadMode.fromProperty(GlobalRunListener.class.getName() + ".payload");
+
+    /**
+     * Set the system property to "reference" to describe the previous and
+     * next builds with {@link SummarySerializer#reference} instead of
+     * serializing them in full.
+     */
+    private static final boolean NEIGHBOR_REFERENCES = "reference".equals(
+        System.getProperty(GlobalRunListener.class.getName() + ".neighbors")
+    );
+
+    /**
+     * Set the system property to a number of milliseconds to hold a Run's
+     * lifecycle events for that long after the first one, and publish
+     * them as one; 0 disables it.
+     */
+    static final long COALESCE_MILLIS =
+        Long.getLong(GlobalRunListener.class.getName() + ".coalesceMillis", 0L);
+
+    /** Holds back lifecycle events, if enabled. */
+    private final RunEventCoalescer coalescer;
+
+    // {{{ constructor
+    public GlobalRunListener() {
+        if (COALESCE_MILLIS > 0) {
+            coalescer = new RunEventCoalescer(
+                PluginImpl.getCoalesceScheduler(),
+                COALESCE_MILLIS,
+                new RunEventCoalescer.Publisher() {
+                    public void publish(final List<String> actions, final Run r) {
+                        GlobalRunListener.this.publish(actions, r);
+                    }
+                }
+            );
+        } else {
+            coalescer = null;
+        }
+    }
+    // }}}
+
     // {{{ runToJson
-    private JsonObject runToJson(final Run r) {
+    static JsonObject runToJson(final Run r, final TreePruner pruner) {
         JsonObject json = new JsonObject()
-            .putObject("build", serializeToJson(r))
+            .putObject("build", serializeToJson(r, pruner))
             .putObject(
                 "parent",
                 new JsonObject()
@@ -36,9 +84,38 @@ public class GlobalRunListener extends RunListener<Run> {
             )
         ;
 
+        putNeighbors(json, r, pruner, NEIGHBOR_REFERENCES);
+
+        return json;
+    }
+    // }}}
+
+    // {{{ putNeighbors
+    /**
+     * Adds the previous and next builds.
+     *
+     * @param json the object to add them to
+     * @param r the Run whose neighbors to add
+     * @param pruner determines which properties are serialized
+     * @param references whether to describe them with {@link
+     *        SummarySerializer#reference} instead of serializing them
+     */
+    static void putNeighbors(final JsonObject json,
+                             final Run r,
+                             final TreePruner pruner,
+                             final boolean references)
+    {
         // JsonObject can't handle putObject("foo", null)
-        JsonObject nextBuild = serializeToJson(r.getNextBuild());
-        JsonObject previousBuild = serializeToJson(r.getPreviousBuild());
+        JsonObject nextBuild;
+        JsonObject previousBuild;
+
+        if (references) {
+            nextBuild = SummarySerializer.reference(r.getNextBuild());
+            previousBuild = SummarySerializer.reference(r.getPreviousBuild());
+        } else {
+            nextBuild = serializeToJson(r.getNextBuild(), pruner);
+            previousBuild = serializeToJson(r.getPreviousBuild(), pruner);
+        }
 
         if (nextBuild == null) {
             json.putString("nextBuild", null);
@@ -51,21 +128,72 @@ public class GlobalRunListener extends RunListener<Run> {
         } else {
             json.putObject("previousBuild", previousBuild);
         }
-        
+    }
+    // }}}
+    
+    // {{{ publish
+    /**
+     * @param actions what happened to the Run, in order; the message's
+     *        "action" is the last of them, and if there's more than one they
+     *        are all listed in "actions"
+     * @param r the Run
+     */
+    private void publish(final List<String> actions, final Run r) {
+        if (PAYLOAD_MODE == PayloadMode.SUMMARY) {
+            // projections don't apply to summaries
+            if (PluginImpl.hasConsumers("jenkins.run")) {
+                PluginImpl.ebPublish(
+                    "jenkins.run",
+                    createEvent(actions).putObject("run", SummarySerializer.summarize(r))
+                );
+            }
+        } else {
+            PluginImpl.ebPublish(
+                "jenkins.run",
+                new ProjectedEvent() {
+                    JsonObject build(final TreePruner pruner) {
+                        return createEvent(actions).putObject("run", runToJson(r, pruner));
+                    }
+                }
+            );
+        }
+    }
+    // }}}
+    
+    // {{{ createEvent
+    static JsonObject createEvent(final List<String> actions) {
+        JsonObject json = new JsonObject()
+            .putString("action", actions.get(actions.size() - 1));
+
+        if (actions.size() > 1) {
+            json.putArray("actions", new JsonArray(new ArrayList<Object>(actions)));
+        }
+
         return json;
     }
     // }}}
     
+    // {{{ lifecycle
+    /**
+     * Publishes a lifecycle event, or holds it back to be merged with the
+     * ones that follow it shortly.
+     */
+    private void lifecycle(final String action, final Run r) {
+        if (coalescer == null) {
+            publish(Collections.singletonList(action), r);
+        } else {
+            coalescer.add(action, r);
+        }
+    }
+    // }}}
+    
     // {{{ onStarted
     /** {@inheritDoc} */
     @Override
     public void onStarted(final Run r, final TaskListener listener) {
-        PluginImpl.ebPublish(
-            "jenkins.run",
-            new JsonObject()
-                .putString("action", "started")
-                .putObject("run", runToJson(r))
-        );
+        PluginImpl.getLogStreamer().started(r);
+
+        lifecycle("started", r);
     }
     // }}}
     
@@ -73,12 +201,9 @@ public class GlobalRunListener extends RunListener<Run> {
     /** {@inheritDoc} */
     @Override
     public void onCompleted(final Run r, final TaskListener listener) {
-        PluginImpl.ebPublish(
-            "jenkins.run",
-            new JsonObject()
-                .putString("action", "completed")
-                .putObject("run", runToJson(r))
-        );
+        PluginImpl.getLogStreamer().completed(r);
+
+        lifecycle("completed", r);
     }
     // }}}
     
@@ -86,12 +211,7 @@ public class GlobalRunListener extends RunListener<Run> {
     /** {@inheritDoc} */
     @Override
     public void onFinalized(final Run r) {
-        PluginImpl.ebPublish(
-            "jenkins.run",
-            new JsonObject()
-                .putString("action", "finalized")
-                .putObject("run", runToJson(r))
-        );
+        lifecycle("finalized", r);
     }
     // }}}
     
@@ -99,12 +219,12 @@ public class GlobalRunListener extends RunListener<Run> {
     /** {@inheritDoc} */
     @Override
     public void onDeleted(final Run r) {
-        PluginImpl.ebPublish(
-            "jenkins.run",
-            new JsonObject()
-                .putString("action", "deleted")
-                .putObject("run", runToJson(r))
-        );
+        if (coalescer == null) {
+            publish(Collections.singletonList("deleted"), r);
+        } else {
+            // whatever's held back happened first
+            coalescer.publishNow("deleted", r);
+        }
     }
     // }}}
 }
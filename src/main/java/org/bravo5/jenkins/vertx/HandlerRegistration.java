@@ -0,0 +1,261 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Locale;
+
+/**
+ * An EventBus handler registered with {@link EventBusQueueTaskDispatcher}.
+ */
+class HandlerRegistration {
+    /**
+     * How the dispatcher talks to the handler.
+     */
+    enum Mode {
+        /** One canRun message per queue item. */
+        SYNC,
+
+        /** One canRunBatch message covering the whole queue. */
+        BATCH,
+
+        /**
+         * One canRun message per queue item, without waiting for the reply;
+         * replies only feed {@link AdvisoryStats}.
+         */
+        ADVISORY,
+
+        /**
+         * Never asked; the handler only pushes block rules, which are
+         * removed when it goes away.
+         */
+        PUSH;
+
+        // {{{ fromString
+        /**
+         * @param mode the name used in the register message; may be null
+         * @return the matching Mode
+         * @throws IllegalArgumentException if the mode is unknown
+         */
+        static Mode fromString(final String mode) {
+            Mode m = SYNC;
+
+            if (mode != null) {
+                try {
+                    m = valueOf(mode.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown mode " + mode);
+                }
+            }
+
+            return m;
+        }
+        // }}}
+    }
+
+    /** Maximum number of verdicts to remember per handler. */
+    private static final int MAX_CACHED_VERDICTS = 4096;
+
+    private final String address;
+    private final Mode mode;
+
+    /** Shard group the handler belongs to; null if it sees every item. */
+    private final String group;
+
+    /** Whether the handler wants canTake messages. */
+    private final boolean canTake;
+
+    /** How queue items are described to the handler. */
+    private final PayloadMode payloadMode;
+
+    /** Verdicts the handler said we could reuse. */
+    private final VerdictCache verdictCache = new VerdictCache(MAX_CACHED_VERDICTS);
+
+    /** canTake verdicts the handler said we could reuse. */
+    private final NodeVerdictCache nodeVerdictCache =
+        new NodeVerdictCache(MAX_CACHED_VERDICTS);
+
+    /** Recent reply latencies, used to size the timeout. */
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    /** Only used in advisory mode. */
+    private final AdvisoryStats advisoryStats = new AdvisoryStats();
+
+    private final CircuitBreaker circuitBreaker;
+
+    /** Lease duration; 0 if the registration doesn't expire. */
+    private final long leaseMillis;
+
+    private volatile long leaseExpiresAt;
+
+    // {{{ constructor
+    /**
+     * @param address the handler's EventBus address
+     * @param mode how to talk to the handler
+     * @param group the handler's shard group; may be null
+     * @param canTake whether the handler wants canTake messages
+     * @param payloadMode how queue items are described to the handler
+     * @param circuitBreaker the handler's circuit breaker
+     * @param leaseMillis how long the registration lasts without a
+     *        heartbeat; 0 if it doesn't expire
+     * @param now the current time, in epoch millis
+     */
+    HandlerRegistration(final String address,
+                        final Mode mode,
+                        final String group,
+                        final boolean canTake,
+                        final PayloadMode payloadMode,
+                        final CircuitBreaker circuitBreaker,
+                        final long leaseMillis,
+                        final long now)
+    {
+        this.address = address;
+        this.mode = mode;
+        this.group = group;
+        this.canTake = canTake;
+        this.payloadMode = payloadMode;
+        this.circuitBreaker = circuitBreaker;
+        this.leaseMillis = leaseMillis;
+
+        renewLease(now);
+    }
+    // }}}
+
+    // {{{ fromMessage
+    /**
+     * Builds a registration from a register message body.
+     *
+     * @param body the message body
+     * @param circuitBreaker the handler's circuit breaker
+     * @param now the current time, in epoch millis
+     * @return the registration, or null if no handlerAddress was given
+     * @throws IllegalArgumentException if the mode or payload is unknown, or
+     *         a push handler asks to join a group
+     */
+    static HandlerRegistration fromMessage(final JsonObject body,
+                                           final CircuitBreaker circuitBreaker,
+                                           final long now)
+    {
+        String handlerAddr = body.getString("handlerAddress");
+
+        HandlerRegistration reg = null;
+
+        if (handlerAddr != null) {
+            Number leaseMillis = body.getNumber("leaseMillis");
+            Mode mode = Mode.fromString(body.getString("mode"));
+            String group = body.getString("group");
+
+            if (mode == Mode.PUSH && group != null) {
+                // it'd get a share of the items without ever answering
+                throw new IllegalArgumentException("push handlers can't join a group");
+            }
+
+            reg = new HandlerRegistration(
+                handlerAddr,
+                mode,
+                group,
+                body.getBoolean("canTake", false),
+                PayloadMode.fromString(body.getString("payload")),
+                circuitBreaker,
+                leaseMillis == null ? 0L : leaseMillis.longValue(),
+                now
+            );
+        }
+
+        return reg;
+    }
+    // }}}
+
+    // {{{ getAddress
+    String getAddress() {
+        return address;
+    }
+    // }}}
+
+    // {{{ getMode
+    Mode getMode() {
+        return mode;
+    }
+    // }}}
+
+    // {{{ isAsked
+    /**
+     * @return true if the handler's verdict is waited for
+     */
+    boolean isAsked() {
+        return mode != Mode.ADVISORY && mode != Mode.PUSH;
+    }
+    // }}}
+
+    // {{{ getGroup
+    String getGroup() {
+        return group;
+    }
+    // }}}
+
+    // {{{ isCanTake
+    boolean isCanTake() {
+        return canTake;
+    }
+    // }}}
+
+    // {{{ getPayloadMode
+    PayloadMode getPayloadMode() {
+        return payloadMode;
+    }
+    // }}}
+
+    // {{{ getLeaseMillis
+    long getLeaseMillis() {
+        return leaseMillis;
+    }
+    // }}}
+
+    // {{{ renewLease
+    /**
+     * @param now the current time, in epoch millis
+     */
+    void renewLease(final long now) {
+        leaseExpiresAt = leaseMillis > 0 ? now + leaseMillis : Long.MAX_VALUE;
+    }
+    // }}}
+
+    // {{{ isLeaseExpired
+    /**
+     * @param now the current time, in epoch millis
+     * @return true if the handler hasn't renewed its lease in time
+     */
+    boolean isLeaseExpired(final long now) {
+        return now >= leaseExpiresAt;
+    }
+    // }}}
+
+    // {{{ getVerdictCache
+    VerdictCache getVerdictCache() {
+        return verdictCache;
+    }
+    // }}}
+
+    // {{{ getNodeVerdictCache
+    NodeVerdictCache getNodeVerdictCache() {
+        return nodeVerdictCache;
+    }
+    // }}}
+
+    // {{{ getLatencyTracker
+    LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+    // }}}
+
+    // {{{ getAdvisoryStats
+    AdvisoryStats getAdvisoryStats() {
+        return advisoryStats;
+    }
+    // }}}
+
+    // {{{ getCircuitBreaker
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    // }}}
+}
@@ -0,0 +1,125 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * The most recently published serialization of each Item, keyed by full
+ * name, so that updates can be published as patches against it.
+ *
+ * Every snapshot gets a sequence number, unique across all items, so that
+ * consumers can tell whether a patch applies to the version they have.
+ */
+class ItemSnapshots {
+    private final LruCache<String,Snapshot> snapshots;
+
+    private long lastSeq;
+
+    // {{{ constructor
+    /**
+     * @param maxSize maximum number of items whose snapshot is retained
+     */
+    ItemSnapshots(final int maxSize) {
+        snapshots = new LruCache<>(maxSize);
+    }
+    // }}}
+
+    // {{{ get
+    /**
+     * @param fullName the item's full name
+     * @return the item's snapshot, or null if there is none
+     */
+    Snapshot get(final String fullName) {
+        return snapshots.get(fullName);
+    }
+    // }}}
+
+    // {{{ update
+    /**
+     * Records a new version of an item.
+     *
+     * @param fullName the item's full name
+     * @param json the item's serialization; a copy is retained
+     * @return the new snapshot; its previous version, if any, is available
+     *         from {@link Snapshot#getPrevious}
+     */
+    synchronized Snapshot update(final String fullName, final JsonObject json) {
+        Snapshot previous = snapshots.get(fullName);
+        Snapshot snapshot = new Snapshot(json.copy(), ++lastSeq, previous);
+
+        snapshots.put(fullName, snapshot);
+
+        return snapshot;
+    }
+    // }}}
+
+    // {{{ remove
+    /**
+     * @param fullName the full name of an item that's gone
+     */
+    void remove(final String fullName) {
+        snapshots.remove(fullName);
+    }
+    // }}}
+
+    // {{{ clear
+    void clear() {
+        snapshots.clear();
+    }
+    // }}}
+
+    /**
+     * A published version of an item.
+     */
+    static class Snapshot {
+        private final JsonObject json;
+        private final long seq;
+
+        /** Only set on the snapshot returned by update; null otherwise. */
+        private final JsonObject previousJson;
+        private final long previousSeq;
+
+        // {{{ constructor
+        private Snapshot(final JsonObject json, final long seq, final Snapshot previous) {
+            this.json = json;
+            this.seq = seq;
+            this.previousJson = previous == null ? null : previous.json;
+            this.previousSeq = previous == null ? 0L : previous.seq;
+        }
+        // }}}
+
+        // {{{ getJson
+        /**
+         * @return a copy of the item's serialization
+         */
+        JsonObject getJson() {
+            return json.copy();
+        }
+        // }}}
+
+        // {{{ getSeq
+        long getSeq() {
+            return seq;
+        }
+        // }}}
+
+        // {{{ getPrevious
+        /**
+         * @return the serialization this one replaced, or null if there was
+         *         none; not a copy, so don't modify it
+         */
+        JsonObject getPrevious() {
+            return previousJson;
+        }
+        // }}}
+
+        // {{{ getPreviousSeq
+        /**
+         * @return the sequence number of the serialization this one
+         *         replaced; 0 if there was none
+         */
+        long getPreviousSeq() {
+            return previousSeq;
+        }
+        // }}}
+    }
+}
@@ -9,6 +9,7 @@ import org.vertx.java.core.Handler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
@@ -24,6 +25,8 @@ import hudson.model.ParameterValue;
 import hudson.model.StringParameterValue;
 import hudson.model.Queue;
 import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
 
 import static org.bravo5.jenkins.vertx.SerializeUtil.serializeToJson;
 
@@ -78,6 +81,30 @@ public class JenkinsEventBusHandler implements Handler<Message<JsonObject>>{
                         getQueue(msg);
                         break;
 
+                    case "getMetrics":
+                        getMetrics(msg);
+                        break;
+
+                    case "getItemSnapshot":
+                        getItemSnapshot(msg);
+                        break;
+
+                    case "getRun":
+                        getRun(msg);
+                        break;
+
+                    case "getArtifact":
+                        getArtifact(msg);
+                        break;
+
+                    case "ackArtifact":
+                        ackArtifact(msg);
+                        break;
+
+                    case "cancelArtifact":
+                        cancelArtifact(msg);
+                        break;
+
                     default:
                         sendError(msg, "unknown action " + action);
                         break;
@@ -174,8 +201,182 @@ public class JenkinsEventBusHandler implements Handler<Message<JsonObject>>{
     }
     // }}}
     
+    // {{{ getMetrics
+    private void getMetrics(final Message<JsonObject> msg) {
+        sendOk(msg, new JsonObject().putObject("metrics", Metrics.toJson()));
+    }
+    // }}}
+    
+    // {{{ getItemSnapshot
+    private void getItemSnapshot(final Message<JsonObject> msg) {
+        /*
+        {
+            "action" : "getItemSnapshot",
+            "fullName" : "parameterized"
+        }
+        */
+        String fullName = msg.body.getString("fullName");
+
+        if (fullName == null) {
+            sendError(msg, "missing fullName");
+        } else {
+            ItemSnapshots snapshots = PluginImpl.getItemSnapshots();
+            ItemSnapshots.Snapshot snapshot = snapshots.get(fullName);
+
+            if (snapshot == null) {
+                Item item = jenkins.getItemByFullName(fullName);
+
+                if (item != null) {
+                    // start a new version history that patches will follow
+                    snapshot = snapshots.update(
+                        fullName,
+                        GlobalItemListener.itemToJson(item, SerializeUtil.DEFAULT_PRUNER)
+                    );
+                }
+            }
+
+            if (snapshot == null) {
+                sendError(msg, "no such item");
+            } else {
+                sendOk(
+                    msg,
+                    new JsonObject()
+                        .putObject("item", snapshot.getJson())
+                        .putNumber("seq", snapshot.getSeq())
+                );
+            }
+        }
+    }
+    // }}}
+    
+    // {{{ getRun
+    private void getRun(final Message<JsonObject> msg) {
+        /*
+        {
+            "action" : "getRun",
+            "fullName" : "parameterized",
+            "number" : 11
+        }
+        */
+        String fullName = msg.body.getString("fullName");
+        Number number = msg.body.getNumber("number");
+
+        if (fullName == null) {
+            sendError(msg, "missing fullName");
+        } else if (number == null) {
+            sendError(msg, "missing number");
+        } else {
+            Run run = findRun(fullName, number);
+
+            if (run == null) {
+                sendError(msg, "no such run");
+            } else {
+                sendOk(
+                    msg,
+                    new JsonObject().putObject(
+                        "run",
+                        GlobalRunListener.runToJson(run, SerializeUtil.DEFAULT_PRUNER)
+                    )
+                );
+            }
+        }
+    }
+    // }}}
+    
+    // {{{ getArtifact
+    private void getArtifact(final Message<JsonObject> msg) throws IOException {
+        /*
+        {
+            "action" : "getArtifact",
+            "fullName" : "parameterized",
+            "number" : 12,
+            "path" : "target/app.war",
+            "address" : "my.artifact.consumer",
+            // optional; number of chunks that may be sent before an ack
+            "credits" : 4,
+            // optional; resume an interrupted transfer
+            "fromChunk" : 0
+        }
+        */
+        String fullName = msg.body.getString("fullName");
+        Number number = msg.body.getNumber("number");
+        String path = msg.body.getString("path");
+        String addr = msg.body.getString("address");
+
+        Run run = fullName == null || number == null ? null : findRun(fullName, number);
+
+        if (run == null) {
+            sendError(msg, "no such run");
+        } else if (path == null) {
+            sendError(msg, "missing path");
+        } else if (addr == null) {
+            sendError(msg, "missing address");
+        } else {
+            try {
+                sendOk(
+                    msg,
+                    PluginImpl.getArtifactStreamer().start(
+                        addr,
+                        run.getArtifactsDir(),
+                        path,
+                        msg.body.getNumber("fromChunk", 0).intValue(),
+                        msg.body.getNumber("credits", ArtifactStreamer.DEFAULT_CREDITS).intValue()
+                    )
+                );
+            } catch (IllegalArgumentException e) {
+                sendError(msg, e.getMessage());
+            }
+        }
+    }
+    // }}}
+    
+    // {{{ ackArtifact
+    private void ackArtifact(final Message<JsonObject> msg) {
+        /*
+        {
+            "action" : "ackArtifact",
+            "address" : "my.artifact.consumer",
+            "credits" : 4
+        }
+        */
+        String addr = msg.body.getString("address");
+        Number credits = msg.body.getNumber("credits");
+
+        if (addr == null || credits == null) {
+            sendError(msg, "missing address or credits");
+        } else if (! PluginImpl.getArtifactStreamer().ack(addr, credits.intValue())) {
+            sendError(msg, "no such transfer");
+        } else {
+            sendOk(msg);
+        }
+    }
+    // }}}
+    
+    // {{{ cancelArtifact
+    private void cancelArtifact(final Message<JsonObject> msg) {
+        String addr = msg.body.getString("address");
+
+        if (addr == null || ! PluginImpl.getArtifactStreamer().cancel(addr)) {
+            sendError(msg, "no such transfer");
+        } else {
+            sendOk(msg);
+        }
+    }
+    // }}}
+    
     // ========================================================== private stuff
 
+    // {{{ findRun
+    /**
+     * @return the Run, or null if there's no such job or build
+     */
+    private Run findRun(final String fullName, final Number number) {
+        Job job = jenkins.getItemByFullName(fullName, Job.class);
+
+        return job == null ? null : job.getBuildByNumber(number.intValue());
+    }
+    // }}}
+
     // {{{ sendError
     private void sendError(final Message<JsonObject> message, final String error) {
         sendError(message, error, null);
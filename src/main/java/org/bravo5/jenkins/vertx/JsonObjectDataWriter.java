@@ -0,0 +1,212 @@
+package org.bravo5.jenkins.vertx;
+
+import org.kohsuke.stapler.export.DataWriter;
+import org.kohsuke.stapler.export.ExportConfig;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * DataWriter that builds a JsonObject as the model is walked, rather than
+ * rendering JSON text that then has to be parsed again.
+ */
+class JsonObjectDataWriter implements DataWriter {
+    private final ExportConfig exportConfig;
+
+    /** Objects and arrays that have been started but not yet ended. */
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    /** Name of the next value; null inside an array. */
+    private String pendingName;
+
+    private JsonObject root;
+
+    // {{{ constructor
+    /**
+     * @param exportConfig the configuration the model is exported with
+     */
+    JsonObjectDataWriter(final ExportConfig exportConfig) {
+        this.exportConfig = exportConfig;
+    }
+    // }}}
+
+    // {{{ getResult
+    /**
+     * @return the outermost object written; an empty one if nothing was
+     */
+    JsonObject getResult() {
+        return root == null ? new JsonObject() : root;
+    }
+    // }}}
+
+    // {{{ getExportConfig
+    /**
+     * @return the configuration the model is exported with
+     */
+    public ExportConfig getExportConfig() {
+        return exportConfig;
+    }
+    // }}}
+
+    // {{{ name
+    /** {@inheritDoc} */
+    public void name(final String name) {
+        pendingName = name;
+    }
+    // }}}
+
+    // {{{ valuePrimitive
+    /** {@inheritDoc} */
+    public void valuePrimitive(final Object v) {
+        if (v == null) {
+            valueNull();
+        } else if (v instanceof Number || v instanceof Boolean) {
+            add(v);
+        } else {
+            // chars, mostly
+            add(v.toString());
+        }
+    }
+    // }}}
+
+    // {{{ value
+    /** {@inheritDoc} */
+    public void value(final String v) {
+        add(v);
+    }
+    // }}}
+
+    // {{{ valueNull
+    /** {@inheritDoc} */
+    public void valueNull() {
+        add(null);
+    }
+    // }}}
+
+    // {{{ type
+    /**
+     * Only invoked by Stapler versions that know about it; the class isn't
+     * recorded, as with the JSON flavor this plugin builds against.
+     *
+     * @param expected the declared type
+     * @param actual the object's class; may be null
+     */
+    public void type(final Type expected, final Class actual) {
+    }
+    // }}}
+
+    // {{{ startArray
+    /** {@inheritDoc} */
+    public void startArray() {
+        stack.push(new Frame(pendingName, new JsonArray()));
+        pendingName = null;
+    }
+    // }}}
+
+    // {{{ endArray
+    /** {@inheritDoc} */
+    public void endArray() {
+        Frame frame = stack.pop();
+
+        pendingName = frame.name;
+        add(frame.array);
+    }
+    // }}}
+
+    // {{{ startObject
+    /** {@inheritDoc} */
+    public void startObject() {
+        stack.push(new Frame(pendingName, new JsonObject()));
+        pendingName = null;
+    }
+    // }}}
+
+    // {{{ endObject
+    /** {@inheritDoc} */
+    public void endObject() {
+        Frame frame = stack.pop();
+
+        if (stack.isEmpty()) {
+            root = frame.object;
+        } else {
+            pendingName = frame.name;
+            add(frame.object);
+        }
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ add
+    /**
+     * Adds a value to the innermost open object or array.
+     */
+    private void add(final Object value) {
+        Frame frame = stack.peek();
+
+        if (frame == null) {
+            throw new IllegalStateException("value outside of an object");
+        }
+
+        if (frame.array != null) {
+            JsonArray arr = frame.array;
+
+            if (value instanceof JsonObject) {
+                arr.addObject((JsonObject) value);
+            } else if (value instanceof JsonArray) {
+                arr.addArray((JsonArray) value);
+            } else if (value instanceof Number) {
+                arr.addNumber((Number) value);
+            } else if (value instanceof Boolean) {
+                arr.addBoolean((Boolean) value);
+            } else {
+                arr.addString((String) value);
+            }
+        } else {
+            JsonObject obj = frame.object;
+
+            if (value instanceof JsonObject) {
+                obj.putObject(pendingName, (JsonObject) value);
+            } else if (value instanceof JsonArray) {
+                obj.putArray(pendingName, (JsonArray) value);
+            } else if (value instanceof Number) {
+                obj.putNumber(pendingName, (Number) value);
+            } else if (value instanceof Boolean) {
+                obj.putBoolean(pendingName, (Boolean) value);
+            } else {
+                obj.putString(pendingName, (String) value);
+            }
+        }
+
+        pendingName = null;
+    }
+    // }}}
+
+    /**
+     * An object or array being written, and the name it goes under in its
+     * parent.
+     */
+    private static class Frame {
+        private final String name;
+        private final JsonObject object;
+        private final JsonArray array;
+
+        // {{{ constructors
+        Frame(final String name, final JsonObject object) {
+            this.name = name;
+            this.object = object;
+            this.array = null;
+        }
+
+        Frame(final String name, final JsonArray array) {
+            this.name = name;
+            this.object = null;
+            this.array = array;
+        }
+        // }}}
+    }
+}
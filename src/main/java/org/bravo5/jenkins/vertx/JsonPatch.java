@@ -0,0 +1,158 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes RFC 6902 JSON patches between two versions of an object.
+ *
+ * Objects are diffed member by member; arrays and scalars that differ are
+ * replaced as a whole, which keeps patches simple to apply and is what
+ * serialized Items mostly consist of anyway.
+ */
+final class JsonPatch {
+    /**
+     * Utility classes don't get constructors.
+     */
+    private JsonPatch() {
+        throw new UnsupportedOperationException("don't do that.");
+    }
+
+    // {{{ diff
+    /**
+     * @param from the previous version
+     * @param to the current version
+     * @return the operations that turn from into to; empty if they're equal
+     */
+    static JsonArray diff(final JsonObject from, final JsonObject to) {
+        List<Object> ops = new ArrayList<>();
+
+        diff("", from.toMap(), to.toMap(), ops);
+
+        return new JsonArray(ops);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ diff
+    private static void diff(final String path,
+                             final Map<?,?> from,
+                             final Map<?,?> to,
+                             final List<Object> ops)
+    {
+        for (Object key : from.keySet()) {
+            if (! to.containsKey(key)) {
+                ops.add(op("remove", path + "/" + escape(String.valueOf(key)), null, false));
+            }
+        }
+
+        for (Map.Entry<?,?> entry : to.entrySet()) {
+            String childPath = path + "/" + escape(String.valueOf(entry.getKey()));
+            Object newValue = entry.getValue();
+
+            if (! from.containsKey(entry.getKey())) {
+                ops.add(op("add", childPath, newValue, true));
+            } else {
+                Object oldValue = from.get(entry.getKey());
+
+                if (oldValue instanceof Map && newValue instanceof Map) {
+                    diff(childPath, (Map<?,?>) oldValue, (Map<?,?>) newValue, ops);
+                } else if (! valueEquals(oldValue, newValue)) {
+                    ops.add(op("replace", childPath, newValue, true));
+                }
+            }
+        }
+    }
+    // }}}
+
+    // {{{ valueEquals
+    /**
+     * Like equals(), except that numbers are compared by value: a copy of a
+     * JsonObject is re-parsed, so a Long that fits in an int comes back as an
+     * Integer.
+     */
+    private static boolean valueEquals(final Object a, final Object b) {
+        boolean equal;
+
+        if (a instanceof Number && b instanceof Number) {
+            equal = toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b)) == 0;
+        } else if (a instanceof Map && b instanceof Map) {
+            Map<?,?> mapA = (Map<?,?>) a;
+            Map<?,?> mapB = (Map<?,?>) b;
+
+            equal = mapA.keySet().equals(mapB.keySet());
+
+            for (Iterator<?> iter = mapA.keySet().iterator(); equal && iter.hasNext(); ) {
+                Object key = iter.next();
+
+                equal = valueEquals(mapA.get(key), mapB.get(key));
+            }
+        } else if (a instanceof List && b instanceof List) {
+            List<?> listA = (List<?>) a;
+            List<?> listB = (List<?>) b;
+
+            equal = listA.size() == listB.size();
+
+            for (int i = 0; equal && i < listA.size(); i++) {
+                equal = valueEquals(listA.get(i), listB.get(i));
+            }
+        } else {
+            equal = a == null ? b == null : a.equals(b);
+        }
+
+        return equal;
+    }
+    // }}}
+
+    // {{{ toBigDecimal
+    private static BigDecimal toBigDecimal(final Number number) {
+        BigDecimal value;
+
+        if (number instanceof BigDecimal) {
+            value = (BigDecimal) number;
+        } else if (number instanceof Double || number instanceof Float) {
+            value = new BigDecimal(number.doubleValue());
+        } else {
+            value = new BigDecimal(number.toString());
+        }
+
+        return value;
+    }
+    // }}}
+
+    // {{{ op
+    private static Map<String,Object> op(final String op,
+                                         final String path,
+                                         final Object value,
+                                         final boolean withValue)
+    {
+        Map<String,Object> json = new LinkedHashMap<>();
+
+        json.put("op", op);
+        json.put("path", path);
+
+        if (withValue) {
+            json.put("value", value);
+        }
+
+        return json;
+    }
+    // }}}
+
+    // {{{ escape
+    /**
+     * Escapes a member name for use in a JSON pointer (RFC 6901).
+     */
+    private static String escape(final String key) {
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+    // }}}
+}
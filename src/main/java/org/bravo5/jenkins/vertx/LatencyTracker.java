@@ -0,0 +1,79 @@
+package org.bravo5.jenkins.vertx;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent reply latencies of a handler and derives a timeout
+ * from them.
+ */
+class LatencyTracker {
+    /** Number of latencies retained. */
+    private static final int SAMPLES = 128;
+
+    /** Samples required before the timeout adapts. */
+    private static final int MIN_SAMPLES = 20;
+
+    /** Headroom applied to the observed p99. */
+    private static final int P99_MULTIPLIER = 2;
+
+    /** Lower bound for the adapted timeout. */
+    private static final long MIN_TIMEOUT_MILLIS = 50L;
+
+    private final long[] latencies = new long[SAMPLES];
+    private int count;
+    private int next;
+
+    /** Cached p99; -1 when it needs to be recomputed. */
+    private long p99 = -1L;
+
+    // {{{ record
+    /**
+     * @param latencyMillis how long a reply took; the timeout if there was
+     *        no reply
+     */
+    synchronized void record(final long latencyMillis) {
+        latencies[next] = latencyMillis;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+        p99 = -1L;
+    }
+    // }}}
+
+    // {{{ getP99
+    /**
+     * @return the 99th percentile of the retained latencies, or -1 if there
+     *         are none
+     */
+    synchronized long getP99() {
+        if (p99 < 0 && count > 0) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+
+            p99 = sorted[Math.min(count - 1, (int) Math.ceil(count * 0.99) - 1)];
+        }
+
+        return p99;
+    }
+    // }}}
+
+    // {{{ getTimeoutMillis
+    /**
+     * @param ceilingMillis the configured maximum timeout
+     * @return how long to wait for the handler's next reply
+     */
+    long getTimeoutMillis(final long ceilingMillis) {
+        long timeout = ceilingMillis;
+
+        synchronized (this) {
+            if (count >= MIN_SAMPLES) {
+                timeout = Math.min(
+                    ceilingMillis,
+                    Math.max(MIN_TIMEOUT_MILLIS, getP99() * P99_MULTIPLIER)
+                );
+            }
+        }
+
+        return timeout;
+    }
+    // }}}
+}
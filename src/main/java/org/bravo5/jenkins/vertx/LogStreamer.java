@@ -0,0 +1,475 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.Handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jenkins.model.Jenkins;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams Run console logs to consumers that subscribe on the
+ * <code>jenkins.run.log</code> address.  New output is read from the log
+ * file with positional reads, starting at each subscriber's own offset, and
+ * sent in chunks of whole lines on every flush.
+ */
+class LogStreamer implements Handler<Message<JsonObject>> {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final String LOG_ADDR = "jenkins.run.log";
+
+    static final String METRIC_CHUNKS = "log.chunks";
+    static final String METRIC_BYTES = "log.bytes";
+
+    /** Each subscription costs a file read per flush. */
+    private static final int MAX_SUBSCRIPTIONS = 256;
+
+    /** Keeps one busy log from holding up the others. */
+    private static final int MAX_CHUNKS_PER_FLUSH = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final EventBus eventBus;
+    private final Jenkins jenkins;
+    private final int maxChunkBytes;
+
+    /** Subscriptions keyed by the address chunks are sent to. */
+    private final ConcurrentMap<String,Subscription> subscriptions =
+        new ConcurrentHashMap<>();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> flushFuture;
+
+    // {{{ constructor
+    /**
+     * @param eventBus the EventBus
+     * @param jenkins used to look up Runs
+     * @param scheduler runs the periodic flush; none if null
+     * @param flushIntervalMillis how long output is collected before it's sent
+     * @param maxChunkBytes largest chunk sent
+     */
+    LogStreamer(final EventBus eventBus,
+                final Jenkins jenkins,
+                final ScheduledExecutorService scheduler,
+                final long flushIntervalMillis,
+                final int maxChunkBytes)
+    {
+        this.eventBus = eventBus;
+        this.jenkins = jenkins;
+        this.scheduler = scheduler;
+        this.maxChunkBytes = maxChunkBytes;
+
+        eventBus.registerHandler(LOG_ADDR, this);
+
+        if (scheduler != null) {
+            flushFuture = scheduler.scheduleWithFixedDelay(
+                flushTask,
+                flushIntervalMillis,
+                flushIntervalMillis,
+                TimeUnit.MILLISECONDS
+            );
+        }
+    }
+    // }}}
+
+    // {{{ close
+    void close() {
+        eventBus.unregisterHandler(LOG_ADDR, this);
+
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+        }
+
+        subscriptions.clear();
+    }
+    // }}}
+
+    // {{{ started
+    /**
+     * Attaches subscriptions that are waiting for the next build of the
+     * Run's job.
+     *
+     * @param run a Run that just started
+     */
+    void started(final Run run) {
+        String fullName = run.getParent().getFullName();
+
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.attach(fullName, run);
+        }
+    }
+    // }}}
+
+    // {{{ completed
+    /**
+     * Sends what's left of the Run's log without waiting for the next flush.
+     *
+     * @param run a Run that just completed
+     */
+    void completed(final Run run) {
+        if (scheduler != null) {
+            scheduler.execute(flushTask);
+        }
+    }
+    // }}}
+
+    // {{{ flush
+    /**
+     * Sends each subscriber the output written since the last flush.
+     */
+    void flush() {
+        for (Subscription subscription : subscriptions.values()) {
+            try {
+                if (subscription.flush()) {
+                    subscriptions.remove(subscription.address, subscription);
+                }
+            } catch (IOException e) {
+                logger.warn("unable to read log for " + subscription.address, e);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ subscribe
+    /**
+     * @param address where chunks are sent
+     * @param fullName the job's full name
+     * @param run the Run whose log to stream; null for the job's next build
+     * @param offset where in the log to start
+     * @return false if there are too many subscriptions already
+     */
+    boolean subscribe(final String address,
+                      final String fullName,
+                      final Run run,
+                      final long offset)
+    {
+        boolean subscribed = false;
+
+        if (subscriptions.containsKey(address) || subscriptions.size() < MAX_SUBSCRIPTIONS) {
+            subscriptions.put(address, new Subscription(address, fullName, run, offset));
+
+            subscribed = true;
+        }
+
+        return subscribed;
+    }
+    // }}}
+
+    // {{{ handle
+    /** {@inheritDoc} */
+    public void handle(final Message<JsonObject> msg) {
+        String action = msg.body.getString("action");
+
+        if (action == null) {
+            sendError(msg, "no action provided");
+        } else {
+            switch (action) {
+                case "subscribe":
+                    subscribe(msg);
+                    break;
+
+                case "unsubscribe":
+                    unsubscribe(msg);
+                    break;
+
+                case "list":
+                    list(msg);
+                    break;
+
+                default:
+                    sendError(msg, "unknown action " + action);
+                    break;
+            }
+        }
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ subscribe
+    private void subscribe(final Message<JsonObject> msg) {
+        /*
+        {
+            "action":"subscribe",
+            "address":"my.log.consumer",
+            "fullName":"parameterized",
+            // optional; the job's next build if missing
+            "number":12,
+            // optional; resume where a previous subscription left off
+            "offset":0
+        }
+        */
+
+        String addr = msg.body.getString("address");
+        String fullName = msg.body.getString("fullName");
+        Number number = msg.body.getNumber("number");
+        Number offset = msg.body.getNumber("offset");
+
+        Job job = fullName == null ? null : jenkins.getItemByFullName(fullName, Job.class);
+        Run run = job == null || number == null ? null : job.getBuildByNumber(number.intValue());
+
+        if (addr == null) {
+            sendError(msg, "missing address");
+        } else if (job == null) {
+            sendError(msg, "no such job");
+        } else if (number != null && run == null) {
+            sendError(msg, "no such run");
+        } else if (offset != null && offset.longValue() < 0) {
+            sendError(msg, "invalid offset " + offset);
+        } else if (
+            ! subscribe(addr, fullName, run, offset == null ? 0L : offset.longValue())
+        ) {
+            sendError(msg, "too many subscriptions");
+        } else {
+            sendOk(msg, null);
+        }
+    }
+    // }}}
+
+    // {{{ unsubscribe
+    private void unsubscribe(final Message<JsonObject> msg) {
+        String addr = msg.body.getString("address");
+
+        if (addr == null || subscriptions.remove(addr) == null) {
+            sendError(msg, "not subscribed");
+        } else {
+            sendOk(msg, null);
+        }
+    }
+    // }}}
+
+    // {{{ list
+    private void list(final Message<JsonObject> msg) {
+        JsonArray jsonSubscriptions = new JsonArray();
+
+        for (Subscription subscription : subscriptions.values()) {
+            jsonSubscriptions.addObject(subscription.toJson());
+        }
+
+        sendOk(msg, new JsonObject().putArray("subscriptions", jsonSubscriptions));
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message, final String error) {
+        logger.error(error);
+
+        message.reply(
+            new JsonObject()
+                .putString("status", "error")
+                .putString("message", error)
+        );
+    }
+    // }}}
+
+    // {{{ sendOk
+    private void sendOk(final Message<JsonObject> message, final JsonObject obj) {
+        JsonObject resp = new JsonObject()
+            .putString("status", "ok");
+
+        if (obj != null) {
+            resp.putObject("result", obj);
+        }
+
+        message.reply(resp);
+    }
+    // }}}
+
+    // {{{ chunkEnd
+    /**
+     * Only whole lines are sent while the log is still being written, so
+     * that neither lines nor multi-byte characters are split across chunks.
+     *
+     * @return the length of the part of the chunk that can be sent now
+     */
+    private static int chunkEnd(final byte[] bytes, final int length, final boolean full) {
+        int end = length;
+
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+
+        if (end == 0 && full) {
+            // one very long line; split it before its last character, which
+            // may be incomplete
+            end = length - 1;
+
+            while (end > 0 && (bytes[end] & 0xc0) == 0x80) {
+                end--;
+            }
+
+            if (end == 0) {
+                end = length;
+            }
+        }
+
+        return end;
+    }
+    // }}}
+
+    /**
+     * One consumer following one Run's log.
+     */
+    private class Subscription {
+        private final String address;
+        private final String fullName;
+
+        /** Null until the job's next build starts. */
+        private Run run;
+        private long offset;
+
+        // {{{ constructor
+        Subscription(final String address,
+                     final String fullName,
+                     final Run run,
+                     final long offset)
+        {
+            this.address = address;
+            this.fullName = fullName;
+            this.run = run;
+            this.offset = offset;
+        }
+        // }}}
+
+        // {{{ attach
+        synchronized void attach(final String startedFullName, final Run started) {
+            if (run == null && fullName.equals(startedFullName)) {
+                run = started;
+            }
+        }
+        // }}}
+
+        // {{{ flush
+        /**
+         * @return true if the whole log has been sent
+         */
+        synchronized boolean flush() throws IOException {
+            boolean done = false;
+
+            if (run != null) {
+                // checked before the size, so that nothing written in between
+                // is missed
+                boolean updating = run.isLogUpdated();
+                File logFile = run.getLogFile();
+
+                if (logFile.exists()) {
+                    try (
+                        FileChannel channel =
+                            FileChannel.open(logFile.toPath(), StandardOpenOption.READ)
+                    ) {
+                        done = send(channel, updating);
+                    }
+                } else {
+                    done = ! updating;
+                }
+
+                if (done) {
+                    eventBus.send(address, chunk(offset, offset, "").putBoolean("complete", true));
+                }
+            }
+
+            return done;
+        }
+        // }}}
+
+        // {{{ send
+        private boolean send(final FileChannel channel, final boolean updating)
+            throws IOException
+        {
+            long size = channel.size();
+            int chunks = 0;
+            boolean blocked = false;
+
+            Charset charset = run.getCharset();
+
+            if (charset == null) {
+                charset = UTF8;
+            }
+
+            while (offset < size && chunks < MAX_CHUNKS_PER_FLUSH && ! blocked) {
+                ByteBuffer buf = ByteBuffer.allocate(
+                    (int) Math.min(maxChunkBytes, size - offset)
+                );
+
+                int read = 0;
+                while (buf.hasRemaining() && read >= 0) {
+                    read = channel.read(buf, offset + buf.position());
+                }
+
+                int length = buf.position();
+                int end = updating
+                    ? chunkEnd(buf.array(), length, length == maxChunkBytes)
+                    : length;
+
+                if (end == 0) {
+                    // wait for the rest of the line
+                    blocked = true;
+                } else {
+                    eventBus.send(
+                        address,
+                        chunk(offset, offset + end, new String(buf.array(), 0, end, charset))
+                    );
+
+                    Metrics.increment(METRIC_CHUNKS);
+                    Metrics.add(METRIC_BYTES, end);
+
+                    offset += end;
+                    chunks++;
+                }
+            }
+
+            return ! updating && offset >= size;
+        }
+        // }}}
+
+        // {{{ chunk
+        private JsonObject chunk(final long from, final long to, final String text) {
+            return new JsonObject()
+                .putString("fullName", fullName)
+                .putNumber("number", run.getNumber())
+                .putNumber("offset", from)
+                .putNumber("nextOffset", to)
+                .putString("text", text);
+        }
+        // }}}
+
+        // {{{ toJson
+        synchronized JsonObject toJson() {
+            JsonObject json = new JsonObject()
+                .putString("address", address)
+                .putString("fullName", fullName)
+                .putNumber("offset", offset);
+
+            if (run != null) {
+                json.putNumber("number", run.getNumber());
+            }
+
+            return json;
+        }
+        // }}}
+    }
+}
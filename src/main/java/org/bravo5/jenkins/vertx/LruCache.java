@@ -0,0 +1,70 @@
+package org.bravo5.jenkins.vertx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small thread-safe, size-bounded map that evicts the least recently used
+ * entry once full.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class LruCache<K,V> {
+    private final Map<K,V> entries;
+
+    // {{{ constructor
+    /**
+     * @param maxSize maximum number of entries retained
+     */
+    LruCache(final int maxSize) {
+        entries = new LinkedHashMap<K,V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K,V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+    // }}}
+
+    // {{{ get
+    synchronized V get(final K key) {
+        return entries.get(key);
+    }
+    // }}}
+
+    // {{{ put
+    synchronized void put(final K key, final V value) {
+        entries.put(key, value);
+    }
+    // }}}
+
+    // {{{ remove
+    synchronized V remove(final K key) {
+        return entries.remove(key);
+    }
+    // }}}
+
+    // {{{ clear
+    synchronized void clear() {
+        entries.clear();
+    }
+    // }}}
+
+    // {{{ size
+    synchronized int size() {
+        return entries.size();
+    }
+    // }}}
+
+    // {{{ keys
+    /**
+     * @return a snapshot of the current keys, least recently used first
+     */
+    synchronized List<K> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+    // }}}
+}
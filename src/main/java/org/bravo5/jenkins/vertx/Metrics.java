@@ -0,0 +1,81 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin-wide counters, retrievable with the <code>getMetrics</code> action
+ * on the <code>jenkins</code> address.
+ */
+final class Metrics {
+    private static final ConcurrentMap<String,AtomicLong> counters =
+        new ConcurrentHashMap<>();
+
+    // {{{ constructor
+    private Metrics() {
+    }
+    // }}}
+
+    // {{{ increment
+    /**
+     * @param name the counter to increment
+     */
+    static void increment(final String name) {
+        add(name, 1L);
+    }
+    // }}}
+
+    // {{{ add
+    /**
+     * @param name the counter to add to
+     * @param delta the amount to add
+     */
+    static void add(final String name, final long delta) {
+        AtomicLong counter = counters.get(name);
+
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+
+            counter = counters.putIfAbsent(name, created);
+
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        counter.addAndGet(delta);
+    }
+    // }}}
+
+    // {{{ get
+    /**
+     * @param name the counter to retrieve
+     * @return the counter's value; zero if it has never been touched
+     */
+    static long get(final String name) {
+        AtomicLong counter = counters.get(name);
+
+        return counter == null ? 0L : counter.get();
+    }
+    // }}}
+
+    // {{{ toJson
+    /**
+     * @return all counters, sorted by name
+     */
+    static JsonObject toJson() {
+        JsonObject json = new JsonObject();
+
+        for (Map.Entry<String,AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            json.putNumber(entry.getKey(), entry.getValue().get());
+        }
+
+        return json;
+    }
+    // }}}
+}
@@ -0,0 +1,127 @@
+package org.bravo5.jenkins.vertx;
+
+import hudson.model.Node;
+import hudson.model.Queue;
+
+/**
+ * Remembers canTake verdicts, keyed on the node's name and labels and the
+ * item's task name.  A change to a node's labels therefore invalidates its
+ * verdicts.
+ */
+class NodeVerdictCache {
+    private final LruCache<Key,Verdict> verdicts;
+
+    // {{{ constructor
+    /**
+     * @param maxSize maximum number of verdicts retained
+     */
+    NodeVerdictCache(final int maxSize) {
+        verdicts = new LruCache<>(maxSize);
+    }
+    // }}}
+
+    // {{{ get
+    /**
+     * @param node the node being offered
+     * @param queueItem the item being dispatched
+     * @param now the current time, in epoch millis
+     * @return the cached verdict, or null if there is no live one
+     */
+    Verdict get(final Node node, final Queue.Item queueItem, final long now) {
+        Key key = new Key(node, queueItem);
+        Verdict verdict = verdicts.get(key);
+
+        if (verdict != null && verdict.isExpired(now)) {
+            verdicts.remove(key);
+            verdict = null;
+        }
+
+        return verdict;
+    }
+    // }}}
+
+    // {{{ put
+    /**
+     * Caches a verdict, unless it has already expired.
+     *
+     * @param node the node the verdict applies to
+     * @param queueItem the item the verdict applies to
+     * @param verdict the verdict
+     * @param now the current time, in epoch millis
+     */
+    void put(final Node node,
+             final Queue.Item queueItem,
+             final Verdict verdict,
+             final long now)
+    {
+        if (! verdict.isExpired(now)) {
+            verdicts.put(new Key(node, queueItem), verdict);
+        }
+    }
+    // }}}
+
+    // {{{ invalidateAll
+    void invalidateAll() {
+        verdicts.clear();
+    }
+    // }}}
+
+    // {{{ invalidateTask
+    /**
+     * @param taskName name of the task whose verdicts are discarded
+     */
+    void invalidateTask(final String taskName) {
+        for (Key key : verdicts.keys()) {
+            if (taskName.equals(key.taskName)) {
+                verdicts.remove(key);
+            }
+        }
+    }
+    // }}}
+
+    /**
+     * Identifies a task on a node with a particular set of labels.
+     */
+    private static class Key {
+        private final String nodeName;
+        private final String labels;
+        private final String taskName;
+
+        // {{{ constructor
+        Key(final Node node, final Queue.Item queueItem) {
+            nodeName = node.getNodeName();
+            labels = node.getLabelString();
+            taskName = queueItem.task.getName();
+        }
+        // }}}
+
+        // {{{ equals
+        /** {@inheritDoc} */
+        @Override
+        public boolean equals(final Object other) {
+            if (! (other instanceof Key)) {
+                return false;
+            }
+
+            Key that = (Key) other;
+
+            return (nodeName == null ? that.nodeName == null : nodeName.equals(that.nodeName))
+                && (labels == null ? that.labels == null : labels.equals(that.labels))
+                && (taskName == null ? that.taskName == null : taskName.equals(that.taskName));
+        }
+        // }}}
+
+        // {{{ hashCode
+        /** {@inheritDoc} */
+        @Override
+        public int hashCode() {
+            int hash = 41;
+            hash = 23 * hash + (nodeName != null ? nodeName.hashCode() : 0);
+            hash = 23 * hash + (labels != null ? labels.hashCode() : 0);
+            hash = 23 * hash + (taskName != null ? taskName.hashCode() : 0);
+
+            return hash;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,57 @@
+package org.bravo5.jenkins.vertx;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * How much of an object goes into a message.
+ */
+enum PayloadMode {
+    /** Everything the remote API exports; see {@link SerializeUtil}. */
+    FULL,
+
+    /** The fixed, compact schema of {@link SummarySerializer}. */
+    SUMMARY;
+
+    // {{{ fromString
+    /**
+     * @param mode the mode's name; may be null
+     * @return the matching PayloadMode
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    static PayloadMode fromString(final String mode) {
+        PayloadMode payloadMode = FULL;
+
+        if (mode != null) {
+            try {
+                payloadMode = valueOf(mode.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown payload " + mode);
+            }
+        }
+
+        return payloadMode;
+    }
+    // }}}
+
+    // {{{ fromProperty
+    /**
+     * @param property name of the system property holding the mode
+     * @return the configured PayloadMode; FULL if it's missing or unknown
+     */
+    static PayloadMode fromProperty(final String property) {
+        PayloadMode payloadMode = FULL;
+
+        try {
+            payloadMode = fromString(System.getProperty(property));
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(PayloadMode.class).error(
+                "ignoring {}: {}", property, e.getMessage()
+            );
+        }
+
+        return payloadMode;
+    }
+    // }}}
+}
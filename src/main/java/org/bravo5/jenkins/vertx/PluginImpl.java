@@ -4,21 +4,67 @@ import hudson.Plugin;
 import jenkins.model.Jenkins;
 import hudson.model.queue.QueueTaskDispatcher;
 
+import org.bravo5.jenkins.vertx.codec.CborCodec;
+
 import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Entry point into the plugin.  Loaded before all @Extensions.
  */
 public class PluginImpl extends Plugin {
+    static final String METRIC_PUBLISH_SKIPPED = "publish.skipped";
+
     /**
      * Reference to the ClassLoader for this class.
      */
     private static final ClassLoader CLASS_LOADER = PluginImpl.class.getClassLoader();
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Set the system property to "cbor" to publish events as CBOR-encoded
+     * Buffers instead of JsonObjects; see {@link CborCodec}.
+     */
+    private static final boolean PUBLISH_CBOR = "cbor".equals(
+        System.getProperty(PluginImpl.class.getName() + ".wireFormat")
+    );
+
+    /**
+     * Set the system property to a size in bytes to publish encoded events
+     * at least that large in a {@link CompressedEnvelope}; 0 disables it.
+     */
+    private static final int COMPRESS_THRESHOLD =
+        Integer.getInteger(PluginImpl.class.getName() + ".compressThreshold", 0);
+
+    /**
+     * Set the system property to "true" to only serialize and publish Run
+     * and Item events while somebody is subscribed; see
+     * {@link SubscriptionRegistry}.
+     */
+    private static final boolean REQUIRE_SUBSCRIPTIONS =
+        Boolean.getBoolean(PluginImpl.class.getName() + ".requireSubscriptions");
+
+    /**
+     * Set the system property to an interval to publish the progress of
+     * building Runs; 0 disables it.  See {@link ProgressSampler}.
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS =
+        Long.getLong(ProgressSampler.class.getName() + ".intervalMillis", 0L);
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     /**
@@ -31,6 +77,53 @@ public class PluginImpl extends Plugin {
      */
     private static Vertx vertx;
 
+    /**
+     * Runs the plugin's periodic housekeeping.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Field projections requested by consumers.
+     */
+    private static ProjectionRegistry projections;
+
+    /**
+     * Consumers that have announced themselves.
+     */
+    private static SubscriptionRegistry subscriptions;
+
+    /**
+     * Streams console logs.
+     */
+    private static LogStreamer logStreamer;
+
+    /**
+     * Sends artifacts in chunks.
+     */
+    private static ArtifactStreamer artifactStreamer;
+
+    /**
+     * Publishes the progress of building Runs, if enabled.
+     */
+    private static ProgressSampler progressSampler;
+
+    /**
+     * Runs the progressSampler, if enabled.
+     */
+    private static ScheduledExecutorService progressScheduler;
+
+    /**
+     * Publishes coalesced Run events, if enabled.
+     */
+    private static ScheduledExecutorService coalesceScheduler;
+
+    /**
+     * Last published version of each item, for patches.
+     */
+    private static final ItemSnapshots itemSnapshots = new ItemSnapshots(
+        Integer.getInteger(PluginImpl.class.getName() + ".maxItemSnapshots", 4096)
+    );
+
     /**
      * Main request dispatcher.
      */
@@ -52,7 +145,42 @@ public class PluginImpl extends Plugin {
         // https://github.com/vert-x/vert.x/issues/355
         vertx = Vertx.newVertx(25000, "0.0.0.0");
 
+        scheduler = newScheduler("vertx-plugin-scheduler");
+
+        if (GlobalRunListener.COALESCE_MILLIS > 0) {
+            // serializing Runs is too slow for the shared scheduler
+            coalesceScheduler = newScheduler("vertx-run-coalescer");
+        }
+
         handler = new JenkinsEventBusHandler(vertx.eventBus(), jenkins);
+        projections = new ProjectionRegistry(vertx.eventBus(), Clock.SYSTEM);
+        subscriptions = new SubscriptionRegistry(vertx.eventBus(), Clock.SYSTEM);
+        logStreamer = new LogStreamer(
+            vertx.eventBus(),
+            jenkins,
+            scheduler,
+            Long.getLong(LogStreamer.class.getName() + ".flushIntervalMillis", 500L),
+            Integer.getInteger(LogStreamer.class.getName() + ".maxChunkBytes", 65536)
+        );
+        artifactStreamer = new ArtifactStreamer(
+            vertx.eventBus(),
+            scheduler,
+            Clock.SYSTEM,
+            Integer.getInteger(ArtifactStreamer.class.getName() + ".chunkBytes", 65536),
+            Long.getLong(ArtifactStreamer.class.getName() + ".idleMillis", 60000L)
+        );
+
+        if (PROGRESS_INTERVAL_MILLIS > 0) {
+            // sampling walks every executor; keep it off the shared scheduler
+            progressScheduler = newScheduler("vertx-progress-sampler");
+            progressSampler = new ProgressSampler(
+                vertx.eventBus(),
+                jenkins,
+                REQUIRE_SUBSCRIPTIONS ? subscriptions : null,
+                progressScheduler,
+                PROGRESS_INTERVAL_MILLIS
+            );
+        }
 
         // hello, world.
         vertx.eventBus().publish(
@@ -73,6 +201,7 @@ public class PluginImpl extends Plugin {
         
         queueTaskDispatcher.setJenkins(jenkins);
         queueTaskDispatcher.setEventBus(vertx.eventBus());
+        queueTaskDispatcher.setScheduler(scheduler);
         queueTaskDispatcher.init();
     }
     // }}}
@@ -94,9 +223,44 @@ public class PluginImpl extends Plugin {
             handler.close();
         }
 
+        if (projections != null) {
+            projections.close();
+        }
+
+        if (subscriptions != null) {
+            subscriptions.close();
+        }
+
+        if (logStreamer != null) {
+            logStreamer.close();
+        }
+
+        if (artifactStreamer != null) {
+            artifactStreamer.close();
+        }
+
+        if (progressSampler != null) {
+            progressSampler.close();
+        }
+
+        if (progressScheduler != null) {
+            progressScheduler.shutdownNow();
+        }
+
+        if (coalesceScheduler != null) {
+            coalesceScheduler.shutdownNow();
+        }
+
         if (queueTaskDispatcher != null) {
             queueTaskDispatcher.close();
         }
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        SerializeUtil.invalidateModels();
+        itemSnapshots.clear();
     }
     // }}}
     
@@ -112,19 +276,179 @@ public class PluginImpl extends Plugin {
             throw new IllegalStateException("plugin not started");
         }
 
+        ebPublish(vertx.eventBus(), addr, msg);
+    }
+    // }}}
+
+    // {{{ ebPublish
+    /**
+     * Publishes an EventBus message in the configured wire format, possibly
+     * from another thread.
+     *
+     * @param eventBus the EventBus to publish on
+     * @param addr the destination address
+     * @param msg the message to publish
+     */
+    static void ebPublish(final EventBus eventBus, final String addr, final JsonObject msg) {
         ClassLoader oldContextClassLoader =
             Thread.currentThread().getContextClassLoader();
 
         Thread.currentThread().setContextClassLoader(CLASS_LOADER);
 
         try { 
-            vertx.eventBus().publish(addr, msg);
+            if (PUBLISH_CBOR) {
+                byte[] data = CborCodec.encode(msg);
+
+                if (COMPRESS_THRESHOLD > 0 && data.length >= COMPRESS_THRESHOLD) {
+                    data = CborCodec.encode(CompressedEnvelope.wrap(data, "cbor"));
+                }
+
+                eventBus.publish(addr, new Buffer(data));
+            } else {
+                eventBus.publish(addr, compressIfLarge(msg, COMPRESS_THRESHOLD));
+            }
         } finally { 
            Thread.currentThread().setContextClassLoader(oldContextClassLoader); 
         }
     }
     // }}}
     
+    // {{{ compressIfLarge
+    /**
+     * Only encodes messages that might be large enough, so that small ones
+     * don't pay for being measured.
+     *
+     * @param msg the message to publish
+     * @param threshold encoded size in bytes from which messages are
+     *        compressed; 0 to never compress
+     * @return a {@link CompressedEnvelope} of msg if its JSON encoding is at
+     *         least threshold bytes, otherwise msg itself
+     */
+    static JsonObject compressIfLarge(final JsonObject msg, final int threshold) {
+        JsonObject published = msg;
+
+        if (threshold > 0 && minEncodedLength(msg) >= threshold) {
+            byte[] data = msg.encode().getBytes(UTF8);
+
+            if (data.length >= threshold) {
+                published = CompressedEnvelope.wrap(data, "json");
+            }
+        }
+
+        return published;
+    }
+    // }}}
+
+    // {{{ ebPublish
+    /**
+     * Publishes an event to an address and to each of the address'
+     * projections, serializing it once per projection.
+     *
+     * @param addr the destination address
+     * @param event the event to publish
+     */
+    static void ebPublish(final String addr, final ProjectedEvent event) {
+        if (hasConsumers(addr)) {
+            ebPublish(addr, event.build(SerializeUtil.DEFAULT_PRUNER));
+        }
+
+        ebPublishProjections(addr, event);
+    }
+    // }}}
+    
+    // {{{ ebPublishProjections
+    /**
+     * Publishes an event to each of an address' projections, but not to the
+     * address itself.
+     *
+     * @param addr the address whose projections get the event
+     * @param event the event to publish
+     */
+    static void ebPublishProjections(final String addr, final ProjectedEvent event) {
+        for (ProjectionRegistry.Projection p : projections.forAddress(addr)) {
+            ebPublish(p.getDerivedAddress(), event.build(p.getPruner()));
+        }
+    }
+    // }}}
+    
+    // {{{ hasConsumers
+    /**
+     * Projections count as consumers of their derived address, so they're
+     * always published.
+     *
+     * @param addr an address events are published to
+     * @return false if subscriptions are required and nobody is subscribed
+     *         to the address, so that the event can be skipped altogether
+     */
+    static boolean hasConsumers(final String addr) {
+        boolean wanted = ! REQUIRE_SUBSCRIPTIONS ||
+            subscriptions == null ||
+            subscriptions.hasSubscribers(addr);
+
+        if (! wanted) {
+            Metrics.increment(METRIC_PUBLISH_SKIPPED);
+        }
+
+        return wanted;
+    }
+    // }}}
+    
+    // {{{ getLogStreamer
+    /**
+     * @return streams console logs to subscribers
+     */
+    static LogStreamer getLogStreamer() {
+        return logStreamer;
+    }
+    // }}}
+    
+    // {{{ getCoalesceScheduler
+    /**
+     * @return publishes coalesced Run events; null unless enabled
+     */
+    static ScheduledExecutorService getCoalesceScheduler() {
+        return coalesceScheduler;
+    }
+    // }}}
+    
+    // {{{ getArtifactStreamer
+    /**
+     * @return sends artifacts to consumers
+     */
+    static ArtifactStreamer getArtifactStreamer() {
+        return artifactStreamer;
+    }
+    // }}}
+    
+    // {{{ getItemSnapshots
+    /**
+     * @return the last published version of each item
+     */
+    static ItemSnapshots getItemSnapshots() {
+        return itemSnapshots;
+    }
+    // }}}
+    
+    // {{{ newScheduler
+    /**
+     * @param threadName name of the scheduler's only thread
+     * @return a single-threaded scheduler whose thread uses the plugin's
+     *         ClassLoader
+     */
+    private static ScheduledExecutorService newScheduler(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, threadName);
+
+                t.setDaemon(true);
+                t.setContextClassLoader(CLASS_LOADER);
+
+                return t;
+            }
+        });
+    }
+    // }}}
+
     // {{{ buildAction
     private JsonObject buildAction(final String action) {
         return new JsonObject()
@@ -134,4 +458,48 @@ public class PluginImpl extends Plugin {
         ;
     }
     // }}}
+
+    // {{{ minEncodedLength
+    /**
+     * A lower bound for the length of a value's JSON encoding in UTF-8,
+     * without encoding it: no whitespace, one byte per char, no escapes and
+     * the shortest possible number.
+     */
+    private static int minEncodedLength(final Object value) {
+        int length;
+
+        if (value instanceof JsonObject) {
+            JsonObject json = (JsonObject) value;
+
+            // opening brace; each member brings its quotes, colon and the
+            // comma or closing brace after it
+            length = 1;
+
+            for (String name : json.getFieldNames()) {
+                length += name.length() + 4 + minEncodedLength(json.getField(name));
+            }
+        } else if (value instanceof JsonArray || value instanceof List) {
+            length = 1;
+
+            for (Object element : (Iterable<?>) value) {
+                length += 1 + minEncodedLength(element);
+            }
+        } else if (value instanceof Map) {
+            length = 1;
+
+            for (Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet()) {
+                length += String.valueOf(entry.getKey()).length() + 4
+                    + minEncodedLength(entry.getValue());
+            }
+        } else if (value instanceof String) {
+            length = ((String) value).length() + 2;
+        } else if (value == null || value instanceof Boolean) {
+            length = 4;
+        } else {
+            length = 1;
+        }
+
+        return length;
+    }
+    // }}}
 }
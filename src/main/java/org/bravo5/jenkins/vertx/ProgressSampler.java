@@ -0,0 +1,171 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jenkins.model.Jenkins;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically publishes the progress of every building Run to
+ * <code>jenkins.run.progress</code>, all of them in a single message per
+ * tick.
+ */
+class ProgressSampler {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final String PROGRESS_ADDR = "jenkins.run.progress";
+
+    private final EventBus eventBus;
+    private final Jenkins jenkins;
+    private final SubscriptionRegistry subscriptions;
+    private ScheduledFuture<?> sampleFuture;
+
+    // {{{ constructor
+    /**
+     * @param eventBus the EventBus to publish on
+     * @param jenkins source of executors
+     * @param subscriptions only sample while somebody is subscribed; always
+     *        sample if null
+     * @param scheduler runs the sampling; none if null
+     * @param intervalMillis time between samples
+     */
+    ProgressSampler(final EventBus eventBus,
+                    final Jenkins jenkins,
+                    final SubscriptionRegistry subscriptions,
+                    final ScheduledExecutorService scheduler,
+                    final long intervalMillis)
+    {
+        this.eventBus = eventBus;
+        this.jenkins = jenkins;
+        this.subscriptions = subscriptions;
+
+        if (scheduler != null) {
+            sampleFuture = scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            publish();
+                        } catch (RuntimeException e) {
+                            // an exception would cancel the schedule
+                            logger.error("unable to publish progress", e);
+                        }
+                    }
+                },
+                intervalMillis,
+                intervalMillis,
+                TimeUnit.MILLISECONDS
+            );
+        }
+    }
+    // }}}
+
+    // {{{ close
+    void close() {
+        if (sampleFuture != null) {
+            sampleFuture.cancel(false);
+        }
+    }
+    // }}}
+
+    // {{{ publish
+    /**
+     * Samples and publishes the progress of building Runs, unless nobody's
+     * subscribed or nothing is building.
+     */
+    void publish() {
+        if (subscriptions != null && ! subscriptions.hasSubscribers(PROGRESS_ADDR)) {
+            Metrics.increment(PluginImpl.METRIC_PUBLISH_SKIPPED);
+        } else {
+            JsonArray runs = sample();
+
+            // nothing's building, nothing to say
+            if (runs.size() > 0) {
+                PluginImpl.ebPublish(
+                    eventBus,
+                    PROGRESS_ADDR,
+                    new JsonObject()
+                        .putString("action", "progress")
+                        .putArray("runs", runs)
+                );
+            }
+        }
+    }
+    // }}}
+
+    // {{{ sample
+    /**
+     * <pre>
+     * [
+     *     {
+     *         "fullName":"parameterized",
+     *         "number":12,
+     *         "elapsed":61000,
+     *         "estimatedDuration":120000,
+     *         "progress":50,
+     *         "executor":{"node":"", "number":0}
+     *     },
+     *     …
+     * ]
+     * </pre>
+     *
+     * @return the progress of each building Run
+     */
+    JsonArray sample() {
+        JsonArray runs = new JsonArray();
+
+        for (Computer computer : jenkins.getComputers()) {
+            for (Executor executor : computer.getExecutors()) {
+                addRun(runs, computer, executor);
+            }
+
+            for (Executor executor : computer.getOneOffExecutors()) {
+                addRun(runs, computer, executor);
+            }
+        }
+
+        return runs;
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ addRun
+    private void addRun(final JsonArray runs,
+                        final Computer computer,
+                        final Executor executor)
+    {
+        Queue.Executable executable = executor.getCurrentExecutable();
+
+        if (executable instanceof Run) {
+            Run run = (Run) executable;
+
+            runs.addObject(
+                new JsonObject()
+                    .putString("fullName", run.getParent().getFullName())
+                    .putNumber("number", run.getNumber())
+                    .putNumber("elapsed", executor.getElapsedTime())
+                    .putNumber("estimatedDuration", run.getEstimatedDuration())
+                    .putNumber("progress", executor.getProgress())
+                    .putObject(
+                        "executor",
+                        new JsonObject()
+                            .putString("node", computer.getName())
+                            .putNumber("number", executor.getNumber())
+                    )
+            );
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,20 @@
+package org.bravo5.jenkins.vertx;
+
+import org.kohsuke.stapler.export.TreePruner;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * An event that can be serialized with different trees; see
+ * {@link ProjectionRegistry}.
+ */
+abstract class ProjectedEvent {
+    // {{{ build
+    /**
+     * @param pruner determines which properties of the event's objects are
+     *        serialized
+     * @return the event message
+     */
+    abstract JsonObject build(TreePruner pruner);
+    // }}}
+}
@@ -0,0 +1,405 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.Handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kohsuke.stapler.export.NamedPathPruner;
+import org.kohsuke.stapler.export.TreePruner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Named field projections of published events, managed on the
+ * <code>jenkins.projections</code> address.  Each projection gets its own
+ * derived address, <code>&lt;address&gt;.&lt;name&gt;</code>, where events
+ * are published serialized with the projection's tree.  Like subscriptions,
+ * projections are leased and lapse unless registered again.
+ */
+class ProjectionRegistry implements Handler<Message<JsonObject>> {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final String PROJECTIONS_ADDR = "jenkins.projections";
+
+    /** Addresses whose events can be projected. */
+    private static final Set<String> PROJECTABLE_ADDRS = new HashSet<>(
+        Arrays.asList("jenkins.run", "jenkins.item")
+    );
+
+    /** Each projection costs a serialization per event. */
+    private static final int MAX_PROJECTIONS_PER_ADDR = 16;
+
+    /** Derived addresses that are already taken. */
+    private static final Set<String> RESERVED_ADDRS = new HashSet<>(
+        Arrays.asList(LogStreamer.LOG_ADDR, ProgressSampler.PROGRESS_ADDR)
+    );
+
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    /** Lease used when the consumer doesn't ask for one. */
+    static final long DEFAULT_LEASE_MILLIS = 60000L;
+
+    /** Longest lease granted. */
+    private static final long MAX_LEASE_MILLIS = 3600000L;
+
+    private final EventBus eventBus;
+    private final Clock clock;
+
+    /** Projections keyed by source address, then by name. */
+    private final ConcurrentMap<String,ConcurrentMap<String,Projection>> projections =
+        new ConcurrentHashMap<>();
+
+    // {{{ constructor
+    ProjectionRegistry(final EventBus eventBus, final Clock clock) {
+        this.eventBus = eventBus;
+        this.clock = clock;
+
+        eventBus.registerHandler(PROJECTIONS_ADDR, this);
+    }
+    // }}}
+
+    // {{{ close
+    void close() {
+        eventBus.unregisterHandler(PROJECTIONS_ADDR, this);
+    }
+    // }}}
+
+    // {{{ forAddress
+    /**
+     * Expired projections are discarded along the way.
+     *
+     * @param addr the address events are published to
+     * @return the live projections of that address' events
+     */
+    Collection<Projection> forAddress(final String addr) {
+        Collection<Projection> live = Collections.emptyList();
+
+        ConcurrentMap<String,Projection> forAddr = projections.get(addr);
+
+        if (forAddr != null) {
+            live = discardExpired(forAddr, clock.currentTimeMillis());
+        }
+
+        return live;
+    }
+    // }}}
+
+    // {{{ handle
+    /** {@inheritDoc} */
+    public void handle(final Message<JsonObject> msg) {
+        String action = msg.body.getString("action");
+
+        if (action == null) {
+            sendError(msg, "no action provided");
+        } else {
+            try {
+                switch (action) {
+                    case "register":
+                        register(msg);
+                        break;
+
+                    case "unregister":
+                        unregister(msg);
+                        break;
+
+                    case "list":
+                        list(msg);
+                        break;
+
+                    default:
+                        sendError(msg, "unknown action " + action);
+                        break;
+                }
+            } catch (Exception e) {
+                // Catching Exception is only allowed in very limited
+                // circumstances.  This is one of them.  Regardless of the
+                // error, we want the caller to know about it.
+                sendError(msg, "error invoking " + action + ": " + e.getMessage(), e);
+            }
+        }
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ register
+    private void register(final Message<JsonObject> msg) {
+        /*
+        {
+            "action":"register",
+            "address":"jenkins.run",
+            "name":"dashboard",
+            // Jenkins' remote API tree syntax
+            "tree":"number,result,duration",
+            // optional; register again before it runs out
+            "leaseMillis":60000
+        }
+        */
+
+        String addr = msg.body.getString("address");
+        String name = msg.body.getString("name");
+        String tree = msg.body.getString("tree");
+        Number leaseMillis = msg.body.getNumber("leaseMillis");
+
+        long lease = Math.min(
+            MAX_LEASE_MILLIS,
+            leaseMillis == null ? DEFAULT_LEASE_MILLIS : leaseMillis.longValue()
+        );
+
+        if (addr == null || ! PROJECTABLE_ADDRS.contains(addr)) {
+            sendError(msg, "projections not supported for " + addr);
+        } else if (name == null || ! NAME_PATTERN.matcher(name).matches()) {
+            sendError(msg, "invalid name " + name);
+        } else if (RESERVED_ADDRS.contains(addr + "." + name)) {
+            sendError(msg, "reserved name " + name);
+        } else if (tree == null) {
+            sendError(msg, "missing tree");
+        } else if (lease <= 0) {
+            sendError(msg, "invalid leaseMillis " + leaseMillis);
+        } else {
+            TreePruner pruner = null;
+
+            try {
+                pruner = new NamedPathPruner(tree);
+            } catch (IllegalArgumentException e) {
+                sendError(msg, "invalid tree: " + e.getMessage());
+            }
+
+            if (pruner != null) {
+                long now = clock.currentTimeMillis();
+
+                Projection projection =
+                    new Projection(addr, name, tree, pruner, now + lease);
+
+                synchronized (projections) {
+                    ConcurrentMap<String,Projection> forAddr = projections.get(addr);
+
+                    if (forAddr == null) {
+                        forAddr = new ConcurrentHashMap<>();
+                        projections.put(addr, forAddr);
+                    }
+
+                    // lapsed projections don't count towards the limit
+                    discardExpired(forAddr, now);
+
+                    if (
+                        ! forAddr.containsKey(name) &&
+                        forAddr.size() >= MAX_PROJECTIONS_PER_ADDR
+                    ) {
+                        sendError(msg, "too many projections for " + addr);
+                        projection = null;
+                    } else {
+                        forAddr.put(name, projection);
+                    }
+                }
+
+                if (projection != null) {
+                    logger.info(
+                        "publishing {} to {}", tree, projection.getDerivedAddress()
+                    );
+
+                    sendOk(
+                        msg,
+                        new JsonObject()
+                            .putString("derivedAddress", projection.getDerivedAddress())
+                            .putNumber("leaseMillis", lease)
+                    );
+                }
+            }
+        }
+    }
+    // }}}
+
+    // {{{ unregister
+    private void unregister(final Message<JsonObject> msg) {
+        String addr = msg.body.getString("address");
+        String name = msg.body.getString("name");
+
+        Projection removed = null;
+
+        synchronized (projections) {
+            ConcurrentMap<String,Projection> forAddr =
+                addr == null ? null : projections.get(addr);
+
+            if (forAddr != null && name != null) {
+                removed = forAddr.remove(name);
+
+                if (forAddr.isEmpty()) {
+                    projections.remove(addr);
+                }
+            }
+        }
+
+        if (removed == null) {
+            sendError(msg, "no such projection");
+        } else {
+            sendOk(msg, null);
+        }
+    }
+    // }}}
+
+    // {{{ list
+    private void list(final Message<JsonObject> msg) {
+        JsonArray jsonProjections = new JsonArray();
+
+        long now = clock.currentTimeMillis();
+
+        for (ConcurrentMap<String,Projection> forAddr : projections.values()) {
+            for (Projection p : discardExpired(forAddr, now)) {
+                jsonProjections.addObject(
+                    new JsonObject()
+                        .putString("address", p.getAddress())
+                        .putString("name", p.getName())
+                        .putString("tree", p.getTree())
+                        .putString("derivedAddress", p.getDerivedAddress())
+                        .putNumber("expiresInMillis", p.getExpiresAt() - now)
+                );
+            }
+        }
+
+        sendOk(msg, new JsonObject().putArray("projections", jsonProjections));
+    }
+    // }}}
+
+    // {{{ discardExpired
+    /**
+     * @param forAddr the projections of an address
+     * @param now the current time, in epoch millis
+     * @return the ones that haven't expired
+     */
+    private List<Projection> discardExpired(final ConcurrentMap<String,Projection> forAddr,
+                                            final long now)
+    {
+        List<Projection> live = new ArrayList<>(forAddr.size());
+
+        for (Projection p : forAddr.values()) {
+            if (p.getExpiresAt() <= now) {
+                logger.info("projection {} expired", p.getDerivedAddress());
+
+                // unless it's been registered again in the meantime
+                forAddr.remove(p.getName(), p);
+            } else {
+                live.add(p);
+            }
+        }
+
+        return live;
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message, final String error) {
+        sendError(message, error, null);
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message,
+                           final String error,
+                           final Exception e)
+    {
+        logger.error(error, e);
+
+        message.reply(
+            new JsonObject()
+                .putString("status", "error")
+                .putString("message", error)
+        );
+    }
+    // }}}
+
+    // {{{ sendOk
+    private void sendOk(final Message<JsonObject> message, final JsonObject obj) {
+        JsonObject resp = new JsonObject()
+            .putString("status", "ok");
+
+        if (obj != null) {
+            resp.putObject("result", obj);
+        }
+
+        message.reply(resp);
+    }
+    // }}}
+
+    /**
+     * A named subset of an address' events.
+     */
+    static class Projection {
+        private final String address;
+        private final String name;
+        private final String tree;
+        private final TreePruner pruner;
+        private final long expiresAt;
+
+        // {{{ constructor
+        Projection(final String address,
+                   final String name,
+                   final String tree,
+                   final TreePruner pruner,
+                   final long expiresAt)
+        {
+            this.address = address;
+            this.name = name;
+            this.tree = tree;
+            this.pruner = pruner;
+            this.expiresAt = expiresAt;
+        }
+        // }}}
+
+        // {{{ getAddress
+        String getAddress() {
+            return address;
+        }
+        // }}}
+
+        // {{{ getName
+        String getName() {
+            return name;
+        }
+        // }}}
+
+        // {{{ getTree
+        String getTree() {
+            return tree;
+        }
+        // }}}
+
+        // {{{ getPruner
+        TreePruner getPruner() {
+            return pruner;
+        }
+        // }}}
+
+        // {{{ getExpiresAt
+        /**
+         * @return when the lease runs out, in epoch millis
+         */
+        long getExpiresAt() {
+            return expiresAt;
+        }
+        // }}}
+
+        // {{{ getDerivedAddress
+        /**
+         * @return where the projected events are published
+         */
+        String getDerivedAddress() {
+            return address + "." + name;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,385 @@
+package org.bravo5.jenkins.vertx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.Handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronous request/reply on top of the EventBus.
+ *
+ * Messages are handed to a small, fixed pool of sender threads, or sent on the
+ * calling thread if there are none; each request gets a correlation id and a
+ * {@link PendingReply} that the caller waits on for a bounded amount of time.
+ * Replies that arrive after their caller gave up are dropped.
+ */
+class ReplyCorrelator {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** Requests waiting to be sent before new ones are rejected. */
+    private static final int MAX_QUEUED_SENDS = 10000;
+
+    private final EventBus eventBus;
+    private final ExecutorService senders;
+
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+
+    /**
+     * Requests that have been sent (or are about to be) and have not yet
+     * received a reply, keyed by correlation id.
+     */
+    private final ConcurrentMap<Long,PendingReply> pending =
+        new ConcurrentHashMap<>();
+
+    // {{{ constructor
+    /**
+     * @param eventBus the EventBus to send requests on
+     * @param senderThreads number of threads used to send requests; 0 to
+     *        send on the calling thread
+     */
+    ReplyCorrelator(final EventBus eventBus, final int senderThreads) {
+        this.eventBus = eventBus;
+
+        if (senderThreads > 0) {
+            senders = new ThreadPoolExecutor(
+                senderThreads, senderThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_SENDS),
+                new SenderThreadFactory("vertx-reply-sender-")
+            );
+        } else {
+            senders = null;
+        }
+    }
+    // }}}
+
+    // {{{ send
+    /**
+     * Sends a message without waiting for the reply.
+     *
+     * @param address the destination address
+     * @param payload the message to send
+     * @return handle for retrieving the reply
+     */
+    PendingReply send(final String address, final JsonObject payload) {
+        return send(address, payload, null);
+    }
+    // }}}
+
+    // {{{ send
+    /**
+     * Sends a message without waiting for the reply.
+     *
+     * @param address the destination address
+     * @param payload the message to send
+     * @param listener notified when the reply arrives; may be null
+     * @return handle for retrieving the reply
+     */
+    PendingReply send(final String address,
+                      final JsonObject payload,
+                      final ReplyListener listener)
+    {
+        final long correlationId = nextCorrelationId.incrementAndGet();
+        final PendingReply reply = new PendingReply(correlationId, address, listener);
+
+        pending.put(correlationId, reply);
+
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    eventBus.send(address, payload,
+                        new Handler<Message<JsonObject>>() {
+                            public void handle(final Message<JsonObject> msg) {
+                                complete(correlationId, msg.body);
+                            }
+                        }
+                    );
+                } catch (Exception e) {
+                    // no exceptions are declared to be thrown, but this
+                    // ensures the caller isn't left waiting for a reply
+                    // that will never come.
+                    logger.error("unable to send message", e);
+                    complete(correlationId, errorReply());
+                }
+            }
+        };
+
+        if (senders == null) {
+            task.run();
+        } else {
+            try {
+                senders.execute(task);
+            } catch (RejectedExecutionException e) {
+                logger.error("too many pending sends; dropping message to {}", address);
+                complete(correlationId, errorReply());
+            }
+        }
+
+        return reply;
+    }
+    // }}}
+
+    // {{{ await
+    /**
+     * Waits for the reply to a previously-sent request.
+     *
+     * @param reply the handle returned by {@link #send}
+     * @param timeoutMillis maximum time to wait
+     * @return the reply, or null if none arrived in time
+     */
+    JsonObject await(final PendingReply reply, final long timeoutMillis) {
+        JsonObject body = null;
+
+        try {
+            if (reply.latch.await(Math.max(0L, timeoutMillis), TimeUnit.MILLISECONDS)) {
+                body = reply.body;
+            }
+        } catch (InterruptedException e) {
+            logger.error("interrupted waiting for reply");
+
+            Thread.currentThread().interrupt();
+        }
+
+        if (body == null) {
+            // nobody's listening any more
+            cancel(reply);
+        }
+
+        return body;
+    }
+    // }}}
+
+    // {{{ cancel
+    /**
+     * Gives up on a request; its reply will be discarded if it ever arrives.
+     *
+     * @param reply the handle returned by {@link #send}
+     */
+    void cancel(final PendingReply reply) {
+        pending.remove(reply.correlationId);
+    }
+    // }}}
+
+    // {{{ request
+    /**
+     * Sends a message and waits for the reply.
+     *
+     * @param address the destination address
+     * @param payload the message to send
+     * @param timeoutMillis maximum time to wait
+     * @return the reply, or null if none arrived in time
+     */
+    JsonObject request(final String address,
+                       final JsonObject payload,
+                       final long timeoutMillis)
+    {
+        return await(send(address, payload), timeoutMillis);
+    }
+    // }}}
+
+    // {{{ expire
+    /**
+     * Gives up on requests that have been waiting for too long, such as
+     * those sent without anybody awaiting the reply.
+     *
+     * @param maxAgeMillis how long a request may wait for its reply
+     * @return the requests that were given up on
+     */
+    List<PendingReply> expire(final long maxAgeMillis) {
+        List<PendingReply> expired = new ArrayList<>();
+
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+
+        Iterator<PendingReply> iter = pending.values().iterator();
+        while (iter.hasNext()) {
+            PendingReply reply = iter.next();
+
+            if (reply.sentAtNanos - cutoff < 0) {
+                iter.remove();
+                expired.add(reply);
+            }
+        }
+
+        return expired;
+    }
+    // }}}
+
+    // {{{ getPendingCount
+    /**
+     * @return number of requests still waiting for a reply
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+    // }}}
+
+    // {{{ close
+    /**
+     * Stops the sender threads; outstanding requests are abandoned.
+     */
+    void close() {
+        if (senders != null) {
+            senders.shutdownNow();
+        }
+
+        pending.clear();
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ complete
+    private void complete(final long correlationId, final JsonObject body) {
+        PendingReply reply = pending.remove(correlationId);
+
+        if (reply == null) {
+            logger.debug("discarding late reply for request {}", correlationId);
+        } else {
+            reply.complete(body);
+        }
+    }
+    // }}}
+
+    // {{{ errorReply
+    private static JsonObject errorReply() {
+        return new JsonObject().putString("error", "got exception");
+    }
+    // }}}
+
+    /**
+     * Notified when the reply to a request arrives.  Invoked on whichever
+     * thread delivered the reply, so implementations must not block.
+     */
+    interface ReplyListener {
+        // {{{ replied
+        /**
+         * @param reply the request that has been replied to
+         */
+        void replied(PendingReply reply);
+        // }}}
+    }
+
+    /**
+     * A request that has been sent and may or may not have been replied to.
+     */
+    static class PendingReply {
+        private final long correlationId;
+        private final String address;
+        private final ReplyListener listener;
+        private final long sentAtNanos = System.nanoTime();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile JsonObject body;
+        private volatile long repliedAtNanos;
+
+        // {{{ constructor
+        PendingReply(final long correlationId,
+                     final String address,
+                     final ReplyListener listener)
+        {
+            this.correlationId = correlationId;
+            this.address = address;
+            this.listener = listener;
+        }
+        // }}}
+
+        // {{{ complete
+        private void complete(final JsonObject replyBody) {
+            repliedAtNanos = System.nanoTime();
+            body = replyBody;
+            latch.countDown();
+
+            if (listener != null) {
+                listener.replied(this);
+            }
+        }
+        // }}}
+
+        // {{{ getBody
+        /**
+         * @return the reply, or null if it hasn't arrived
+         */
+        JsonObject getBody() {
+            return body;
+        }
+        // }}}
+
+        // {{{ getLatencyMillis
+        /**
+         * @return time between sending and the reply arriving, or -1 if
+         *         there hasn't been a reply
+         */
+        long getLatencyMillis() {
+            return body == null
+                ? -1L
+                : TimeUnit.NANOSECONDS.toMillis(repliedAtNanos - sentAtNanos);
+        }
+        // }}}
+
+        // {{{ getAddress
+        /**
+         * @return the address the request was sent to
+         */
+        String getAddress() {
+            return address;
+        }
+        // }}}
+
+        // {{{ getSentAtNanos
+        /**
+         * @return {@link System#nanoTime()} when the request was created
+         */
+        long getSentAtNanos() {
+            return sentAtNanos;
+        }
+        // }}}
+    }
+
+    /**
+     * Creates daemon sender threads that use the plugin's ClassLoader.
+     */
+    static class SenderThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        // {{{ constructor
+        /**
+         * @param namePrefix thread names are this followed by a number
+         */
+        SenderThreadFactory(final String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+        // }}}
+
+        // {{{ newThread
+        /** {@inheritDoc} */
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, namePrefix + count.incrementAndGet());
+
+            t.setDaemon(true);
+            t.setContextClassLoader(ReplyCorrelator.class.getClassLoader());
+
+            return t;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,144 @@
+package org.bravo5.jenkins.vertx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds a Run's lifecycle events for a while after the first one, so that
+ * they can be published as one.
+ */
+class RunEventCoalescer {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ScheduledExecutorService scheduler;
+    private final long delayMillis;
+    private final Publisher publisher;
+
+    /** Lifecycle events being held back, by Run. */
+    private final Map<Run,List<String>> pending = new IdentityHashMap<>();
+
+    // {{{ constructor
+    /**
+     * @param scheduler runs the delayed publishing; events are published
+     *        right away if null
+     * @param delayMillis how long events are held after a Run's first one
+     * @param publisher publishes the events
+     */
+    RunEventCoalescer(final ScheduledExecutorService scheduler,
+                      final long delayMillis,
+                      final Publisher publisher)
+    {
+        this.scheduler = scheduler;
+        this.delayMillis = delayMillis;
+        this.publisher = publisher;
+    }
+    // }}}
+
+    // {{{ add
+    /**
+     * Holds back an event, to be merged with the ones that follow it
+     * shortly.  Published right away if the scheduler has been shut down.
+     *
+     * @param action what happened to the Run
+     * @param r the Run
+     */
+    void add(final String action, final Run r) {
+        if (scheduler == null) {
+            publisher.publish(Collections.singletonList(action), r);
+        } else {
+            boolean first;
+
+            synchronized (pending) {
+                List<String> actions = pending.get(r);
+                first = actions == null;
+
+                if (first) {
+                    actions = new ArrayList<>();
+                    pending.put(r, actions);
+                }
+
+                actions.add(action);
+            }
+
+            if (first) {
+                try {
+                    scheduler.schedule(
+                        new Runnable() {
+                            public void run() {
+                                try {
+                                    flush(r);
+                                } catch (RuntimeException e) {
+                                    logger.error("unable to publish events for " + r, e);
+                                }
+                            }
+                        },
+                        delayMillis,
+                        TimeUnit.MILLISECONDS
+                    );
+                } catch (RejectedExecutionException e) {
+                    // shutting down; nothing would publish them later
+                    flush(r);
+                }
+            }
+        }
+    }
+    // }}}
+
+    // {{{ publishNow
+    /**
+     * Publishes an event right away, after whatever's held back for the
+     * Run; those happened first.
+     *
+     * @param action what happened to the Run
+     * @param r the Run
+     */
+    void publishNow(final String action, final Run r) {
+        flush(r);
+
+        publisher.publish(Collections.singletonList(action), r);
+    }
+    // }}}
+
+    // {{{ flush
+    /**
+     * Publishes the events held back for a Run, if any.
+     *
+     * @param r the Run
+     */
+    void flush(final Run r) {
+        List<String> actions;
+
+        synchronized (pending) {
+            actions = pending.remove(r);
+        }
+
+        if (actions != null) {
+            publisher.publish(actions, r);
+        }
+    }
+    // }}}
+
+    /**
+     * Publishes a Run's lifecycle events.
+     */
+    interface Publisher {
+        // {{{ publish
+        /**
+         * @param actions what happened to the Run, in order
+         * @param r the Run
+         */
+        void publish(List<String> actions, Run r);
+        // }}}
+    }
+}
@@ -0,0 +1,154 @@
+package org.bravo5.jenkins.vertx;
+
+import org.kohsuke.stapler.export.TreePruner;
+
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Remembers Runs serialized in the last few moments, so that a Run isn't
+ * serialized again for each of its lifecycle events, or when it shows up as
+ * a neighbor of another Run.
+ *
+ * Runs are referenced weakly, and are matched by identity plus a stamp of
+ * the state that changes over their lifetime: whether they're building and
+ * their result.
+ */
+class RunJsonCache {
+    private final LruCache<Key,Entry> entries;
+    private final long windowMillis;
+
+    // {{{ constructor
+    /**
+     * @param maxSize maximum number of serializations retained
+     * @param windowMillis how long a serialization is reused; 0 disables
+     *        the cache
+     */
+    RunJsonCache(final int maxSize, final long windowMillis) {
+        this.entries = new LruCache<>(maxSize);
+        this.windowMillis = windowMillis;
+    }
+    // }}}
+
+    // {{{ get
+    /**
+     * @param run the Run to be serialized
+     * @param pruner the tree it's serialized with
+     * @param now the current time, in epoch millis
+     * @return a copy of a recent serialization, or null if there is none
+     */
+    JsonObject get(final Run run, final TreePruner pruner, final long now) {
+        JsonObject json = null;
+
+        if (windowMillis > 0) {
+            Key key = new Key(run, pruner);
+            Entry entry = entries.get(key);
+
+            if (entry != null) {
+                if (now - entry.createdAt < windowMillis) {
+                    // callers are free to modify what they get
+                    json = entry.json.copy();
+                } else {
+                    entries.remove(key);
+                }
+            }
+        }
+
+        return json;
+    }
+    // }}}
+
+    // {{{ put
+    /**
+     * @param run the Run that was serialized
+     * @param pruner the tree it was serialized with
+     * @param json the serialization; a copy is retained
+     * @param now the current time, in epoch millis
+     */
+    void put(final Run run,
+             final TreePruner pruner,
+             final JsonObject json,
+             final long now)
+    {
+        if (windowMillis > 0) {
+            entries.put(new Key(run, pruner), new Entry(json.copy(), now));
+        }
+    }
+    // }}}
+
+    // {{{ clear
+    void clear() {
+        entries.clear();
+    }
+    // }}}
+
+    /**
+     * Identifies a Run in a particular state without keeping it alive.
+     */
+    private static class Key {
+        private final WeakReference<Run> run;
+        private final int identityHash;
+        private final TreePruner pruner;
+        private final boolean building;
+        private final Result result;
+
+        // {{{ constructor
+        Key(final Run run, final TreePruner pruner) {
+            this.run = new WeakReference<>(run);
+            this.identityHash = System.identityHashCode(run);
+            this.pruner = pruner;
+            this.building = run.isBuilding();
+            this.result = run.getResult();
+        }
+        // }}}
+
+        // {{{ equals
+        /** {@inheritDoc} */
+        @Override
+        public boolean equals(final Object o) {
+            boolean equal = false;
+
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                Run referent = run.get();
+
+                // a collected Run never matches, not even itself
+                equal = referent != null &&
+                    referent == other.run.get() &&
+                    pruner == other.pruner &&
+                    building == other.building &&
+                    result == other.result;
+            }
+
+            return equal;
+        }
+        // }}}
+
+        // {{{ hashCode
+        /** {@inheritDoc} */
+        @Override
+        public int hashCode() {
+            return identityHash;
+        }
+        // }}}
+    }
+
+    /**
+     * A serialization and when it was made.
+     */
+    private static class Entry {
+        private final JsonObject json;
+        private final long createdAt;
+
+        // {{{ constructor
+        Entry(final JsonObject json, final long createdAt) {
+            this.json = json;
+            this.createdAt = createdAt;
+        }
+        // }}}
+    }
+}
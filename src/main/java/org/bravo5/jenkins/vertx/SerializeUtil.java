@@ -6,9 +6,7 @@ import org.slf4j.LoggerFactory;
 import org.kohsuke.stapler.export.ExportConfig;
 import org.kohsuke.stapler.export.TreePruner;
 import org.kohsuke.stapler.export.ModelBuilder;
-import org.kohsuke.stapler.export.Flavor;
 import org.kohsuke.stapler.export.Model;
-import org.kohsuke.stapler.export.DataWriter;
 
 import org.vertx.java.core.json.JsonObject;
 
@@ -17,9 +15,6 @@ import hudson.model.Item;
 import hudson.model.Queue;
 import hudson.model.Action;
 
-import java.io.Writer;
-import java.io.StringWriter;
-
 /**
  * Utility class for serializing Jenkins objects using the same method as the
  * remote API.
@@ -27,6 +22,39 @@ import java.io.StringWriter;
 final class SerializeUtil {
     private static final Logger LOGGER = LoggerFactory.getLogger(SerializeUtil.class);
 
+    static final String METRIC_MODEL_HITS = "serialize.model.hits";
+    static final String METRIC_MODEL_MISSES = "serialize.model.misses";
+    static final String METRIC_RUN_HITS = "serialize.run.hits";
+    static final String METRIC_RUN_MISSES = "serialize.run.misses";
+
+    /** Maximum number of classes whose Model is retained. */
+    private static final int MAX_CACHED_MODELS = 256;
+
+    /**
+     * Models are built by reflecting over every @Exported member, so they're
+     * kept per class.  Cleared by {@link #invalidateModels} when classes may
+     * have been reloaded.
+     */
+    private static final LruCache<Class<?>,Model<?>> MODELS =
+        new LruCache<>(MAX_CACHED_MODELS);
+
+    /**
+     * Recently serialized Runs; a Run's lifecycle events, and its neighbors'
+     * events, follow each other closely.  The window can be set with the
+     * system property <code>org.bravo5.jenkins.vertx.SerializeUtil.runCacheMillis</code>;
+     * 0 disables the cache.
+     */
+    private static final RunJsonCache RUNS = new RunJsonCache(
+        64,
+        Long.getLong(SerializeUtil.class.getName() + ".runCacheMillis", 2000L)
+    );
+
+    /** Never modified, so it's shared. */
+    private static final ExportConfig EXPORT_CONFIG = new ExportConfig();
+
+    /** Stateless, so it's shared. */
+    static final TreePruner DEFAULT_PRUNER = new TreePruner.ByDepth(1);
+
     /**
      * Utility classes don't get constructors.
      */
@@ -42,8 +70,8 @@ final class SerializeUtil {
         /** The object to be serialized. */
         private T object;
 
-        private ExportConfig exportConfig;
-        private TreePruner pruner;
+        private ExportConfig exportConfig = EXPORT_CONFIG;
+        private TreePruner pruner = DEFAULT_PRUNER;
 
         // {{{ constructor
         /**
@@ -51,12 +79,17 @@ final class SerializeUtil {
          */
         Serializer(final T object) {
             this.object = object;
+        }
+        // }}}
 
-            exportConfig = new ExportConfig();
-            // exportConfig.prettyPrint = true;
-
-            // or NamedPathPruner, or custom
-            pruner = new TreePruner.ByDepth(1);
+        // {{{ constructor
+        /**
+         * @param object the object to be serialized
+         * @param pruner determines which properties are serialized
+         */
+        Serializer(final T object, final TreePruner pruner) {
+            this.object = object;
+            this.pruner = pruner;
         }
         // }}}
 
@@ -70,16 +103,15 @@ final class SerializeUtil {
             JsonObject retVal = null;
             
             if (object != null) {
-                Writer writer = new StringWriter();
-                
                 try {
-                    DataWriter dataWriter =
-                        Flavor.JSON.createDataWriter(object, writer, exportConfig);
+                    // builds the JsonObject directly; no JSON text in between
+                    JsonObjectDataWriter dataWriter =
+                        new JsonObjectDataWriter(exportConfig);
                     
-                    Model<T> model = (Model<T>) new ModelBuilder().get(object.getClass());
+                    Model<T> model = (Model<T>) getModel(object.getClass());
                     model.writeTo(object, pruner, dataWriter);
                     
-                    retVal = new JsonObject(writer.toString());
+                    retVal = dataWriter.getResult();
                 } catch (Exception e) {
                     // Catching Exception is only allowed in very limited
                     // circumstances.  This is one of them.  Regardless of the
@@ -101,6 +133,41 @@ final class SerializeUtil {
         // }}}
     }
 
+    // {{{ invalidateModels
+    /**
+     * Discards all cached Models and recently serialized Runs, so that
+     * classes from plugins that have been reloaded or removed aren't
+     * retained.
+     */
+    static void invalidateModels() {
+        MODELS.clear();
+        RUNS.clear();
+    }
+    // }}}
+
+    // {{{ getModel
+    /**
+     * @param clazz the class to be serialized
+     * @return the class' Model, built on first use
+     */
+    private static Model<?> getModel(final Class<?> clazz) {
+        Model<?> model = MODELS.get(clazz);
+
+        if (model == null) {
+            Metrics.increment(METRIC_MODEL_MISSES);
+
+            // building twice in a race is harmless
+            model = new ModelBuilder().get(clazz);
+
+            MODELS.put(clazz, model);
+        } else {
+            Metrics.increment(METRIC_MODEL_HITS);
+        }
+
+        return model;
+    }
+    // }}}
+
     // {{{ serializeToJson
     /**
      * Serializes a Run to a JsonObject.
@@ -109,7 +176,53 @@ final class SerializeUtil {
      * @return JsonObject representation
      */
     public static JsonObject serializeToJson(final Run run) {
-        return new Serializer<Run>(run).invoke();
+        return serializeToJson(run, DEFAULT_PRUNER);
+    }
+    // }}}
+
+    // {{{ serializeToJson
+    /**
+     * Serializes a Run to a JsonObject.
+     *
+     * @param run the Run to serialize
+     * @param pruner determines which properties are serialized
+     * @return JsonObject representation
+     */
+    public static JsonObject serializeToJson(final Run run, final TreePruner pruner) {
+        JsonObject json = null;
+        
+        if (run != null) {
+            long now = System.currentTimeMillis();
+            
+            json = RUNS.get(run, pruner, now);
+            
+            if (json == null) {
+                Metrics.increment(METRIC_RUN_MISSES);
+                
+                json = new Serializer<Run>(run, pruner).invoke();
+                
+                if (json.getString("error") == null) {
+                    RUNS.put(run, pruner, json, now);
+                }
+            } else {
+                Metrics.increment(METRIC_RUN_HITS);
+            }
+        }
+        
+        return json;
+    }
+    // }}}
+
+    // {{{ serializeToJson
+    /**
+     * Serializes an Item to a JsonObject.
+     *
+     * @param item the Item to serialize
+     * @param pruner determines which properties are serialized
+     * @return JsonObject representation
+     */
+    public static JsonObject serializeToJson(final Item item, final TreePruner pruner) {
+        return new Serializer<Item>(item, pruner).invoke();
     }
     // }}}
 
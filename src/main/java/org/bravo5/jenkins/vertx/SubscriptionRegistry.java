@@ -0,0 +1,227 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.Handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks which addresses have consumers, managed on the
+ * <code>jenkins.subscriptions</code> address.  The EventBus can't tell us
+ * whether anybody is listening on an address, so consumers announce
+ * themselves and renew their subscription before its lease runs out.
+ */
+class SubscriptionRegistry implements Handler<Message<JsonObject>> {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    static final String SUBSCRIPTIONS_ADDR = "jenkins.subscriptions";
+
+    /** Lease used when the subscriber doesn't ask for one. */
+    static final long DEFAULT_LEASE_MILLIS = 60000L;
+
+    /** Longest lease granted. */
+    private static final long MAX_LEASE_MILLIS = 3600000L;
+
+    private final EventBus eventBus;
+    private final Clock clock;
+
+    /** Lease expiry times keyed by address, then by subscriber id. */
+    private final ConcurrentMap<String,ConcurrentMap<String,Long>> subscriptions =
+        new ConcurrentHashMap<>();
+
+    // {{{ constructor
+    SubscriptionRegistry(final EventBus eventBus, final Clock clock) {
+        this.eventBus = eventBus;
+        this.clock = clock;
+
+        eventBus.registerHandler(SUBSCRIPTIONS_ADDR, this);
+    }
+    // }}}
+
+    // {{{ close
+    void close() {
+        eventBus.unregisterHandler(SUBSCRIPTIONS_ADDR, this);
+    }
+    // }}}
+
+    // {{{ hasSubscribers
+    /**
+     * Expired subscriptions are discarded along the way.
+     *
+     * @param addr an address events are published to
+     * @return true if anybody holds a live subscription to the address
+     */
+    boolean hasSubscribers(final String addr) {
+        boolean found = false;
+
+        ConcurrentMap<String,Long> forAddr = subscriptions.get(addr);
+
+        if (forAddr != null) {
+            long now = clock.currentTimeMillis();
+
+            Iterator<Map.Entry<String,Long>> iter = forAddr.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String,Long> entry = iter.next();
+
+                if (entry.getValue() <= now) {
+                    logger.info("subscription of {} to {} expired", entry.getKey(), addr);
+
+                    iter.remove();
+                } else {
+                    found = true;
+                }
+            }
+        }
+
+        return found;
+    }
+    // }}}
+
+    // {{{ handle
+    /** {@inheritDoc} */
+    public void handle(final Message<JsonObject> msg) {
+        String action = msg.body.getString("action");
+
+        if (action == null) {
+            sendError(msg, "no action provided");
+        } else {
+            switch (action) {
+                case "subscribe":
+                    subscribe(msg);
+                    break;
+
+                case "unsubscribe":
+                    unsubscribe(msg);
+                    break;
+
+                case "list":
+                    list(msg);
+                    break;
+
+                default:
+                    sendError(msg, "unknown action " + action);
+                    break;
+            }
+        }
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ subscribe
+    private void subscribe(final Message<JsonObject> msg) {
+        /*
+        {
+            "action":"subscribe",
+            "address":"jenkins.run",
+            "subscriberId":"dashboard-1",
+            // optional; subscribe again before it runs out
+            "leaseMillis":60000
+        }
+        */
+
+        String addr = msg.body.getString("address");
+        String subscriberId = msg.body.getString("subscriberId");
+        Number leaseMillis = msg.body.getNumber("leaseMillis");
+
+        if (addr == null) {
+            sendError(msg, "missing address");
+        } else if (subscriberId == null) {
+            sendError(msg, "missing subscriberId");
+        } else {
+            long lease = Math.min(
+                MAX_LEASE_MILLIS,
+                leaseMillis == null ? DEFAULT_LEASE_MILLIS : leaseMillis.longValue()
+            );
+
+            if (lease <= 0) {
+                sendError(msg, "invalid leaseMillis " + leaseMillis);
+            } else {
+                ConcurrentMap<String,Long> forAddr = subscriptions.get(addr);
+
+                if (forAddr == null) {
+                    subscriptions.putIfAbsent(addr, new ConcurrentHashMap<String,Long>());
+                    forAddr = subscriptions.get(addr);
+                }
+
+                forAddr.put(subscriberId, clock.currentTimeMillis() + lease);
+
+                sendOk(msg, new JsonObject().putNumber("leaseMillis", lease));
+            }
+        }
+    }
+    // }}}
+
+    // {{{ unsubscribe
+    private void unsubscribe(final Message<JsonObject> msg) {
+        String addr = msg.body.getString("address");
+        String subscriberId = msg.body.getString("subscriberId");
+
+        ConcurrentMap<String,Long> forAddr =
+            addr == null ? null : subscriptions.get(addr);
+
+        if (forAddr == null || subscriberId == null || forAddr.remove(subscriberId) == null) {
+            sendError(msg, "not subscribed");
+        } else {
+            sendOk(msg, null);
+        }
+    }
+    // }}}
+
+    // {{{ list
+    private void list(final Message<JsonObject> msg) {
+        JsonArray jsonSubscriptions = new JsonArray();
+
+        long now = clock.currentTimeMillis();
+
+        for (Map.Entry<String,ConcurrentMap<String,Long>> forAddr : subscriptions.entrySet()) {
+            for (Map.Entry<String,Long> entry : forAddr.getValue().entrySet()) {
+                if (entry.getValue() > now) {
+                    jsonSubscriptions.addObject(
+                        new JsonObject()
+                            .putString("address", forAddr.getKey())
+                            .putString("subscriberId", entry.getKey())
+                            .putNumber("expiresInMillis", entry.getValue() - now)
+                    );
+                }
+            }
+        }
+
+        sendOk(msg, new JsonObject().putArray("subscriptions", jsonSubscriptions));
+    }
+    // }}}
+
+    // {{{ sendError
+    private void sendError(final Message<JsonObject> message, final String error) {
+        logger.error(error);
+
+        message.reply(
+            new JsonObject()
+                .putString("status", "error")
+                .putString("message", error)
+        );
+    }
+    // }}}
+
+    // {{{ sendOk
+    private void sendOk(final Message<JsonObject> message, final JsonObject obj) {
+        JsonObject resp = new JsonObject()
+            .putString("status", "ok");
+
+        if (obj != null) {
+            resp.putObject("result", obj);
+        }
+
+        message.reply(resp);
+    }
+    // }}}
+}
@@ -0,0 +1,174 @@
+package org.bravo5.jenkins.vertx;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+
+/**
+ * Compact, fixed-schema alternative to {@link SerializeUtil} for the objects
+ * that show up in every event.  Built from plain getters, without reflection
+ * or intermediate text.
+ *
+ * The schema is versioned; fields are only ever added within a version.
+ */
+final class SummarySerializer {
+    /** Included in every summary as "schema". */
+    static final int SCHEMA_VERSION = 1;
+
+    /**
+     * Utility classes don't get constructors.
+     */
+    private SummarySerializer() {
+        throw new UnsupportedOperationException("don't do that.");
+    }
+
+    // {{{ summarize
+    /**
+     * <pre>
+     * {
+     *     "schema":1,
+     *     "job":"folder/parameterized",
+     *     "number":12,
+     *     "building":false,
+     *     "result":"SUCCESS",
+     *     "duration":4321,
+     *     "timestamp":1346971313525,
+     *     "causes":["hudson.model.Cause$UserIdCause"]
+     * }
+     * </pre>
+     *
+     * @param run the Run to summarize; may be null
+     * @return the summary, or null if run is null
+     */
+    static JsonObject summarize(final Run run) {
+        JsonObject json = null;
+
+        if (run != null) {
+            Result result = run.getResult();
+
+            JsonArray causes = new JsonArray();
+            for (Object cause : run.getCauses()) {
+                causes.addString(((Cause) cause).getClass().getName());
+            }
+
+            json = new JsonObject()
+                .putNumber("schema", SCHEMA_VERSION)
+                .putString("job", run.getParent().getFullName())
+                .putNumber("number", run.getNumber())
+                .putBoolean("building", run.isBuilding())
+                .putString("result", result == null ? null : result.toString())
+                .putNumber("duration", run.getDuration())
+                .putNumber("timestamp", run.getTimeInMillis())
+                .putArray("causes", causes);
+        }
+
+        return json;
+    }
+    // }}}
+
+    // {{{ reference
+    /**
+     * Just enough to identify a Run and fetch it when needed, without
+     * touching anything that isn't already loaded with its build record.
+     *
+     * <pre>
+     * {
+     *     "number":11,
+     *     "id":"2012-09-06_16-35-02",
+     *     "result":"FAILURE",
+     *     "url":"job/parameterized/11/"
+     * }
+     * </pre>
+     *
+     * @param run the Run to refer to; may be null
+     * @return the reference, or null if run is null
+     */
+    static JsonObject reference(final Run run) {
+        JsonObject json = null;
+
+        if (run != null) {
+            Result result = run.getResult();
+
+            json = new JsonObject()
+                .putNumber("number", run.getNumber())
+                .putString("id", run.getId())
+                .putString("result", result == null ? null : result.toString())
+                .putString("url", run.getUrl());
+        }
+
+        return json;
+    }
+    // }}}
+
+    // {{{ summarize
+    /**
+     * <pre>
+     * {
+     *     "schema":1,
+     *     "fullName":"folder/parameterized",
+     *     "url":"job/folder/job/parameterized/",
+     *     "class":"hudson.model.FreeStyleProject",
+     *     "buildable":true
+     * }
+     * </pre>
+     *
+     * @param item the Item to summarize; may be null
+     * @return the summary, or null if item is null
+     */
+    static JsonObject summarize(final Item item) {
+        JsonObject json = null;
+
+        if (item != null) {
+            json = new JsonObject()
+                .putNumber("schema", SCHEMA_VERSION)
+                .putString("fullName", item.getFullName())
+                .putString("url", item.getUrl())
+                .putString("class", item.getClass().getName())
+                .putBoolean(
+                    "buildable",
+                    item instanceof AbstractProject && ((AbstractProject) item).isBuildable()
+                );
+        }
+
+        return json;
+    }
+    // }}}
+
+    // {{{ summarize
+    /**
+     * <pre>
+     * {
+     *     "schema":1,
+     *     "id":5,
+     *     "task":"parameterized",
+     *     "blocked":false
+     * }
+     * </pre>
+     *
+     * There's no "why": computing it consults the QueueTaskDispatchers
+     * again, and the summary is built from within one.
+     *
+     * @param queueItem the Queue.Item to summarize; may be null
+     * @return the summary, or null if queueItem is null
+     */
+    static JsonObject summarize(final Queue.Item queueItem) {
+        JsonObject json = null;
+
+        if (queueItem != null) {
+            json = new JsonObject()
+                .putNumber("schema", SCHEMA_VERSION)
+                .putNumber("id", queueItem.id)
+                .putString("task", queueItem.task.getName())
+                .putBoolean("blocked", queueItem.isBlocked());
+        }
+
+        return json;
+    }
+    // }}}
+}
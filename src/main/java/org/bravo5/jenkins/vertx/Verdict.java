@@ -0,0 +1,126 @@
+package org.bravo5.jenkins.vertx;
+
+import hudson.model.queue.CauseOfBlockage;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A dispatch decision returned by an EventBus handler, along with how long
+ * it may be reused.
+ */
+class Verdict {
+    /** Verdict used when a handler didn't say anything useful. */
+    static final Verdict ALLOW = new Verdict(null, 0L);
+
+    /** Why the item is blocked; null if it isn't. */
+    private final String reason;
+
+    /** When the verdict stops being valid, in epoch millis. */
+    private final long expiresAt;
+
+    // {{{ constructor
+    /**
+     * @param reason why the item is blocked, or null if it is not
+     * @param expiresAt when the verdict expires, in epoch millis
+     */
+    Verdict(final String reason, final long expiresAt) {
+        this.reason = reason;
+        this.expiresAt = expiresAt;
+    }
+    // }}}
+
+    // {{{ fromReply
+    /**
+     * Builds a Verdict from a handler's reply.
+     *
+     * <pre>
+     * {"canRun": false, "reason": "don't wanna", "cacheMillis": 30000}
+     * </pre>
+     *
+     * @param reply the reply body
+     * @param resultField name of the boolean field holding the decision
+     * @param now the current time, in epoch millis
+     * @param defaultCacheMillis how long the verdict is valid if the reply
+     *        doesn't say
+     * @return the verdict
+     */
+    static Verdict fromReply(final JsonObject reply,
+                             final String resultField,
+                             final long now,
+                             final long defaultCacheMillis)
+    {
+        String reason = null;
+
+        if (! reply.getBoolean(resultField, true)) {
+            reason = reply.getString("reason", "reason not specified");
+        }
+
+        Number cacheMillis = reply.getNumber("cacheMillis");
+
+        return new Verdict(
+            reason,
+            now + (cacheMillis == null ? defaultCacheMillis : cacheMillis.longValue())
+        );
+    }
+    // }}}
+
+    // {{{ isError
+    /**
+     * Error replies carry no verdict.
+     *
+     * <pre>
+     * {"status": "error", "message": "…"}
+     * </pre>
+     *
+     * @param reply the reply body
+     * @return true if the handler failed, or the request couldn't be
+     *         delivered
+     */
+    static boolean isError(final JsonObject reply) {
+        return reply.getField("error") != null
+            || "error".equals(reply.getField("status"));
+    }
+    // }}}
+
+    // {{{ isBlocked
+    boolean isBlocked() {
+        return reason != null;
+    }
+    // }}}
+
+    // {{{ getReason
+    String getReason() {
+        return reason;
+    }
+    // }}}
+
+    // {{{ isExpired
+    /**
+     * @param now the current time, in epoch millis
+     * @return true if the verdict may no longer be used
+     */
+    boolean isExpired(final long now) {
+        return now >= expiresAt;
+    }
+    // }}}
+
+    // {{{ toCauseOfBlockage
+    /**
+     * @return the Jenkins representation of this verdict; null if not blocked
+     */
+    CauseOfBlockage toCauseOfBlockage() {
+        CauseOfBlockage cause = null;
+
+        if (reason != null) {
+            cause = new CauseOfBlockage() {
+                @Override
+                public String getShortDescription() {
+                    return reason;
+                }
+            };
+        }
+
+        return cause;
+    }
+    // }}}
+}
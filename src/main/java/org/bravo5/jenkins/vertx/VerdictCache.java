@@ -0,0 +1,142 @@
+package org.bravo5.jenkins.vertx;
+
+import hudson.model.Queue;
+
+import java.util.List;
+
+/**
+ * Remembers canRun verdicts for queue items so that repeated calls during
+ * queue maintenance don't each need an EventBus round trip.
+ *
+ * Entries are keyed on the item id and only used while the item's task name
+ * and parameters are unchanged.  They expire after the time given by the
+ * handler, are evicted least-recently-used first and are discarded once the
+ * item leaves the queue.
+ */
+class VerdictCache {
+    private final LruCache<Integer,Entry> verdicts;
+
+    // {{{ constructor
+    /**
+     * @param maxSize maximum number of verdicts retained
+     */
+    VerdictCache(final int maxSize) {
+        verdicts = new LruCache<>(maxSize);
+    }
+    // }}}
+
+    // {{{ get
+    /**
+     * @param queueItem the item being dispatched
+     * @param now the current time, in epoch millis
+     * @return the cached verdict, or null if there is no live one
+     */
+    Verdict get(final Queue.Item queueItem, final long now) {
+        Entry entry = verdicts.get(queueItem.id);
+        Verdict verdict = null;
+
+        if (entry != null) {
+            if (entry.matches(queueItem) && ! entry.verdict.isExpired(now)) {
+                verdict = entry.verdict;
+            } else {
+                verdicts.remove(queueItem.id);
+            }
+        }
+
+        return verdict;
+    }
+    // }}}
+
+    // {{{ put
+    /**
+     * Caches a verdict, unless it has already expired.  Replaces whatever
+     * was cached for the item.
+     *
+     * @param queueItem the item the verdict applies to
+     * @param verdict the verdict
+     * @param now the current time, in epoch millis
+     */
+    void put(final Queue.Item queueItem, final Verdict verdict, final long now) {
+        if (! verdict.isExpired(now)) {
+            verdicts.put(queueItem.id, new Entry(queueItem, verdict));
+        }
+    }
+    // }}}
+
+    // {{{ invalidateAll
+    void invalidateAll() {
+        verdicts.clear();
+    }
+    // }}}
+
+    // {{{ invalidateItem
+    /**
+     * @param itemId id of the queue item whose verdict is discarded
+     */
+    void invalidateItem(final int itemId) {
+        verdicts.remove(itemId);
+    }
+    // }}}
+
+    // {{{ invalidateTask
+    /**
+     * @param taskName name of the task whose verdicts are discarded
+     */
+    void invalidateTask(final String taskName) {
+        for (Integer itemId : verdicts.keys()) {
+            Entry entry = verdicts.get(itemId);
+
+            if (entry != null && taskName.equals(entry.taskName)) {
+                verdicts.remove(itemId);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ itemIds
+    /**
+     * @return ids of the items with cached verdicts
+     */
+    List<Integer> itemIds() {
+        return verdicts.keys();
+    }
+    // }}}
+
+    // {{{ size
+    int size() {
+        return verdicts.size();
+    }
+    // }}}
+
+    /**
+     * A verdict and the configuration of the item it was given for.
+     */
+    private static class Entry {
+        private final String taskName;
+        private final String params;
+        private final Verdict verdict;
+
+        // {{{ constructor
+        Entry(final Queue.Item queueItem, final Verdict verdict) {
+            taskName = queueItem.task.getName();
+            params = queueItem.getParams();
+
+            this.verdict = verdict;
+        }
+        // }}}
+
+        // {{{ matches
+        /**
+         * @return true if the item still has the task name and parameters
+         *         the verdict was given for
+         */
+        boolean matches(final Queue.Item queueItem) {
+            String otherTaskName = queueItem.task.getName();
+            String otherParams = queueItem.getParams();
+
+            return (taskName == null ? otherTaskName == null : taskName.equals(otherTaskName))
+                && (params == null ? otherParams == null : params.equals(otherParams));
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,216 @@
+package org.bravo5.jenkins.vertx;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * How the verdicts of several queue dispatch handlers are combined.
+ *
+ * Handlers that don't reply in time, or reply with an error, count as allowing
+ * the item to run.
+ */
+enum VerdictPolicy {
+    /** Blocked if any handler blocks. */
+    ANY_BLOCK("anyBlock"),
+
+    /** Blocked if more than half of the handlers block. */
+    MAJORITY("majority"),
+
+    /**
+     * Whichever handler answers first decides.  Cached verdicts only decide
+     * if none of the handlers that were asked answers.
+     */
+    FIRST_REPLY("firstReply");
+
+    /** Name used on the EventBus. */
+    private final String policyName;
+
+    // {{{ constructor
+    VerdictPolicy(final String policyName) {
+        this.policyName = policyName;
+    }
+    // }}}
+
+    // {{{ getPolicyName
+    String getPolicyName() {
+        return policyName;
+    }
+    // }}}
+
+    // {{{ fromString
+    /**
+     * @param policyName the name used on the EventBus
+     * @return the matching policy
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static VerdictPolicy fromString(final String policyName) {
+        for (VerdictPolicy policy : values()) {
+            if (policy.policyName.equals(policyName)) {
+                return policy;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown policy " + policyName);
+    }
+    // }}}
+
+    // {{{ newTally
+    /**
+     * @param voters number of handlers being asked
+     * @return an empty tally for this policy
+     */
+    Tally newTally(final int voters) {
+        return new Tally(this, voters);
+    }
+    // }}}
+
+    /**
+     * Collects verdicts for a single queue item.
+     */
+    static class Tally {
+        private final VerdictPolicy policy;
+        private final int voters;
+
+        /** Verdicts and abstentions. */
+        private int received;
+        private int blocks;
+
+        /** The first verdict that was actually received. */
+        private Verdict first;
+
+        /** The first cached verdict. */
+        private Verdict firstCached;
+
+        private final Set<String> reasons = new LinkedHashSet<>();
+
+        // {{{ constructor
+        Tally(final VerdictPolicy policy, final int voters) {
+            this.policy = policy;
+            this.voters = voters;
+        }
+        // }}}
+
+        // {{{ add
+        /**
+         * @param verdict a handler's reply
+         */
+        void add(final Verdict verdict) {
+            if (first == null) {
+                first = verdict;
+            }
+
+            count(verdict);
+        }
+        // }}}
+
+        // {{{ addCached
+        /**
+         * @param verdict a handler's earlier reply, from the cache
+         */
+        void addCached(final Verdict verdict) {
+            if (firstCached == null) {
+                firstCached = verdict;
+            }
+
+            count(verdict);
+        }
+        // }}}
+
+        // {{{ abstain
+        /**
+         * Records a handler that replied without a verdict, such as with an
+         * error.
+         */
+        void abstain() {
+            received++;
+        }
+        // }}}
+
+        // {{{ isDecided
+        /**
+         * @return true if further verdicts can't change the outcome
+         */
+        boolean isDecided() {
+            boolean decided = received >= voters;
+
+            if (! decided) {
+                switch (policy) {
+                    case ANY_BLOCK:
+                        decided = blocks > 0;
+                        break;
+
+                    case MAJORITY:
+                        int outstanding = voters - received;
+
+                        decided = (blocks * 2 > voters)
+                            || ((blocks + outstanding) * 2 <= voters);
+                        break;
+
+                    case FIRST_REPLY:
+                        decided = first != null;
+                        break;
+                }
+            }
+
+            return decided;
+        }
+        // }}}
+
+        // {{{ getResult
+        /**
+         * @return the combined verdict; never cached
+         */
+        Verdict getResult() {
+            Verdict decider = first == null ? firstCached : first;
+            boolean blocked;
+
+            switch (policy) {
+                case MAJORITY:
+                    blocked = blocks * 2 > voters;
+                    break;
+
+                case FIRST_REPLY:
+                    blocked = decider != null && decider.isBlocked();
+                    break;
+
+                default:
+                    blocked = blocks > 0;
+                    break;
+            }
+
+            Verdict result = Verdict.ALLOW;
+
+            if (blocked) {
+                if (policy == FIRST_REPLY) {
+                    result = new Verdict(decider.getReason(), 0L);
+                } else {
+                    StringBuilder sb = new StringBuilder();
+
+                    for (String reason : reasons) {
+                        if (sb.length() > 0) {
+                            sb.append("; ");
+                        }
+
+                        sb.append(reason);
+                    }
+
+                    result = new Verdict(sb.toString(), 0L);
+                }
+            }
+
+            return result;
+        }
+        // }}}
+
+        // {{{ count
+        private void count(final Verdict verdict) {
+            received++;
+
+            if (verdict.isBlocked()) {
+                blocks++;
+                reasons.add(verdict.getReason());
+            }
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,361 @@
+package org.bravo5.jenkins.vertx.codec;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes JsonObjects as CBOR (RFC 7049) and back.
+ *
+ * Only what JSON can express is supported: maps with string keys, arrays,
+ * strings, integers, doubles, booleans and null.  Lengths are always
+ * definite.  Verticles that receive {@link Buffer} messages from the plugin
+ * can decode them with {@link #decode(Buffer)}; the class depends on nothing
+ * but vert.x, so they don't need Jenkins on their classpath to do so.
+ */
+public final class CborCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+
+    /**
+     * Utility classes don't get constructors.
+     */
+    private CborCodec() {
+        throw new UnsupportedOperationException("don't do that.");
+    }
+
+    // {{{ encode
+    /**
+     * @param json the object to encode
+     * @return the CBOR encoding
+     */
+    public static byte[] encode(final JsonObject json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        writeValue(out, json.toMap());
+
+        return out.toByteArray();
+    }
+    // }}}
+
+    // {{{ decode
+    /**
+     * @param bytes a CBOR-encoded map
+     * @return the decoded object
+     * @throws IllegalArgumentException if the data isn't a supported CBOR map
+     */
+    public static JsonObject decode(final byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        Object value;
+
+        try {
+            value = readValue(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated CBOR data");
+        }
+
+        if (! (value instanceof Map)) {
+            throw new IllegalArgumentException("CBOR data isn't a map");
+        }
+
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("trailing bytes after CBOR data");
+        }
+
+        return new JsonObject((Map<String,Object>) value);
+    }
+    // }}}
+
+    // {{{ decode
+    /**
+     * @param buffer the body of a message published by the plugin
+     * @return the decoded object
+     * @throws IllegalArgumentException if the data isn't a supported CBOR map
+     */
+    public static JsonObject decode(final Buffer buffer) {
+        return decode(buffer.getBytes());
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ writeValue
+    private static void writeValue(final ByteArrayOutputStream out, final Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(FLOAT64);
+            writeLong(out, Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+        } else if (value instanceof Number) {
+            long l = ((Number) value).longValue();
+
+            if (l >= 0) {
+                writeHead(out, MAJOR_UNSIGNED, l);
+            } else {
+                writeHead(out, MAJOR_NEGATIVE, -1L - l);
+            }
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(UTF8);
+
+            writeHead(out, MAJOR_TEXT, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof Map) {
+            Map<?,?> map = (Map<?,?>) value;
+
+            writeHead(out, MAJOR_MAP, map.size());
+
+            for (Map.Entry<?,?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey().toString());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+
+            writeHead(out, MAJOR_ARRAY, list.size());
+
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+
+            writeHead(out, MAJOR_BYTES, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else {
+            throw new IllegalArgumentException(
+                "can't encode " + value.getClass().getName()
+            );
+        }
+    }
+    // }}}
+
+    // {{{ writeHead
+    /**
+     * Writes the initial byte of an item and its argument in the shortest
+     * form possible.
+     */
+    private static void writeHead(final ByteArrayOutputStream out,
+                                  final int major,
+                                  final long argument)
+    {
+        int type = major << 5;
+
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument <= 0xffL) {
+            out.write(type | 24);
+            writeLong(out, argument, 1);
+        } else if (argument <= 0xffffL) {
+            out.write(type | 25);
+            writeLong(out, argument, 2);
+        } else if (argument <= 0xffffffffL) {
+            out.write(type | 26);
+            writeLong(out, argument, 4);
+        } else {
+            out.write(type | 27);
+            writeLong(out, argument, 8);
+        }
+    }
+    // }}}
+
+    // {{{ writeLong
+    /**
+     * Writes the low-order bytes of a value, big-endian.
+     */
+    private static void writeLong(final ByteArrayOutputStream out,
+                                  final long value,
+                                  final int byteCount)
+    {
+        for (int shift = (byteCount - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+    // }}}
+
+    // {{{ readValue
+    private static Object readValue(final ByteBuffer in) {
+        int initial = in.get() & 0xff;
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+
+        Object value;
+
+        switch (major) {
+            case MAJOR_UNSIGNED:
+                value = narrow(readArgument(in, info));
+                break;
+
+            case MAJOR_NEGATIVE:
+                value = narrow(-1L - readArgument(in, info));
+                break;
+
+            case MAJOR_BYTES:
+                value = readBytes(in, readLength(in, info));
+                break;
+
+            case MAJOR_TEXT:
+                value = new String(readBytes(in, readLength(in, info)), UTF8);
+                break;
+
+            case MAJOR_ARRAY: {
+                int length = readLength(in, info);
+                List<Object> list = new ArrayList<>(Math.min(length, in.remaining()));
+
+                for (int i = 0; i < length; i++) {
+                    list.add(readValue(in));
+                }
+
+                value = list;
+                break;
+            }
+
+            case MAJOR_MAP: {
+                int length = readLength(in, info);
+                Map<String,Object> map = new LinkedHashMap<>();
+
+                for (int i = 0; i < length; i++) {
+                    Object key = readValue(in);
+
+                    if (! (key instanceof String)) {
+                        throw new IllegalArgumentException("map key isn't a string");
+                    }
+
+                    map.put((String) key, readValue(in));
+                }
+
+                value = map;
+                break;
+            }
+
+            case MAJOR_SIMPLE:
+                value = readSimple(in, initial);
+                break;
+
+            default:
+                // tags
+                throw new IllegalArgumentException("unsupported CBOR major type " + major);
+        }
+
+        return value;
+    }
+    // }}}
+
+    // {{{ readSimple
+    private static Object readSimple(final ByteBuffer in, final int initial) {
+        Object value;
+
+        switch (initial) {
+            case FALSE:
+                value = Boolean.FALSE;
+                break;
+
+            case TRUE:
+                value = Boolean.TRUE;
+                break;
+
+            case NULL:
+                value = null;
+                break;
+
+            case FLOAT32:
+                value = (double) in.getFloat();
+                break;
+
+            case FLOAT64:
+                value = in.getDouble();
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                    "unsupported CBOR simple value " + Integer.toHexString(initial)
+                );
+        }
+
+        return value;
+    }
+    // }}}
+
+    // {{{ readArgument
+    private static long readArgument(final ByteBuffer in, final int info) {
+        long argument;
+
+        if (info < 24) {
+            argument = info;
+        } else if (info == 24) {
+            argument = in.get() & 0xffL;
+        } else if (info == 25) {
+            argument = in.getShort() & 0xffffL;
+        } else if (info == 26) {
+            argument = in.getInt() & 0xffffffffL;
+        } else if (info == 27) {
+            argument = in.getLong();
+
+            if (argument < 0) {
+                throw new IllegalArgumentException("CBOR integer too large");
+            }
+        } else {
+            // includes indefinite lengths
+            throw new IllegalArgumentException("unsupported CBOR argument " + info);
+        }
+
+        return argument;
+    }
+    // }}}
+
+    // {{{ readLength
+    private static int readLength(final ByteBuffer in, final int info) {
+        long length = readArgument(in, info);
+
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("truncated CBOR data");
+        }
+
+        return (int) length;
+    }
+    // }}}
+
+    // {{{ readBytes
+    private static byte[] readBytes(final ByteBuffer in, final int length) {
+        byte[] bytes = new byte[length];
+
+        in.get(bytes);
+
+        return bytes;
+    }
+    // }}}
+
+    // {{{ narrow
+    /**
+     * Integers come out of JSON decoding as Integer where they fit.
+     */
+    private static Number narrow(final long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE
+            ? (Number) Integer.valueOf((int) value)
+            : (Number) Long.valueOf(value);
+    }
+    // }}}
+}
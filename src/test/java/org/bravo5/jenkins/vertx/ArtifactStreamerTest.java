@@ -0,0 +1,149 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.replay;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class ArtifactStreamerTest {
+    private static final String ADDR = "test.artifact";
+
+    private long now = 1348006835051L;
+
+    private File artifactsDir;
+    private Capture<Buffer> sent;
+    private ArtifactStreamer streamer;
+
+    // {{{ setUp
+    @Before
+    public void setUp() throws IOException {
+        artifactsDir = File.createTempFile("archive", "");
+        artifactsDir.delete();
+        artifactsDir.mkdir();
+
+        try (FileOutputStream out = new FileOutputStream(new File(artifactsDir, "app.war"))) {
+            out.write("0123456789".getBytes("US-ASCII"));
+        }
+
+        sent = new Capture<>(CaptureType.ALL);
+
+        EventBus mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+        mockEventBus.send(eq(ADDR), capture(sent));
+        EasyMock.expectLastCall().anyTimes();
+
+        replay(mockEventBus);
+
+        streamer = new ArtifactStreamer(
+            mockEventBus,
+            null,
+            new Clock() {
+                public long currentTimeMillis() {
+                    return now;
+                }
+            },
+            4,
+            1000L
+        );
+    }
+    // }}}
+
+    // {{{ tearDown
+    @After
+    public void tearDown() {
+        new File(artifactsDir, "app.war").delete();
+        artifactsDir.delete();
+    }
+    // }}}
+
+    // {{{ sendsChunksAsCreditsAllow
+    @Test
+    public void sendsChunksAsCreditsAllow() throws IOException {
+        JsonObject result = streamer.start(ADDR, artifactsDir, "app.war", 0, 2);
+
+        assertEquals(10, result.getNumber("size").intValue());
+        assertEquals(3, result.getNumber("chunks").intValue());
+
+        List<Buffer> chunks = sent.getValues();
+        assertEquals(2, chunks.size());
+        assertChunk(0, "0123", chunks.get(0));
+        assertChunk(1, "4567", chunks.get(1));
+
+        assertTrue(streamer.ack(ADDR, 2));
+
+        assertEquals(3, chunks.size());
+        assertChunk(2, "89", chunks.get(2));
+
+        // finished transfers are forgotten
+        assertFalse(streamer.ack(ADDR, 2));
+    }
+    // }}}
+
+    // {{{ resumesFromChunk
+    @Test
+    public void resumesFromChunk() throws IOException {
+        streamer.start(ADDR, artifactsDir, "app.war", 1, 4);
+
+        List<Buffer> chunks = sent.getValues();
+        assertEquals(2, chunks.size());
+        assertChunk(1, "4567", chunks.get(0));
+    }
+    // }}}
+
+    // {{{ idleTransferIsDropped
+    @Test
+    public void idleTransferIsDropped() throws IOException {
+        streamer.start(ADDR, artifactsDir, "app.war", 0, 1);
+
+        now += 1001L;
+        streamer.expire();
+
+        assertFalse(streamer.ack(ADDR, 1));
+    }
+    // }}}
+
+    // {{{ staysInArtifactsDir
+    @Test(expected = IllegalArgumentException.class)
+    public void staysInArtifactsDir() throws IOException {
+        streamer.start(ADDR, artifactsDir, "../" + artifactsDir.getName() + "/../x", 0, 1);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ assertChunk
+    private void assertChunk(final int index, final String data, final Buffer chunk)
+        throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.wrap(chunk.getBytes());
+
+        assertEquals(index, bytes.getInt());
+        assertArrayEquals(
+            data.getBytes("US-ASCII"),
+            Arrays.copyOfRange(bytes.array(), 4, bytes.limit())
+        );
+    }
+    // }}}
+}
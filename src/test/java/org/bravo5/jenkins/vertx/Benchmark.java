@@ -0,0 +1,98 @@
+package org.bravo5.jenkins.vertx;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Rough timing and allocation figures for comparing two ways of doing the
+ * same thing in a unit test.  Not a substitute for a proper harness, but
+ * enough to catch an optimization that doesn't pay off.
+ */
+public final class Benchmark {
+    /** Iterations run before measuring, so that the JIT has had a go. */
+    private static final int WARMUP_ITERATIONS = 500;
+
+    private final long nanos;
+    private final long allocatedBytes;
+
+    // {{{ constructor
+    private Benchmark(final long nanos, final long allocatedBytes) {
+        this.nanos = nanos;
+        this.allocatedBytes = allocatedBytes;
+    }
+    // }}}
+
+    // {{{ measure
+    /**
+     * @param task the code to measure
+     * @param iterations number of times to run it
+     * @return the time taken and bytes allocated by the iterations
+     */
+    public static Benchmark measure(final Runnable task, final int iterations) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.run();
+        }
+
+        long bytesBefore = allocatedBytes();
+        long started = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+
+        long nanos = System.nanoTime() - started;
+        long bytesAfter = allocatedBytes();
+
+        return new Benchmark(
+            nanos,
+            bytesBefore < 0 ? -1L : bytesAfter - bytesBefore
+        );
+    }
+    // }}}
+
+    // {{{ getNanos
+    public long getNanos() {
+        return nanos;
+    }
+    // }}}
+
+    // {{{ getAllocatedBytes
+    /**
+     * @return bytes allocated, or -1 if the JVM doesn't say
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+    // }}}
+
+    // {{{ toString
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return (nanos / 1000000L) + "ms, " + allocatedBytes + " bytes allocated";
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ allocatedBytes
+    private static long allocatedBytes() {
+        long bytes = -1L;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads =
+                (com.sun.management.ThreadMXBean) threads;
+
+            if (sunThreads.isThreadAllocatedMemorySupported()
+                && sunThreads.isThreadAllocatedMemoryEnabled())
+            {
+                bytes = sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return bytes;
+    }
+    // }}}
+}
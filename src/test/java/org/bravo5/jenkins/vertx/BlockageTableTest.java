@@ -0,0 +1,252 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import hudson.model.Action;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.labels.LabelAtom;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+public class BlockageTableTest {
+    private static final long NOW = 1348006835051L;
+
+    private BlockageTable table;
+    private Queue.Item fooItem;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        table = new BlockageTable();
+
+        fooItem = queueItem("foo", null, null);
+    }
+    // }}}
+
+    // {{{ blocksByTaskName
+    @Test
+    public void blocksByTaskName() {
+        table.block(
+            new JsonObject()
+                .putString("taskName", "foo")
+                .putString("reason", "change freeze"),
+            null,
+            NOW
+        );
+
+        assertEquals("change freeze", table.check(fooItem, NOW));
+        assertNull(table.check(queueItem("bar", null, null), NOW));
+    }
+    // }}}
+
+    // {{{ unblockRemovesRule
+    @Test
+    public void unblockRemovesRule() {
+        table.block(new JsonObject().putString("taskName", "foo"), null, NOW);
+
+        assertTrue(table.unblock(new JsonObject().putString("taskName", "foo")));
+        assertFalse(table.unblock(new JsonObject().putString("taskName", "foo")));
+
+        assertNull(table.check(fooItem, NOW));
+        assertTrue(table.isEmpty());
+    }
+    // }}}
+
+    // {{{ ruleExpiresAfterTtl
+    @Test
+    public void ruleExpiresAfterTtl() {
+        table.block(
+            new JsonObject()
+                .putString("taskName", "foo")
+                .putNumber("ttlMillis", 1000),
+            null,
+            NOW
+        );
+
+        assertEquals("blocked via vert.x", table.check(fooItem, NOW + 999));
+        assertNull(table.check(fooItem, NOW + 1000));
+
+        // dropped once it's been looked at
+        assertTrue(table.isEmpty());
+    }
+    // }}}
+
+    // {{{ ruleExpiresAt
+    @Test
+    public void ruleExpiresAt() {
+        table.block(
+            new JsonObject()
+                .putString("taskName", "foo")
+                .putNumber("expiresAt", NOW + 500),
+            null,
+            NOW
+        );
+
+        assertEquals("blocked via vert.x", table.check(fooItem, NOW + 499));
+        assertNull(table.check(fooItem, NOW + 500));
+    }
+    // }}}
+
+    // {{{ ruleWithoutExpiryGetsDefaultTtl
+    @Test
+    public void ruleWithoutExpiryGetsDefaultTtl() {
+        table.block(new JsonObject().putString("taskName", "foo"), null, NOW);
+
+        long expiresAt = NOW + BlockageTable.DEFAULT_TTL_MILLIS;
+
+        assertEquals("blocked via vert.x", table.check(fooItem, expiresAt - 1));
+        assertNull(table.check(fooItem, expiresAt));
+    }
+    // }}}
+
+    // {{{ ttlIsCapped
+    @Test
+    public void ttlIsCapped() {
+        table.block(
+            new JsonObject()
+                .putString("taskName", "foo")
+                .putNumber("ttlMillis", Long.MAX_VALUE),
+            null,
+            NOW
+        );
+
+        table.block(
+            new JsonObject()
+                .putString("taskName", "bar")
+                .putNumber("expiresAt", Long.MAX_VALUE),
+            null,
+            NOW
+        );
+
+        long expiresAt = NOW + BlockageTable.MAX_TTL_MILLIS;
+        Queue.Item barItem = queueItem("bar", null, null);
+
+        assertEquals("blocked via vert.x", table.check(fooItem, expiresAt - 1));
+        assertEquals("blocked via vert.x", table.check(barItem, expiresAt - 1));
+        assertNull(table.check(fooItem, expiresAt));
+        assertNull(table.check(barItem, expiresAt));
+    }
+    // }}}
+
+    // {{{ blocksByLabel
+    @Test
+    public void blocksByLabel() {
+        table.block(
+            new JsonObject()
+                .putString("label", "gpu")
+                .putString("reason", "no gpus"),
+            null,
+            NOW
+        );
+
+        assertEquals("no gpus", table.check(queueItem("foo", "gpu", null), NOW));
+        assertNull(table.check(queueItem("foo", "linux", null), NOW));
+        assertNull(table.check(fooItem, NOW));
+    }
+    // }}}
+
+    // {{{ blocksByParamsPattern
+    @Test
+    public void blocksByParamsPattern() {
+        table.block(
+            new JsonObject()
+                .putString("paramsPattern", "deploy=prod")
+                .putString("reason", "no prod deploys"),
+            null,
+            NOW
+        );
+
+        assertEquals(
+            "no prod deploys",
+            table.check(queueItem("foo", null, "prod"), NOW)
+        );
+
+        assertNull(table.check(queueItem("foo", null, "staging"), NOW));
+        assertNull(table.check(fooItem, NOW));
+    }
+    // }}}
+
+    // {{{ invalidPatternIsRejected
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPatternIsRejected() {
+        table.block(new JsonObject().putString("paramsPattern", "("), null, NOW);
+    }
+    // }}}
+
+    // {{{ missingSelectorIsRejected
+    @Test(expected = IllegalArgumentException.class)
+    public void missingSelectorIsRejected() {
+        table.block(new JsonObject().putString("reason", "why"), null, NOW);
+    }
+    // }}}
+
+    // {{{ removesRulesOfOwner
+    @Test
+    public void removesRulesOfOwner() {
+        table.block(new JsonObject().putString("taskName", "foo"), "someAddr", NOW);
+        table.block(new JsonObject().putString("label", "gpu"), "someAddr", NOW);
+        table.block(new JsonObject().putString("taskName", "bar"), "otherAddr", NOW);
+        table.block(new JsonObject().putString("taskName", "baz"), null, NOW);
+
+        assertEquals(2, table.removeOwnedBy("someAddr"));
+
+        assertNull(table.check(fooItem, NOW));
+        assertNull(table.check(queueItem("qux", "gpu", null), NOW));
+        assertEquals(
+            "blocked via vert.x",
+            table.check(queueItem("bar", null, null), NOW)
+        );
+        assertEquals(
+            "blocked via vert.x",
+            table.check(queueItem("baz", null, null), NOW)
+        );
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ queueItem
+    /**
+     * @param label the task's assigned label; may be null
+     * @param deploy value of the item's "deploy" parameter; none if null
+     */
+    private Queue.Item queueItem(final String taskName,
+                                 final String label,
+                                 final String deploy)
+    {
+        Queue.Task task = EasyMock.createNiceMock(taskName, Queue.Task.class);
+
+        expect(task.getName()).andStubReturn(taskName);
+        expect(task.getAssignedLabel())
+            .andStubReturn(label == null ? null : new LabelAtom(label));
+
+        replay(task);
+
+        return new Queue.WaitingItem(
+            Calendar.getInstance(),
+            task,
+            deploy == null
+                ? Collections.<Action>emptyList()
+                : Collections.<Action>singletonList(
+                    new ParametersAction(new StringParameterValue("deploy", deploy))
+                )
+        );
+    }
+    // }}}
+}
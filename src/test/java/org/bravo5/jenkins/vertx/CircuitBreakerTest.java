@@ -0,0 +1,142 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    private static final int THRESHOLD = 3;
+    private static final long COOL_DOWN_MILLIS = 1000L;
+
+    private FakeClock clock;
+    private CircuitBreaker breaker;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        breaker = new CircuitBreaker(THRESHOLD, COOL_DOWN_MILLIS);
+    }
+    // }}}
+
+    // {{{ opensAfterConsecutiveTimeouts
+    @Test
+    public void opensAfterConsecutiveTimeouts() {
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            breaker.recordTimeout(clock.currentTimeMillis());
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+
+        breaker.recordTimeout(clock.currentTimeMillis());
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(clock.currentTimeMillis()));
+    }
+    // }}}
+
+    // {{{ replyResetsCount
+    @Test
+    public void replyResetsCount() {
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            breaker.recordTimeout(clock.currentTimeMillis());
+        }
+
+        breaker.recordReply();
+        breaker.recordTimeout(clock.currentTimeMillis());
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+    // }}}
+
+    // {{{ errorsCountAsFailures
+    @Test
+    public void errorsCountAsFailures() {
+        breaker.recordTimeout(clock.currentTimeMillis());
+
+        for (int i = 0; i < THRESHOLD - 1; i++) {
+            breaker.recordFailure(clock.currentTimeMillis());
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+    // }}}
+
+    // {{{ probesAfterCoolDownAndCloses
+    /**
+     * closed → open → half-open → closed
+     */
+    @Test
+    public void probesAfterCoolDownAndCloses() {
+        open();
+
+        clock.advance(COOL_DOWN_MILLIS - 1);
+        assertFalse(breaker.allowRequest(clock.currentTimeMillis()));
+
+        clock.advance(1);
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // only one probe at a time
+        assertFalse(breaker.allowRequest(clock.currentTimeMillis()));
+
+        breaker.recordReply();
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+    }
+    // }}}
+
+    // {{{ failedProbeReopens
+    @Test
+    public void failedProbeReopens() {
+        open();
+
+        clock.advance(COOL_DOWN_MILLIS);
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+
+        // a single failure is enough while probing
+        breaker.recordFailure(clock.currentTimeMillis());
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // and the cool-down starts over
+        clock.advance(COOL_DOWN_MILLIS - 1);
+        assertFalse(breaker.allowRequest(clock.currentTimeMillis()));
+
+        clock.advance(1);
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+    }
+    // }}}
+
+    // {{{ abandonedProbeIsRetried
+    @Test
+    public void abandonedProbeIsRetried() {
+        open();
+
+        clock.advance(COOL_DOWN_MILLIS);
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+
+        breaker.recordAbandoned();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest(clock.currentTimeMillis()));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ open
+    private void open() {
+        for (int i = 0; i < THRESHOLD; i++) {
+            breaker.recordTimeout(clock.currentTimeMillis());
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+    // }}}
+}
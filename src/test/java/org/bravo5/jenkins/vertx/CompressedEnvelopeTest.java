@@ -0,0 +1,100 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.bravo5.jenkins.vertx.codec.CborCodec;
+
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+public class CompressedEnvelopeTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // {{{ roundTripsJson
+    @Test
+    public void roundTripsJson() {
+        JsonObject json = createMessage();
+        byte[] data = json.encode().getBytes(UTF8);
+
+        JsonObject envelope = CompressedEnvelope.wrap(data, "json");
+
+        assertTrue(CompressedEnvelope.isEnvelope(envelope));
+        assertEquals(data.length, envelope.getNumber("size").intValue());
+        assertTrue(envelope.encode().length() < data.length);
+
+        assertEquals(json.toMap(), CompressedEnvelope.open(envelope).toMap());
+    }
+    // }}}
+
+    // {{{ roundTripsCbor
+    @Test
+    public void roundTripsCbor() {
+        JsonObject json = createMessage();
+
+        Buffer published = new Buffer(
+            CborCodec.encode(
+                CompressedEnvelope.wrap(CborCodec.encode(json), "cbor")
+            )
+        );
+
+        assertEquals(json.toMap(), CompressedEnvelope.open(published).toMap());
+    }
+    // }}}
+
+    // {{{ passesOtherMessagesThrough
+    @Test
+    public void passesOtherMessagesThrough() {
+        JsonObject json = new JsonObject().putString("action", "started");
+
+        assertFalse(CompressedEnvelope.isEnvelope(json));
+        assertSame(json, CompressedEnvelope.open(json));
+    }
+    // }}}
+
+    // {{{ rejectsTruncatedData
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedData() {
+        JsonObject envelope = CompressedEnvelope.wrap(
+            createMessage().encode().getBytes(UTF8),
+            "json"
+        );
+
+        envelope.putNumber("size", envelope.getNumber("size").intValue() + 1);
+
+        CompressedEnvelope.open(envelope);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ createMessage
+    private JsonObject createMessage() {
+        JsonArray builds = new JsonArray();
+
+        for (int i = 1; i <= 200; i++) {
+            builds.addObject(
+                new JsonObject()
+                    .putNumber("number", i)
+                    .putString("url", "job/parameterized/" + i + "/")
+            );
+        }
+
+        return new JsonObject()
+            .putString("action", "updated")
+            .putObject(
+                "data",
+                new JsonObject()
+                    .putString("fullName", "parameterized")
+                    .putArray("builds", builds)
+            );
+    }
+    // }}}
+}
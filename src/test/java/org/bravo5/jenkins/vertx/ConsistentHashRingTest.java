@@ -0,0 +1,105 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ConsistentHashRingTest {
+    private static final int KEY_COUNT = 1000;
+
+    private ConsistentHashRing ring;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        ring = new ConsistentHashRing();
+    }
+    // }}}
+
+    // {{{ emptyRingHasNoMembers
+    @Test
+    public void emptyRingHasNoMembers() {
+        assertTrue(ring.isEmpty());
+        assertNull(ring.memberFor("job"));
+    }
+    // }}}
+
+    // {{{ keysAreStable
+    @Test
+    public void keysAreStable() {
+        ring.add("a");
+        ring.add("b");
+        ring.add("c");
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertEquals(ring.memberFor("job-" + i), ring.memberFor("job-" + i));
+        }
+    }
+    // }}}
+
+    // {{{ addingMemberOnlyMovesKeysToIt
+    @Test
+    public void addingMemberOnlyMovesKeysToIt() {
+        ring.add("a");
+        ring.add("b");
+        ring.add("c");
+
+        Map<String,String> before = assignments();
+
+        ring.add("d");
+
+        Map<String,String> after = assignments();
+
+        int moved = 0;
+
+        for (String key : before.keySet()) {
+            if (! before.get(key).equals(after.get(key))) {
+                assertEquals("d", after.get(key));
+                moved++;
+            }
+        }
+
+        // roughly a quarter of the keys should move; allow plenty of slack
+        assertTrue("moved " + moved, moved > 0 && moved < KEY_COUNT / 2);
+    }
+    // }}}
+
+    // {{{ removingMemberOnlyMovesItsKeys
+    @Test
+    public void removingMemberOnlyMovesItsKeys() {
+        ring.add("a");
+        ring.add("b");
+        ring.add("c");
+
+        Map<String,String> before = assignments();
+
+        ring.remove("b");
+
+        Map<String,String> after = assignments();
+
+        for (String key : before.keySet()) {
+            if (! "b".equals(before.get(key))) {
+                assertEquals(before.get(key), after.get(key));
+            }
+        }
+    }
+    // }}}
+
+    // {{{ assignments
+    private Map<String,String> assignments() {
+        Map<String,String> assignments = new HashMap<>();
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assignments.put("job-" + i, ring.memberFor("job-" + i));
+        }
+
+        return assignments;
+    }
+    // }}}
+}
@@ -0,0 +1,272 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.resetToNice;
+import static org.easymock.EasyMock.verify;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jenkins.model.Jenkins;
+import hudson.model.Queue;
+import hudson.model.Action;
+import hudson.model.queue.CauseOfBlockage;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Makes sure canRun() doesn't spawn threads proportional to the number of
+ * calls.
+ */
+public class EventBusQueueTaskDispatcherLoadTest {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final String HANDLER_CALLBACK_ID = "someAddr";
+    private static final int CALL_COUNT = 10000;
+    private static final int CALLER_THREADS = 8;
+
+    /** Sender threads plus some slack for the JVM doing its own thing. */
+    private static final int MAX_THREAD_GROWTH = 2 + 3;
+
+    private EventBusQueueTaskDispatcher dispatcher;
+
+    private EventBus mockEventBus;
+    private Jenkins mockJenkins;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        mockEventBus = EasyMock.createMock("eventBus", EventBus.class);
+        mockJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+
+        dispatcher = new EventBusQueueTaskDispatcher();
+
+        dispatcher.setJenkins(mockJenkins);
+        dispatcher.setEventBus(mockEventBus);
+    }
+    // }}}
+
+    // {{{ tearDown
+    @After
+    public void tearDown() {
+        // stops the sender threads; close() unregisters from the bus
+        resetToNice(mockEventBus);
+        replay(mockEventBus);
+
+        dispatcher.close();
+        dispatcher = null;
+
+        mockEventBus = null;
+        mockJenkins = null;
+    }
+    // }}}
+
+    // {{{ threadCountStaysFlat
+    @Test
+    public void threadCountStaysFlat() {
+        register();
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        // reply immediately, from the sending thread
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject().putBoolean("canRun", true);
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .times(CALL_COUNT);
+
+        replay(mockQueueTask, mockEventBus);
+
+        int baseline = Thread.activeCount();
+        int peak = baseline;
+
+        for (int i = 0; i < CALL_COUNT; i++) {
+            CauseOfBlockage cause = dispatcher.canRun(queueItem);
+
+            assertNull(cause);
+
+            peak = Math.max(peak, Thread.activeCount());
+        }
+
+        verify(mockQueueTask, mockEventBus);
+
+        logger.info("threads: baseline {}, peak {}", baseline, peak);
+
+        assertTrue(
+            "thread count grew from " + baseline + " to " + peak,
+            peak - baseline <= MAX_THREAD_GROWTH
+        );
+    }
+    // }}}
+
+    // {{{ threadCountStaysFlatUnderConcurrentCalls
+    /**
+     * The Queue calls canRun from several threads at once; they share the
+     * same fixed set of sender threads.
+     */
+    @Test
+    public void threadCountStaysFlatUnderConcurrentCalls() throws Exception {
+        register();
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        // reply immediately, from the sending thread
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject().putBoolean("canRun", true);
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .atLeastOnce();
+
+        replay(mockEventBus);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<Thread> callers = new ArrayList<>();
+
+        for (int t = 0; t < CALLER_THREADS; t++) {
+            Queue.Task mockQueueTask =
+                EasyMock.createNiceMock("task" + t, Queue.Task.class);
+
+            replay(mockQueueTask);
+
+            // one item per caller, so that the calls aren't coalesced
+            final Queue.WaitingItem queueItem = new Queue.WaitingItem(
+                Calendar.getInstance(),
+                mockQueueTask,
+                Collections.<Action>emptyList()
+            );
+
+            callers.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int i = 0; i < CALL_COUNT / CALLER_THREADS; i++) {
+                            assertNull(dispatcher.canRun(queueItem));
+
+                            updatePeak(peak, Thread.activeCount());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread caller : callers) {
+            caller.start();
+        }
+
+        // the callers themselves aren't growth
+        int baseline = Thread.activeCount();
+        peak.set(baseline);
+
+        start.countDown();
+
+        for (Thread caller : callers) {
+            caller.join(60000L);
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        verify(mockEventBus);
+
+        logger.info("threads: baseline {}, peak {}", baseline, peak.get());
+
+        assertTrue(
+            "thread count grew from " + baseline + " to " + peak.get(),
+            peak.get() - baseline <= MAX_THREAD_GROWTH
+        );
+    }
+    // }}}
+
+    // {{{ updatePeak
+    private static void updatePeak(final AtomicInteger peak, final int count) {
+        int current = peak.get();
+
+        while (count > current && ! peak.compareAndSet(current, count)) {
+            current = peak.get();
+        }
+    }
+    // }}}
+
+    // {{{ register
+    private void register() {
+        final Message<JsonObject> msg = EasyMock.createNiceMock(Message.class);
+
+        msg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID);
+
+        replay(msg);
+
+        dispatcher.handle(msg);
+    }
+    // }}}
+}
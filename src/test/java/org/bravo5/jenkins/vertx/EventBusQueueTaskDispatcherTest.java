@@ -24,8 +24,12 @@ import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.getCurrentArguments;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Calendar;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,11 +37,13 @@ import org.slf4j.LoggerFactory;
 import jenkins.model.Jenkins;
 import hudson.model.Queue;
 import hudson.model.Action;
+import hudson.model.Node;
 import hudson.model.queue.CauseOfBlockage;
 
 import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
 public class EventBusQueueTaskDispatcherTest {
@@ -336,6 +342,337 @@ public class EventBusQueueTaskDispatcherTest {
     }
     // }}}
 
+    // {{{ cachedVerdictIsReused
+    /**
+     * A verdict with cacheMillis is served from the cache on the next call.
+     */
+    @Test
+    public void cachedVerdictIsReused() {
+        registersSingleHandler();
+
+        reset(mockEventBus);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        // only one round trip is expected
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject()
+                        .putBoolean("canRun", false)
+                        .putString("reason", "not yet")
+                        .putNumber("cacheMillis", 60000);
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+
+        replay(mockQueueTask, mockEventBus);
+
+        CauseOfBlockage first = dispatcher.canRun(queueItem);
+        CauseOfBlockage second = dispatcher.canRun(queueItem);
+
+        verify(mockQueueTask, mockEventBus);
+
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals("not yet", second.getShortDescription());
+    }
+    // }}}
+
+    // {{{ verdictEvictedWhenItemLeavesQueue
+    /**
+     * Once an item is no longer in the queue its cached verdict is dropped,
+     * so the handler is asked again should it come back.
+     */
+    @Test
+    public void verdictEvictedWhenItemLeavesQueue() {
+        Jenkins niceJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+        Queue mockQueue = EasyMock.createNiceMock("queue", Queue.class);
+
+        expect(niceJenkins.getQueue()).andStubReturn(mockQueue);
+        expect(mockQueue.getItems()).andStubReturn(new Queue.Item[0]);
+
+        dispatcher.setJenkins(niceJenkins);
+
+        register(HANDLER_CALLBACK_ID);
+
+        JsonObject cachedBlock = block("not yet").putNumber("cacheMillis", 60000);
+
+        expectReply(HANDLER_CALLBACK_ID, cachedBlock, 0L);
+        expectReply(HANDLER_CALLBACK_ID, cachedBlock, 0L);
+
+        replay(niceJenkins, mockQueue, mockEventBus);
+
+        Queue.Item queueItem = queueItem();
+
+        assertNotNull(dispatcher.canRun(queueItem));
+
+        dispatcher.evictLeftItems();
+
+        assertNotNull(dispatcher.canRun(queueItem));
+
+        verify(mockEventBus);
+    }
+    // }}}
+
+    // {{{ concurrentCanRunIsCoalesced
+    /**
+     * A canRun for an item that's already waiting on the handlers shares the
+     * pending verdict instead of sending another message.
+     */
+    @Test
+    public void concurrentCanRunIsCoalesced() throws Exception {
+        registersSingleHandler();
+
+        reset(mockEventBus);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        final Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        final long coalescedBefore =
+            Metrics.get(EventBusQueueTaskDispatcher.METRIC_CANRUN_COALESCED);
+
+        final CauseOfBlockage[] secondCause = new CauseOfBlockage[1];
+        final Thread second = new Thread(new Runnable() {
+            public void run() {
+                secondCause[0] = dispatcher.canRun(queueItem);
+            }
+        });
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        // only one round trip is expected; reply once the second call has
+        // joined the first
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() throws InterruptedException {
+                    second.start();
+
+                    long giveUpAt = System.currentTimeMillis() + 2000L;
+
+                    while (
+                        Metrics.get(EventBusQueueTaskDispatcher.METRIC_CANRUN_COALESCED) == coalescedBefore &&
+                        System.currentTimeMillis() < giveUpAt
+                    ) {
+                        Thread.sleep(10L);
+                    }
+
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject()
+                        .putBoolean("canRun", false)
+                        .putString("reason", "not yet");
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+
+        replay(mockQueueTask, mockEventBus);
+
+        CauseOfBlockage firstCause = dispatcher.canRun(queueItem);
+
+        second.join(5000L);
+
+        verify(mockQueueTask, mockEventBus);
+
+        assertEquals(
+            coalescedBefore + 1,
+            Metrics.get(EventBusQueueTaskDispatcher.METRIC_CANRUN_COALESCED)
+        );
+
+        assertNotNull(firstCause);
+        assertNotNull(secondCause[0]);
+        assertEquals("not yet", secondCause[0].getShortDescription());
+    }
+    // }}}
+
+    // {{{ advisoryHandlerDoesNotBlock
+    /**
+     * canRun doesn't wait for an advisory handler, whose disagreement only
+     * shows up in the published statistics.
+     */
+    @Test
+    public void advisoryHandlerDoesNotBlock() throws Exception {
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("mode", "advisory");
+
+        replay(registerMsg);
+
+        dispatcher.handle(registerMsg);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        final Capture<Handler> replyHandlerCap = new Capture<>();
+        final CountDownLatch sent = new CountDownLatch(1);
+        final String[] senderThread = new String[1];
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            capture(replyHandlerCap)
+        );
+
+        // don't reply until canRun has returned
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    senderThread[0] = Thread.currentThread().getName();
+                    sent.countDown();
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+
+        Capture<JsonObject> statsCap = new Capture<>();
+
+        mockEventBus.publish(
+            eq("jenkins.queueTaskDispatcher.status"),
+            capture(statsCap)
+        );
+
+        replay(mockQueueTask, mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem));
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        // built and sent off the canRun thread, apart from the sync handlers
+        assertTrue(senderThread[0].startsWith("vertx-advisory-sender-"));
+
+        Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+        resultMsg.body = new JsonObject()
+            .putBoolean("canRun", false)
+            .putString("reason", "would have blocked");
+
+        ((Handler<Message<JsonObject>>) replyHandlerCap.getValue()).handle(resultMsg);
+
+        dispatcher.publishAdvisoryStats();
+
+        verify(mockQueueTask, mockEventBus);
+
+        assertEquals("advisoryStats", statsCap.getValue().getString("action"));
+
+        JsonObject stats =
+            (JsonObject) statsCap.getValue().getArray("handlers").iterator().next();
+
+        assertEquals(HANDLER_CALLBACK_ID, stats.getString("handlerAddress"));
+        assertEquals(1L, stats.getNumber("sent").longValue());
+        assertEquals(0L, stats.getNumber("agreed").longValue());
+        assertEquals(1L, stats.getNumber("disagreed").longValue());
+    }
+    // }}}
+
+    // {{{ summaryPayloadIsCompact
+    @Test
+    public void summaryPayloadIsCompact() {
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("payload", "summary");
+
+        replay(registerMsg);
+
+        dispatcher.handle(registerMsg);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        expect(mockQueueTask.getName()).andStubReturn("foo");
+
+        Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        Capture<JsonObject> payloadCap = new Capture<>();
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            capture(payloadCap),
+            isA(Handler.class)
+        );
+
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject().putBoolean("canRun", true);
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+
+        replay(mockQueueTask, mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem));
+
+        verify(mockQueueTask, mockEventBus);
+
+        JsonObject item = payloadCap.getValue().getObject("item");
+
+        assertEquals(SummarySerializer.SCHEMA_VERSION, item.getNumber("schema").intValue());
+        assertEquals("foo", item.getString("task"));
+        assertNull(item.getArray("actions"));
+    }
+    // }}}
+
     // {{{ canRunWithoutHandlerReturnsNull
     /**
      * Sane default behavior when no handler is registered.
@@ -415,6 +752,912 @@ public class EventBusQueueTaskDispatcherTest {
     }
     // }}}
 
+    // {{{ expiredLeaseEvictsHandler
+    @Test
+    public void expiredLeaseEvictsHandler() {
+        FakeClock clock = new FakeClock();
+        dispatcher.setClock(clock);
+
+        registerWithLease(1000);
+
+        reset(mockEventBus);
+
+        Capture<JsonObject> eventCap = new Capture<>();
+
+        mockEventBus.publish(
+            eq("jenkins.queueTaskDispatcher.status"),
+            capture(eventCap)
+        );
+
+        replay(mockEventBus);
+
+        // not quite expired
+        clock.advance(999);
+        dispatcher.evictExpiredHandlers();
+
+        clock.advance(1);
+        dispatcher.evictExpiredHandlers();
+
+        verify(mockEventBus);
+
+        assertEquals("handlerEvicted", eventCap.getValue().getString("action"));
+        assertEquals(HANDLER_CALLBACK_ID, eventCap.getValue().getString("handlerAddress"));
+
+        // the evicted handler must not be asked any more
+        reset(mockEventBus);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        Queue.WaitingItem queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+
+        replay(mockQueueTask, mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem));
+
+        verify(mockQueueTask, mockEventBus);
+    }
+    // }}}
+
+    // {{{ heartbeatRenewsLease
+    @Test
+    public void heartbeatRenewsLease() {
+        FakeClock clock = new FakeClock();
+        dispatcher.setClock(clock);
+
+        registerWithLease(1000);
+
+        reset(mockEventBus);
+
+        final Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = new JsonObject()
+            .putString("action", "heartbeat")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID);
+
+        msg.reply(capture(replyCap));
+
+        // nothing may be published
+        replay(msg, mockEventBus);
+
+        clock.advance(800);
+        dispatcher.handle(msg);
+
+        clock.advance(800);
+        dispatcher.evictExpiredHandlers();
+
+        verify(msg, mockEventBus);
+
+        checkOk(replyCap);
+    }
+    // }}}
+
+    // {{{ heartbeatForUnknownHandlerReturnsError
+    @Test
+    public void heartbeatForUnknownHandlerReturnsError() {
+        final Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = new JsonObject()
+            .putString("action", "heartbeat")
+            .putString("handlerAddress", "someInvalidAddr");
+
+        msg.reply(capture(replyCap));
+
+        replay(msg, mockEventBus);
+
+        dispatcher.handle(msg);
+
+        verify(msg, mockEventBus);
+
+        checkError(replyCap, "not registered");
+    }
+    // }}}
+
+    // {{{ batchModeCachesVerdictsForWholeQueue
+    /**
+     * A batch handler is sent the whole queue in a single canRunBatch
+     * message, and its reply answers the following canRun calls for the
+     * other items.  Items the reply doesn't mention may run.
+     */
+    @Test
+    public void batchModeCachesVerdictsForWholeQueue() {
+        dispatcher.setClock(new FakeClock());
+
+        Queue.Item asked = namedQueueItem("asked");
+        Queue.Item blocked = namedQueueItem("blocked");
+        Queue.Item unmentioned = namedQueueItem("unmentioned");
+
+        Jenkins niceJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+        Queue mockQueue = EasyMock.createNiceMock("queue", Queue.class);
+
+        expect(niceJenkins.getQueue()).andStubReturn(mockQueue);
+        expect(mockQueue.getItems())
+            .andStubReturn(new Queue.Item[] { asked, blocked, unmentioned });
+
+        dispatcher.setJenkins(niceJenkins);
+
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("mode", "batch");
+
+        replay(registerMsg);
+
+        dispatcher.handle(registerMsg);
+
+        Capture<JsonObject> payloadCap = new Capture<>();
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            capture(payloadCap),
+            isA(Handler.class)
+        );
+
+        expectReply(
+            new JsonObject()
+                .putArray("verdicts", new JsonArray()
+                    .addObject(new JsonObject()
+                        .putNumber("id", asked.id)
+                        .putBoolean("canRun", true)
+                    )
+                    .addObject(new JsonObject()
+                        .putNumber("id", blocked.id)
+                        .putBoolean("canRun", false)
+                        .putString("reason", "later")
+                    )
+                )
+        );
+
+        replay(niceJenkins, mockQueue, mockEventBus);
+
+        assertNull(dispatcher.canRun(asked));
+
+        // answered from the batch reply
+        CauseOfBlockage blockedCause = dispatcher.canRun(blocked);
+
+        assertNotNull(blockedCause);
+        assertEquals("later", blockedCause.getShortDescription());
+        assertNull(dispatcher.canRun(unmentioned));
+
+        verify(mockEventBus);
+
+        JsonObject payload = payloadCap.getValue();
+
+        assertEquals("canRunBatch", payload.getString("action"));
+        assertNull(payload.getObject("item"));
+
+        JsonArray items = payload.getArray("items");
+
+        assertEquals(3, items.size());
+
+        Iterator<Object> iter = items.iterator();
+
+        assertEquals(asked.id, ((JsonObject) iter.next()).getNumber("id").longValue());
+        assertEquals(blocked.id, ((JsonObject) iter.next()).getNumber("id").longValue());
+        assertEquals(unmentioned.id, ((JsonObject) iter.next()).getNumber("id").longValue());
+    }
+    // }}}
+
+    // {{{ batchReplyBlocksAskedItem
+    /**
+     * The verdict for the item being asked about is picked out of the batch
+     * reply by id.
+     */
+    @Test
+    public void batchReplyBlocksAskedItem() {
+        dispatcher.setClock(new FakeClock());
+
+        Queue.Item other = namedQueueItem("other");
+        Queue.Item asked = namedQueueItem("asked");
+
+        Jenkins niceJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+        Queue mockQueue = EasyMock.createNiceMock("queue", Queue.class);
+
+        expect(niceJenkins.getQueue()).andStubReturn(mockQueue);
+        expect(mockQueue.getItems()).andStubReturn(new Queue.Item[] { other, asked });
+
+        dispatcher.setJenkins(niceJenkins);
+
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("mode", "batch");
+
+        replay(registerMsg);
+
+        dispatcher.handle(registerMsg);
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        expectReply(
+            new JsonObject()
+                .putArray("verdicts", new JsonArray()
+                    .addObject(new JsonObject()
+                        .putNumber("id", other.id)
+                        .putBoolean("canRun", true)
+                    )
+                    .addObject(new JsonObject()
+                        .putNumber("id", asked.id)
+                        .putBoolean("canRun", false)
+                        .putString("reason", "not yet")
+                    )
+                )
+        );
+
+        replay(niceJenkins, mockQueue, mockEventBus);
+
+        CauseOfBlockage cause = dispatcher.canRun(asked);
+
+        verify(mockEventBus);
+
+        assertNotNull(cause);
+        assertEquals("not yet", cause.getShortDescription());
+    }
+    // }}}
+
+    // {{{ batchedCanTakeAnswersOtherNodes
+    /**
+     * A canTake reply covering several nodes answers the following canTake
+     * calls for the same item without another round trip.
+     */
+    @Test
+    public void batchedCanTakeAnswersOtherNodes() {
+        Jenkins niceJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+        Node busyNode = mockNode("busy");
+        Node idleNode = mockNode("idle");
+
+        expect(niceJenkins.getNodeName()).andStubReturn("");
+        expect(niceJenkins.getMode()).andStubReturn(Node.Mode.NORMAL);
+        expect(niceJenkins.getNodes()).andStubReturn(Arrays.asList(busyNode, idleNode));
+
+        dispatcher.setJenkins(niceJenkins);
+
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putBoolean("canTake", true);
+
+        replay(registerMsg);
+
+        dispatcher.handle(registerMsg);
+
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        Queue.BuildableItem queueItem = new Queue.BuildableItem(
+            new Queue.WaitingItem(
+                Calendar.getInstance(),
+                mockQueueTask,
+                Collections.<Action>emptyList()
+            )
+        );
+
+        final Capture<JsonObject> payloadCap = new Capture<>();
+
+        mockEventBus.send(
+            eq(HANDLER_CALLBACK_ID),
+            capture(payloadCap),
+            isA(Handler.class)
+        );
+
+        // only one round trip is expected
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = new JsonObject()
+                        .putArray("verdicts", new JsonArray()
+                            .addObject(new JsonObject()
+                                .putString("node", "busy")
+                                .putBoolean("canTake", false)
+                                .putString("reason", "busy")
+                                .putNumber("cacheMillis", 60000)
+                            )
+                        );
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+
+        replay(niceJenkins, busyNode, idleNode, mockQueueTask, mockEventBus);
+
+        CauseOfBlockage busyCause = dispatcher.canTake(busyNode, queueItem);
+        CauseOfBlockage idleCause = dispatcher.canTake(idleNode, queueItem);
+
+        verify(mockEventBus);
+
+        assertEquals("canTake", payloadCap.getValue().getString("action"));
+        assertEquals("busy", payloadCap.getValue().getString("node"));
+        assertEquals(3, payloadCap.getValue().getArray("nodes").size());
+
+        assertNotNull(busyCause);
+        assertEquals("busy", busyCause.getShortDescription());
+        assertNull(idleCause);
+    }
+    // }}}
+
+    // {{{ pushHandlerRulesGoAwayWithIt
+    /**
+     * A push handler is never asked about items, and its rules are removed
+     * when it unregisters.
+     */
+    @Test
+    public void pushHandlerRulesGoAwayWithIt() {
+        final Message<JsonObject> registerMsg = EasyMock.createNiceMock(Message.class);
+
+        registerMsg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("mode", "push");
+
+        final Message<JsonObject> blockMsg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> blockReplyCap = new Capture<>();
+
+        blockMsg.body = new JsonObject()
+            .putString("action", "block")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putString("taskName", "foo")
+            .putString("reason", "change freeze");
+
+        blockMsg.reply(capture(blockReplyCap));
+
+        final Message<JsonObject> unregisterMsg = EasyMock.createNiceMock(Message.class);
+
+        unregisterMsg.body = new JsonObject()
+            .putString("action", "unregister")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID);
+
+        Queue.Task fooTask = EasyMock.createNiceMock("foo", Queue.Task.class);
+        expect(fooTask.getName()).andStubReturn("foo");
+
+        Queue.Task barTask = EasyMock.createNiceMock("bar", Queue.Task.class);
+        expect(barTask.getName()).andStubReturn("bar");
+
+        Queue.WaitingItem fooItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            fooTask,
+            Collections.<Action>emptyList()
+        );
+
+        Queue.WaitingItem barItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            barTask,
+            Collections.<Action>emptyList()
+        );
+
+        // nothing may be sent
+        replay(registerMsg, blockMsg, unregisterMsg, fooTask, barTask, mockEventBus);
+
+        dispatcher.handle(registerMsg);
+        dispatcher.handle(blockMsg);
+
+        checkOk(blockReplyCap);
+
+        CauseOfBlockage fooCause = dispatcher.canRun(fooItem);
+
+        assertNotNull(fooCause);
+        assertEquals("change freeze", fooCause.getShortDescription());
+        assertNull(dispatcher.canRun(barItem));
+
+        dispatcher.handle(unregisterMsg);
+
+        assertNull(dispatcher.canRun(fooItem));
+
+        verify(blockMsg, mockEventBus);
+    }
+    // }}}
+
+    // {{{ blockForUnknownHandlerReturnsError
+    @Test
+    public void blockForUnknownHandlerReturnsError() {
+        final Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = new JsonObject()
+            .putString("action", "block")
+            .putString("handlerAddress", "someInvalidAddr")
+            .putString("taskName", "foo");
+
+        msg.reply(capture(replyCap));
+
+        replay(msg, mockEventBus);
+
+        dispatcher.handle(msg);
+
+        verify(msg, mockEventBus);
+
+        checkError(replyCap, "not registered");
+    }
+    // }}}
+
+    // {{{ anyBlockDecidesOnFirstBlock
+    /**
+     * Handlers are asked in parallel, and a single block is enough; there's
+     * no waiting for a handler that doesn't answer.
+     */
+    @Test
+    public void anyBlockDecidesOnFirstBlock() {
+        register("a");
+        register("b");
+        register("c");
+
+        expectReply("a", allow(), 0L);
+        expectReply("b", block("b says no"), 0L);
+        expectNoReply("c");
+
+        replay(mockEventBus);
+
+        long started = System.currentTimeMillis();
+        CauseOfBlockage cause = dispatcher.canRun(queueItem());
+        long elapsed = System.currentTimeMillis() - started;
+
+        assertNotNull(cause);
+        assertEquals("b says no", cause.getShortDescription());
+        assertTrue("waited " + elapsed + "ms", elapsed < 2500L);
+    }
+    // }}}
+
+    // {{{ majorityJoinsReasons
+    @Test
+    public void majorityJoinsReasons() {
+        dispatcher.setPolicy(VerdictPolicy.MAJORITY);
+
+        register("a");
+        register("b");
+        register("c");
+
+        expectReply("a", block("a says no"), 0L);
+        expectReply("b", block("b says no"), 0L);
+        expectNoReply("c");
+
+        replay(mockEventBus);
+
+        CauseOfBlockage cause = dispatcher.canRun(queueItem());
+
+        assertNotNull(cause);
+        assertTrue(cause.getShortDescription().contains("a says no"));
+        assertTrue(cause.getShortDescription().contains("b says no"));
+    }
+    // }}}
+
+    // {{{ majorityAllowsWithOneBlock
+    @Test
+    public void majorityAllowsWithOneBlock() {
+        dispatcher.setPolicy(VerdictPolicy.MAJORITY);
+
+        register("a");
+        register("b");
+        register("c");
+
+        expectReply("a", block("a says no"), 0L);
+        expectReply("b", allow(), 0L);
+        expectReply("c", allow(), 0L);
+
+        replay(mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem()));
+
+        verify(mockEventBus);
+    }
+    // }}}
+
+    // {{{ majorityCountsTimeoutsAsAllow
+    @Test
+    public void majorityCountsTimeoutsAsAllow() {
+        dispatcher.setPolicy(VerdictPolicy.MAJORITY);
+        dispatcher.setTimeoutMillis(50);
+
+        register("a");
+        register("b");
+        register("c");
+
+        expectReply("a", block("a says no"), 0L);
+        expectNoReply("b");
+        expectNoReply("c");
+
+        replay(mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem()));
+    }
+    // }}}
+
+    // {{{ firstReplyDecides
+    @Test
+    public void firstReplyDecides() {
+        dispatcher.setPolicy(VerdictPolicy.FIRST_REPLY);
+
+        register("a");
+        register("b");
+
+        expectReply("a", block("a says no"), 0L);
+        expectReply("b", allow(), 500L, true);
+
+        replay(mockEventBus);
+
+        long started = System.currentTimeMillis();
+        CauseOfBlockage cause = dispatcher.canRun(queueItem());
+        long elapsed = System.currentTimeMillis() - started;
+
+        assertNotNull(cause);
+        assertEquals("a says no", cause.getShortDescription());
+        assertTrue("waited " + elapsed + "ms", elapsed < 500L);
+    }
+    // }}}
+
+    // {{{ firstReplyPrefersLiveVerdicts
+    /**
+     * A cached verdict doesn't pre-empt the handlers that are actually asked.
+     */
+    @Test
+    public void firstReplyPrefersLiveVerdicts() {
+        dispatcher.setPolicy(VerdictPolicy.FIRST_REPLY);
+
+        register("a");
+
+        Queue.WaitingItem queueItem = queueItem();
+
+        // a's block is cached
+        expectReply("a", block("a says no").putNumber("cacheMillis", 60000), 0L);
+
+        replay(mockEventBus);
+
+        assertNotNull(dispatcher.canRun(queueItem));
+
+        verify(mockEventBus);
+
+        reset(mockEventBus);
+
+        register("b");
+
+        // only b is asked, and its answer decides
+        expectReply("b", allow(), 0L);
+
+        replay(mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem));
+
+        verify(mockEventBus);
+    }
+    // }}}
+
+    // {{{ errorReplyAbstains
+    /**
+     * An error reply isn't taken as permission to run.
+     */
+    @Test
+    public void errorReplyAbstains() {
+        dispatcher.setPolicy(VerdictPolicy.FIRST_REPLY);
+
+        register("a");
+        register("b");
+
+        expectReply(
+            "a",
+            new JsonObject()
+                .putString("status", "error")
+                .putString("message", "database down"),
+            0L
+        );
+        expectReply("b", block("b says no"), 200L);
+
+        replay(mockEventBus);
+
+        CauseOfBlockage cause = dispatcher.canRun(queueItem());
+
+        verify(mockEventBus);
+
+        assertNotNull(cause);
+        assertEquals("b says no", cause.getShortDescription());
+    }
+    // }}}
+
+    // {{{ errorReplyTripsBreaker
+    @Test
+    public void errorReplyTripsBreaker() {
+        dispatcher.setBreakerThreshold(1);
+
+        register("a");
+
+        expectReply("a", new JsonObject().putString("status", "error"), 0L);
+
+        Capture<JsonObject> eventCap = new Capture<>();
+
+        mockEventBus.publish(
+            eq("jenkins.queueTaskDispatcher.status"),
+            capture(eventCap)
+        );
+
+        replay(mockEventBus);
+
+        assertNull(dispatcher.canRun(queueItem()));
+
+        // skipped while the breaker is open
+        assertNull(dispatcher.canRun(queueItem()));
+
+        verify(mockEventBus);
+
+        assertEquals("breakerStateChanged", eventCap.getValue().getString("action"));
+        assertEquals("open", eventCap.getValue().getString("state"));
+    }
+    // }}}
+
+    // {{{ shardGroupSendsTaskToOneMember
+    /**
+     * Only the group member owning the task name is asked; once it's gone,
+     * the task moves to the remaining member.
+     */
+    @Test
+    public void shardGroupSendsTaskToOneMember() {
+        registerInGroup("a", "capacity");
+        registerInGroup("b", "capacity");
+
+        Queue.Item queueItem = namedQueueItem("foo");
+
+        ConsistentHashRing ring = new ConsistentHashRing();
+        ring.add("a");
+        ring.add("b");
+
+        String owner = ring.memberFor("foo");
+        String other = "a".equals(owner) ? "b" : "a";
+
+        // the event bus is strict, so a message to the other member fails
+        expectReply(owner, block(owner + " says no"), 0L);
+
+        replay(mockEventBus);
+
+        CauseOfBlockage cause = dispatcher.canRun(queueItem);
+
+        verify(mockEventBus);
+
+        assertNotNull(cause);
+        assertEquals(owner + " says no", cause.getShortDescription());
+
+        reset(mockEventBus);
+
+        unregister(owner);
+
+        expectReply(other, block(other + " says no"), 0L);
+
+        replay(mockEventBus);
+
+        cause = dispatcher.canRun(queueItem);
+
+        verify(mockEventBus);
+
+        assertNotNull(cause);
+        assertEquals(other + " says no", cause.getShortDescription());
+    }
+    // }}}
+
+    // {{{ register
+    private void register(final String handlerAddr) {
+        final Message<JsonObject> msg = EasyMock.createNiceMock(Message.class);
+
+        msg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", handlerAddr);
+
+        replay(msg);
+
+        dispatcher.handle(msg);
+    }
+    // }}}
+
+    // {{{ registerInGroup
+    private void registerInGroup(final String handlerAddr, final String group) {
+        final Message<JsonObject> msg = EasyMock.createNiceMock(Message.class);
+
+        msg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", handlerAddr)
+            .putString("group", group);
+
+        replay(msg);
+
+        dispatcher.handle(msg);
+    }
+    // }}}
+
+    // {{{ unregister
+    private void unregister(final String handlerAddr) {
+        final Message<JsonObject> msg = EasyMock.createNiceMock(Message.class);
+
+        msg.body = new JsonObject()
+            .putString("action", "unregister")
+            .putString("handlerAddress", handlerAddr);
+
+        replay(msg);
+
+        dispatcher.handle(msg);
+    }
+    // }}}
+
+    // {{{ queueItem
+    private Queue.WaitingItem queueItem() {
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock("task", Queue.Task.class);
+
+        replay(mockQueueTask);
+
+        return new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+    }
+    // }}}
+
+    // {{{ allow
+    private JsonObject allow() {
+        return new JsonObject().putBoolean("canRun", true);
+    }
+    // }}}
+
+    // {{{ block
+    private JsonObject block(final String reason) {
+        return new JsonObject()
+            .putBoolean("canRun", false)
+            .putString("reason", reason);
+    }
+    // }}}
+
+    // {{{ expectReply
+    private void expectReply(final String handlerAddr,
+                             final JsonObject reply,
+                             final long delayMillis)
+    {
+        expectReply(handlerAddr, reply, delayMillis, false);
+    }
+    // }}}
+
+    // {{{ expectReply
+    /**
+     * @param delayMillis how long the handler takes to reply
+     * @param optional whether canRun may have returned before the message
+     *        is sent
+     */
+    private void expectReply(final String handlerAddr,
+                             final JsonObject reply,
+                             final long delayMillis,
+                             final boolean optional)
+    {
+        mockEventBus.send(
+            eq(handlerAddr),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() throws InterruptedException {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Thread.sleep(delayMillis);
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = reply;
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .times(optional ? 0 : 1, 1);
+    }
+    // }}}
+
+    // {{{ expectReply
+    /**
+     * Replies to the send() that was just recorded, once.
+     */
+    private void expectReply(final JsonObject reply) {
+        expectLastCall()
+            .andAnswer(new IAnswer<Void>() {
+                public Void answer() {
+                    Handler<Message<JsonObject>> handler =
+                        (Handler<Message<JsonObject>>) getCurrentArguments()[2];
+
+                    Message<JsonObject> resultMsg = EasyMock.createMock(Message.class);
+                    resultMsg.body = reply;
+
+                    handler.handle(resultMsg);
+
+                    return null; // le sigh
+                }
+            })
+            .once();
+    }
+    // }}}
+
+    // {{{ namedQueueItem
+    private Queue.WaitingItem namedQueueItem(final String taskName) {
+        Queue.Task mockQueueTask =
+            EasyMock.createNiceMock(taskName, Queue.Task.class);
+
+        expect(mockQueueTask.getName()).andStubReturn(taskName);
+
+        replay(mockQueueTask);
+
+        return new Queue.WaitingItem(
+            Calendar.getInstance(),
+            mockQueueTask,
+            Collections.<Action>emptyList()
+        );
+    }
+    // }}}
+
+    // {{{ expectNoReply
+    /**
+     * The handler is sent the item, but never answers.
+     */
+    private void expectNoReply(final String handlerAddr) {
+        mockEventBus.send(
+            eq(handlerAddr),
+            isA(JsonObject.class),
+            isA(Handler.class)
+        );
+
+        expectLastCall().times(0, 1);
+    }
+    // }}}
+
+    // {{{ registerWithLease
+    private void registerWithLease(final long leaseMillis) {
+        final Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = new JsonObject()
+            .putString("action", "register")
+            .putString("handlerAddress", HANDLER_CALLBACK_ID)
+            .putNumber("leaseMillis", leaseMillis);
+
+        msg.reply(capture(replyCap));
+
+        replay(msg, mockEventBus);
+
+        dispatcher.handle(msg);
+
+        verify(msg, mockEventBus);
+
+        checkOk(replyCap);
+    }
+    // }}}
+
+    // {{{ mockNode
+    private Node mockNode(final String name) {
+        Node node = EasyMock.createNiceMock(name, Node.class);
+
+        expect(node.getNodeName()).andStubReturn(name);
+        expect(node.getLabelString()).andStubReturn("linux");
+        expect(node.getMode()).andStubReturn(Node.Mode.NORMAL);
+
+        return node;
+    }
+    // }}}
+
     // {{{ checkOk
     private void checkOk(final Capture<JsonObject> cap) {
         assertTrue(cap.hasCaptured());
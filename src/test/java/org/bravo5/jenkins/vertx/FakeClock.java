@@ -0,0 +1,21 @@
+package org.bravo5.jenkins.vertx;
+
+/**
+ * Clock that only moves when told to.
+ */
+class FakeClock implements Clock {
+    private long now = 1348006835051L;
+
+    // {{{ currentTimeMillis
+    /** {@inheritDoc} */
+    public long currentTimeMillis() {
+        return now;
+    }
+    // }}}
+
+    // {{{ advance
+    void advance(final long millis) {
+        now += millis;
+    }
+    // }}}
+}
@@ -0,0 +1,97 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class GlobalRunListenerTest {
+    // {{{ singleEventHasNoActions
+    @Test
+    public void singleEventHasNoActions() {
+        JsonObject json = GlobalRunListener.createEvent(Arrays.asList("started"));
+
+        assertEquals("started", json.getString("action"));
+        assertFalse(json.toMap().containsKey("actions"));
+    }
+    // }}}
+
+    // {{{ mergedEventListsActions
+    @Test
+    public void mergedEventListsActions() {
+        JsonObject json = GlobalRunListener.createEvent(
+            Arrays.asList("started", "completed", "finalized")
+        );
+
+        assertEquals("finalized", json.getString("action"));
+        assertEquals(
+            new JsonArray()
+                .addString("started")
+                .addString("completed")
+                .addString("finalized")
+                .encode(),
+            json.getArray("actions").encode()
+        );
+    }
+    // }}}
+
+    // {{{ neighborReferences
+    /**
+     * Strict mocks, so touching anything but the referenced fields fails.
+     */
+    @Test
+    public void neighborReferences() {
+        Run previous = EasyMock.createMock("previous", Run.class);
+
+        expect(previous.getNumber()).andStubReturn(11);
+        expect(previous.getId()).andStubReturn("2012-09-06_16-35-02");
+        expect(previous.getResult()).andStubReturn(Result.FAILURE);
+        expect(previous.getUrl()).andStubReturn("job/parameterized/11/");
+
+        Run run = EasyMock.createMock("run", Run.class);
+
+        expect(run.getPreviousBuild()).andStubReturn(previous);
+        expect(run.getNextBuild()).andStubReturn(null);
+
+        replay(previous, run);
+
+        JsonObject json = new JsonObject();
+
+        GlobalRunListener.putNeighbors(json, run, SerializeUtil.DEFAULT_PRUNER, true);
+
+        verify(previous, run);
+
+        JsonObject previousBuild = json.getObject("previousBuild");
+
+        assertEquals(
+            new HashSet<>(Arrays.asList("number", "id", "result", "url")),
+            previousBuild.toMap().keySet()
+        );
+
+        assertEquals(11, previousBuild.getNumber("number").intValue());
+        assertEquals("2012-09-06_16-35-02", previousBuild.getString("id"));
+        assertEquals("FAILURE", previousBuild.getString("result"));
+        assertEquals("job/parameterized/11/", previousBuild.getString("url"));
+
+        assertTrue(json.toMap().containsKey("nextBuild"));
+        assertNull(json.getObject("nextBuild"));
+    }
+    // }}}
+}
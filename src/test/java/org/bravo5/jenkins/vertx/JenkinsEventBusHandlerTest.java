@@ -0,0 +1,140 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import jenkins.model.Jenkins;
+import hudson.model.Job;
+
+public class JenkinsEventBusHandlerTest {
+    private EventBus mockEventBus;
+    private Jenkins mockJenkins;
+    private JenkinsEventBusHandler handler;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+        mockJenkins = EasyMock.createMock("jenkins", Jenkins.class);
+
+        replay(mockEventBus);
+
+        handler = new JenkinsEventBusHandler(mockEventBus, mockJenkins);
+    }
+    // }}}
+
+    // {{{ tearDown
+    @After
+    public void tearDown() {
+        handler.close();
+    }
+    // }}}
+
+    // {{{ getRunWithoutFullName
+    @Test
+    public void getRunWithoutFullName() {
+        replay(mockJenkins);
+
+        assertError(
+            "missing fullName",
+            send(new JsonObject().putString("action", "getRun").putNumber("number", 11))
+        );
+    }
+    // }}}
+
+    // {{{ getRunWithoutNumber
+    @Test
+    public void getRunWithoutNumber() {
+        replay(mockJenkins);
+
+        assertError(
+            "missing number",
+            send(
+                new JsonObject()
+                    .putString("action", "getRun")
+                    .putString("fullName", "parameterized")
+            )
+        );
+    }
+    // }}}
+
+    // {{{ getRunForMissingJob
+    @Test
+    public void getRunForMissingJob() {
+        expect(mockJenkins.getItemByFullName("nope", Job.class)).andReturn(null);
+
+        replay(mockJenkins);
+
+        assertError("no such run", send(getRun("nope", 11)));
+
+        verify(mockJenkins);
+    }
+    // }}}
+
+    // {{{ getRunForMissingBuild
+    @Test
+    public void getRunForMissingBuild() {
+        Job job = EasyMock.createMock("job", Job.class);
+
+        expect(mockJenkins.getItemByFullName("parameterized", Job.class)).andReturn(job);
+        expect(job.getBuildByNumber(99)).andReturn(null);
+
+        replay(mockJenkins, job);
+
+        assertError("no such run", send(getRun("parameterized", 99)));
+
+        verify(mockJenkins, job);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ getRun
+    private JsonObject getRun(final String fullName, final int number) {
+        return new JsonObject()
+            .putString("action", "getRun")
+            .putString("fullName", fullName)
+            .putNumber("number", number);
+    }
+    // }}}
+
+    // {{{ send
+    private JsonObject send(final JsonObject body) {
+        Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = body;
+        msg.reply(capture(replyCap));
+
+        replay(msg);
+
+        handler.handle(msg);
+
+        verify(msg);
+
+        return replyCap.getValue();
+    }
+    // }}}
+
+    // {{{ assertError
+    private void assertError(final String message, final JsonObject reply) {
+        assertEquals("error", reply.getString("status"));
+        assertEquals(message, reply.getString("message"));
+    }
+    // }}}
+}
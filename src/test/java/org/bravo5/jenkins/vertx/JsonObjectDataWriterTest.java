@@ -0,0 +1,154 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.kohsuke.stapler.export.DataWriter;
+import org.kohsuke.stapler.export.ExportConfig;
+import org.kohsuke.stapler.export.Flavor;
+
+import org.vertx.java.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class JsonObjectDataWriterTest {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int ITERATIONS = 5000;
+
+    // {{{ matchesJsonFlavor
+    /**
+     * Builds the same object the JSON flavor renders as text.
+     */
+    @Test
+    public void matchesJsonFlavor() throws IOException {
+        StringWriter text = new StringWriter();
+        ExportConfig exportConfig = new ExportConfig();
+
+        write(Flavor.JSON.createDataWriter(this, text, exportConfig));
+
+        JsonObjectDataWriter direct = new JsonObjectDataWriter(exportConfig);
+        write(direct);
+
+        assertEquals(new JsonObject(text.toString()).toMap(), direct.getResult().toMap());
+    }
+    // }}}
+
+    // {{{ cheaperThanRenderingAndParsing
+    /**
+     * The point of the writer: building the JsonObject directly should
+     * allocate less than rendering JSON text and parsing it again.  Only
+     * logged; allocation figures vary too much between JVMs to fail on.
+     */
+    @Test
+    public void cheaperThanRenderingAndParsing() {
+        final ExportConfig exportConfig = new ExportConfig();
+
+        Benchmark viaText = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    try {
+                        StringWriter text = new StringWriter();
+
+                        write(Flavor.JSON.createDataWriter(this, text, exportConfig));
+
+                        new JsonObject(text.toString());
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            },
+            ITERATIONS
+        );
+
+        Benchmark direct = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    try {
+                        JsonObjectDataWriter writer = new JsonObjectDataWriter(exportConfig);
+
+                        write(writer);
+
+                        writer.getResult();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            },
+            ITERATIONS
+        );
+
+        logger.info("via text: {}; direct: {}", viaText, direct);
+    }
+    // }}}
+
+    // {{{ emptyResultWithoutObject
+    @Test
+    public void emptyResultWithoutObject() {
+        JsonObjectDataWriter writer = new JsonObjectDataWriter(new ExportConfig());
+
+        assertTrue(writer.getResult().toMap().isEmpty());
+    }
+    // }}}
+
+    // {{{ write
+    /**
+     * Roughly what a Run looks like to a DataWriter.
+     */
+    private void write(final DataWriter w) throws IOException {
+        w.startObject();
+
+        w.name("number");
+        w.valuePrimitive(12);
+
+        w.name("timestamp");
+        w.valuePrimitive(1346971313525L);
+
+        w.name("building");
+        w.valuePrimitive(false);
+
+        w.name("description");
+        w.valueNull();
+
+        w.name("id");
+        w.value("2012-09-06_16-41-53");
+
+        w.name("actions");
+        w.startArray();
+
+        w.startObject();
+        w.name("parameters");
+        w.startArray();
+        w.startObject();
+        w.name("name");
+        w.value("key");
+        w.name("value");
+        w.value("vert.x value");
+        w.endObject();
+        w.endArray();
+        w.endObject();
+
+        w.startObject();
+        w.endObject();
+
+        w.value("loose");
+        w.valuePrimitive(3);
+
+        w.endArray();
+
+        w.name("result");
+        w.startObject();
+        w.name("name");
+        w.value("SUCCESS");
+        w.endObject();
+
+        w.endObject();
+    }
+    // }}}
+}
@@ -0,0 +1,83 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+
+public class JsonPatchTest {
+    // {{{ equalObjectsGiveEmptyPatch
+    @Test
+    public void equalObjectsGiveEmptyPatch() {
+        JsonObject json = new JsonObject()
+            .putString("name", "foo")
+            .putObject("task", new JsonObject().putString("color", "blue"));
+
+        assertEquals(0, JsonPatch.diff(json, json.copy()).size());
+    }
+    // }}}
+
+    // {{{ diffsNestedMembers
+    @Test
+    public void diffsNestedMembers() {
+        JsonObject from = new JsonObject()
+            .putString("description", "old")
+            .putString("displayName", "foo")
+            .putObject("task", new JsonObject().putString("color", "blue"))
+            .putArray("actions", new JsonArray().addString("a"));
+
+        JsonObject to = new JsonObject()
+            .putString("description", "new")
+            .putObject("task", new JsonObject().putString("color", "red"))
+            .putArray("actions", new JsonArray().addString("a"))
+            .putBoolean("a/b~c", true);
+
+        Iterator<Object> ops = JsonPatch.diff(from, to).iterator();
+
+        assertOp(ops.next(), "remove", "/displayName");
+        assertOp(ops.next(), "replace", "/description");
+        assertOp(ops.next(), "replace", "/task/color");
+        assertOp(ops.next(), "add", "/a~1b~0c");
+    }
+    // }}}
+
+    // {{{ numbersAreComparedByValue
+    /**
+     * A copy is re-parsed, so the Long comes back as an Integer.
+     */
+    @Test
+    public void numbersAreComparedByValue() {
+        JsonObject from = new JsonObject()
+            .putNumber("number", 12L)
+            .putNumber("duration", 1.5d)
+            .putArray("ids", new JsonArray().addNumber(3L));
+
+        JsonObject to = new JsonObject()
+            .putNumber("number", 12)
+            .putNumber("duration", 1.5f)
+            .putArray("ids", new JsonArray().addNumber(3));
+
+        assertEquals(0, JsonPatch.diff(from, to).size());
+        assertEquals(0, JsonPatch.diff(from, from.copy()).size());
+
+        to.putNumber("number", 13);
+
+        Iterator<Object> ops = JsonPatch.diff(from, to).iterator();
+
+        assertOp(ops.next(), "replace", "/number");
+    }
+    // }}}
+
+    // {{{ assertOp
+    private void assertOp(final Object op, final String type, final String path) {
+        JsonObject json = (JsonObject) op;
+
+        assertEquals(type, json.getString("op"));
+        assertEquals(path, json.getString("path"));
+    }
+    // }}}
+}
@@ -0,0 +1,83 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+    private static final long CEILING_MILLIS = 5000L;
+
+    private LatencyTracker tracker;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        tracker = new LatencyTracker();
+    }
+    // }}}
+
+    // {{{ noSamplesHasNoP99
+    @Test
+    public void noSamplesHasNoP99() {
+        assertEquals(-1L, tracker.getP99());
+        assertEquals(CEILING_MILLIS, tracker.getTimeoutMillis(CEILING_MILLIS));
+    }
+    // }}}
+
+    // {{{ p99OfHundredSamples
+    @Test
+    public void p99OfHundredSamples() {
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+
+        assertEquals(99L, tracker.getP99());
+        assertEquals(198L, tracker.getTimeoutMillis(CEILING_MILLIS));
+    }
+    // }}}
+
+    // {{{ keepsMostRecentSamples
+    @Test
+    public void keepsMostRecentSamples() {
+        // pushed out by the following 128
+        for (int i = 0; i < 10; i++) {
+            tracker.record(4000L);
+        }
+
+        for (int i = 0; i < 128; i++) {
+            tracker.record(100L);
+        }
+
+        assertEquals(100L, tracker.getP99());
+    }
+    // }}}
+
+    // {{{ ceilingUntilEnoughSamples
+    @Test
+    public void ceilingUntilEnoughSamples() {
+        for (int i = 0; i < 19; i++) {
+            tracker.record(10L);
+        }
+
+        assertEquals(CEILING_MILLIS, tracker.getTimeoutMillis(CEILING_MILLIS));
+
+        tracker.record(10L);
+
+        // twice the p99 would be 20ms, below the floor
+        assertEquals(50L, tracker.getTimeoutMillis(CEILING_MILLIS));
+    }
+    // }}}
+
+    // {{{ timeoutNeverExceedsCeiling
+    @Test
+    public void timeoutNeverExceedsCeiling() {
+        for (int i = 0; i < 20; i++) {
+            tracker.record(4000L);
+        }
+
+        assertEquals(8000L, tracker.getP99() * 2);
+        assertEquals(CEILING_MILLIS, tracker.getTimeoutMillis(CEILING_MILLIS));
+    }
+    // }}}
+}
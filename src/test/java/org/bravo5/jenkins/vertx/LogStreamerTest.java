@@ -0,0 +1,144 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+public class LogStreamerTest {
+    private static final String ADDR = "test.log";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File logFile;
+    private Capture<JsonObject> sent;
+    private LogStreamer streamer;
+
+    // {{{ setUp
+    @Before
+    public void setUp() throws IOException {
+        logFile = File.createTempFile("log", ".txt");
+
+        sent = new Capture<>(CaptureType.ALL);
+
+        EventBus mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+        mockEventBus.send(eq(ADDR), capture(sent));
+        EasyMock.expectLastCall().anyTimes();
+
+        replay(mockEventBus);
+
+        streamer = new LogStreamer(mockEventBus, null, null, 0L, 16);
+    }
+    // }}}
+
+    // {{{ tearDown
+    @After
+    public void tearDown() {
+        logFile.delete();
+    }
+    // }}}
+
+    // {{{ sendsWholeLinesUntilComplete
+    @Test
+    public void sendsWholeLinesUntilComplete() throws IOException {
+        append("line 1\nline 2\npart");
+
+        streamer.subscribe(ADDR, "parameterized", mockRun(), 0L);
+        streamer.flush();
+
+        List<JsonObject> chunks = sent.getValues();
+        assertEquals(1, chunks.size());
+        assertEquals("line 1\nline 2\n", chunks.get(0).getString("text"));
+        assertEquals(0, chunks.get(0).getNumber("offset").intValue());
+        assertEquals(14, chunks.get(0).getNumber("nextOffset").intValue());
+
+        // the mock Run stops updating its log after the first flush
+        append("ial\n");
+        streamer.flush();
+
+        assertEquals(3, chunks.size());
+        assertEquals("partial\n", chunks.get(1).getString("text"));
+        assertTrue(chunks.get(2).getBoolean("complete"));
+        assertEquals(22, chunks.get(2).getNumber("offset").intValue());
+
+        // nothing more once complete
+        streamer.flush();
+        assertEquals(3, chunks.size());
+    }
+    // }}}
+
+    // {{{ resumesFromOffset
+    @Test
+    public void resumesFromOffset() throws IOException {
+        append("line 1\nline 2\n");
+
+        streamer.subscribe(ADDR, "parameterized", mockRun(), 7L);
+        streamer.flush();
+
+        assertEquals("line 2\n", sent.getValues().get(0).getString("text"));
+    }
+    // }}}
+
+    // {{{ splitsLongLines
+    @Test
+    public void splitsLongLines() throws IOException {
+        // 16-byte chunks; "é" is two bytes and would straddle the first one
+        append("aaaaaaaaaaaaaaaé, then more\n");
+
+        streamer.subscribe(ADDR, "parameterized", mockRun(), 0L);
+        streamer.flush();
+
+        List<JsonObject> chunks = sent.getValues();
+        assertEquals("aaaaaaaaaaaaaaa", chunks.get(0).getString("text"));
+        assertEquals("é, then more\n", chunks.get(1).getString("text"));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ mockRun
+    /**
+     * @return a Run whose log is being written until it's first flushed
+     */
+    private Run mockRun() {
+        Run run = EasyMock.createNiceMock("run", Run.class);
+
+        expect(run.getLogFile()).andReturn(logFile).anyTimes();
+        expect(run.getNumber()).andReturn(12).anyTimes();
+        expect(run.isLogUpdated()).andReturn(true).once().andReturn(false).anyTimes();
+
+        replay(run);
+
+        return run;
+    }
+    // }}}
+
+    // {{{ append
+    private void append(final String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write(text.getBytes(UTF8));
+        }
+    }
+    // }}}
+}
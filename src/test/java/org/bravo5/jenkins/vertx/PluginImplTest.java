@@ -0,0 +1,81 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+public class PluginImplTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // {{{ compressesFromThreshold
+    @Test
+    public void compressesFromThreshold() {
+        assertCompressedFromEncodedLength(
+            new JsonObject()
+                .putString("action", "completed")
+                .putObject(
+                    "run",
+                    new JsonObject()
+                        .putNumber("number", 12)
+                        .putBoolean("building", false)
+                        .putString("result", "SUCCESS")
+                )
+        );
+    }
+    // }}}
+
+    // {{{ compressesFromThresholdWithWideChars
+    /**
+     * Multi-byte chars, escapes, nulls and empty containers encode longer
+     * than they look, but mustn't make a message skip compression.
+     */
+    @Test
+    public void compressesFromThresholdWithWideChars() {
+        assertCompressedFromEncodedLength(
+            new JsonObject()
+                .putString("fullDisplayName", "parameterized #12 ✓ \"quoted\"\n")
+                .putString("description", null)
+                .putObject("empty", new JsonObject())
+                .putArray(
+                    "actions",
+                    new JsonArray()
+                        .addArray(new JsonArray())
+                        .addObject(new JsonObject().putString("name", "ü"))
+                        .addNumber(-1346971313525L)
+                        .addBoolean(true)
+                )
+        );
+    }
+    // }}}
+
+    // {{{ disabledWithoutThreshold
+    @Test
+    public void disabledWithoutThreshold() {
+        JsonObject msg = new JsonObject().putString("action", "completed");
+
+        assertSame(msg, PluginImpl.compressIfLarge(msg, 0));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ assertCompressedFromEncodedLength
+    private void assertCompressedFromEncodedLength(final JsonObject msg) {
+        int length = msg.encode().getBytes(UTF8).length;
+
+        assertSame(msg, PluginImpl.compressIfLarge(msg, length + 1));
+
+        JsonObject envelope = PluginImpl.compressIfLarge(msg, length);
+
+        assertEquals("deflate", envelope.getString("envelope"));
+        assertEquals(length, envelope.getNumber("size").intValue());
+        assertEquals(msg.toMap(), CompressedEnvelope.open(envelope).toMap());
+    }
+    // }}}
+}
@@ -0,0 +1,200 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonObject;
+
+import jenkins.model.Jenkins;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ItemGroup;
+import hudson.model.OneOffExecutor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class ProgressSamplerTest {
+    private EventBus mockEventBus;
+    private Capture<JsonObject> sent;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        sent = new Capture<>(CaptureType.ALL);
+
+        mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+        mockEventBus.publish(eq(ProgressSampler.PROGRESS_ADDR), capture(sent));
+        EasyMock.expectLastCall().anyTimes();
+
+        replay(mockEventBus);
+    }
+    // }}}
+
+    // {{{ publishesBuildingRuns
+    @Test
+    public void publishesBuildingRuns() {
+        Executor building = mockExecutor(mockRun(12), 61000L, 50, 0);
+        Executor idle = mockExecutor(null, 0L, -1, 1);
+
+        ProgressSampler sampler = new ProgressSampler(
+            mockEventBus, mockJenkins(building, idle), null, null, 0L
+        );
+
+        sampler.publish();
+
+        List<JsonObject> messages = sent.getValues();
+        assertEquals(1, messages.size());
+
+        JsonObject msg = messages.get(0);
+        assertEquals("progress", msg.getString("action"));
+        assertEquals(1, msg.getArray("runs").size());
+
+        JsonObject run = (JsonObject) msg.getArray("runs").iterator().next();
+
+        assertEquals(
+            new HashSet<>(Arrays.asList(
+                "fullName", "number", "elapsed", "estimatedDuration",
+                "progress", "executor"
+            )),
+            run.toMap().keySet()
+        );
+
+        assertEquals(12, run.getNumber("number").intValue());
+        assertEquals(61000L, run.getNumber("elapsed").longValue());
+        assertEquals(120000L, run.getNumber("estimatedDuration").longValue());
+        assertEquals(50, run.getNumber("progress").intValue());
+        assertEquals("", run.getObject("executor").getString("node"));
+        assertEquals(0, run.getObject("executor").getNumber("number").intValue());
+    }
+    // }}}
+
+    // {{{ nothingBuildingPublishesNothing
+    @Test
+    public void nothingBuildingPublishesNothing() {
+        ProgressSampler sampler = new ProgressSampler(
+            mockEventBus, mockJenkins(mockExecutor(null, 0L, -1, 0)), null, null, 0L
+        );
+
+        sampler.publish();
+
+        assertTrue(sent.getValues().isEmpty());
+    }
+    // }}}
+
+    // {{{ noSubscribersSkipsSampling
+    /**
+     * Jenkins is a strict mock, so sampling would fail.
+     */
+    @Test
+    public void noSubscribersSkipsSampling() {
+        Jenkins mockJenkins = EasyMock.createMock("jenkins", Jenkins.class);
+
+        replay(mockJenkins);
+
+        long skipped = Metrics.get(PluginImpl.METRIC_PUBLISH_SKIPPED);
+
+        ProgressSampler sampler = new ProgressSampler(
+            mockEventBus,
+            mockJenkins,
+            new SubscriptionRegistry(mockEventBus, new FakeClock()),
+            null,
+            0L
+        );
+
+        sampler.publish();
+
+        verify(mockJenkins);
+
+        assertTrue(sent.getValues().isEmpty());
+        assertEquals(skipped + 1, Metrics.get(PluginImpl.METRIC_PUBLISH_SKIPPED));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ mockJenkins
+    private Jenkins mockJenkins(final Executor... executors) {
+        Computer computer = EasyMock.createNiceMock("computer", Computer.class);
+
+        expect(computer.getName()).andStubReturn("");
+        expect(computer.getExecutors()).andStubReturn(Arrays.asList(executors));
+        expect(computer.getOneOffExecutors())
+            .andStubReturn(Collections.<OneOffExecutor>emptyList());
+
+        Jenkins mockJenkins = EasyMock.createNiceMock("jenkins", Jenkins.class);
+
+        expect(mockJenkins.getComputers()).andStubReturn(new Computer[] { computer });
+
+        replay(computer, mockJenkins);
+
+        return mockJenkins;
+    }
+    // }}}
+
+    // {{{ mockExecutor
+    /**
+     * @param run what the executor is building; idle if null
+     */
+    private Executor mockExecutor(final AbstractBuild run,
+                                  final long elapsed,
+                                  final int progress,
+                                  final int number)
+    {
+        Executor executor = EasyMock.createNiceMock(Executor.class);
+
+        expect(executor.getCurrentExecutable()).andStubReturn(run);
+        expect(executor.getElapsedTime()).andStubReturn(elapsed);
+        expect(executor.getProgress()).andStubReturn(progress);
+        expect(executor.getNumber()).andStubReturn(number);
+
+        replay(executor);
+
+        return executor;
+    }
+    // }}}
+
+    // {{{ mockRun
+    private AbstractBuild mockRun(final int number) {
+        ItemGroup folder = EasyMock.createNiceMock(ItemGroup.class);
+
+        expect(folder.getFullName()).andStubReturn("");
+
+        replay(folder);
+
+        AbstractProject job = EasyMock.createNiceMock(AbstractProject.class);
+
+        expect(job.getParent()).andStubReturn(folder);
+
+        replay(job);
+
+        AbstractBuild run = EasyMock.createNiceMock(AbstractBuild.class);
+
+        expect(run.getParent()).andStubReturn(job);
+        expect(run.getNumber()).andStubReturn(number);
+        expect(run.getEstimatedDuration()).andStubReturn(120000L);
+
+        replay(run);
+
+        return run;
+    }
+    // }}}
+}
@@ -0,0 +1,159 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.easymock.EasyMock.capture;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+public class ProjectionRegistryTest {
+    private FakeClock clock;
+    private ProjectionRegistry registry;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        EventBus mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+
+        replay(mockEventBus);
+
+        clock = new FakeClock();
+        registry = new ProjectionRegistry(mockEventBus, clock);
+    }
+    // }}}
+
+    // {{{ registersProjection
+    @Test
+    public void registersProjection() {
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "register")
+                .putString("address", "jenkins.run")
+                .putString("name", "dashboard")
+                .putString("tree", "number,result")
+        );
+
+        assertEquals("ok", replyCap.getValue().getString("status"));
+        assertEquals(
+            "jenkins.run.dashboard",
+            replyCap.getValue().getObject("result").getString("derivedAddress")
+        );
+
+        ProjectionRegistry.Projection projection =
+            registry.forAddress("jenkins.run").iterator().next();
+
+        assertEquals("number,result", projection.getTree());
+        assertTrue(registry.forAddress("jenkins.item").isEmpty());
+    }
+    // }}}
+
+    // {{{ unregistersProjection
+    @Test
+    public void unregistersProjection() {
+        registersProjection();
+
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "unregister")
+                .putString("address", "jenkins.run")
+                .putString("name", "dashboard")
+        );
+
+        assertEquals("ok", replyCap.getValue().getString("status"));
+        assertTrue(registry.forAddress("jenkins.run").isEmpty());
+    }
+    // }}}
+
+    // {{{ rejectsUnknownAddress
+    @Test
+    public void rejectsUnknownAddress() {
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "register")
+                .putString("address", "jenkins")
+                .putString("name", "dashboard")
+                .putString("tree", "number")
+        );
+
+        assertEquals("error", replyCap.getValue().getString("status"));
+        assertEquals(
+            "projections not supported for jenkins",
+            replyCap.getValue().getString("message")
+        );
+    }
+    // }}}
+
+    // {{{ projectionLapsesWithoutRenewal
+    @Test
+    public void projectionLapsesWithoutRenewal() {
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "register")
+                .putString("address", "jenkins.run")
+                .putString("name", "dashboard")
+                .putString("tree", "number")
+                .putNumber("leaseMillis", 1000)
+        );
+
+        assertEquals(
+            1000L,
+            replyCap.getValue().getObject("result").getNumber("leaseMillis").longValue()
+        );
+
+        clock.advance(999L);
+
+        assertEquals(1, registry.forAddress("jenkins.run").size());
+
+        clock.advance(1L);
+
+        assertTrue(registry.forAddress("jenkins.run").isEmpty());
+    }
+    // }}}
+
+    // {{{ failureRepliesWithError
+    @Test
+    public void failureRepliesWithError() {
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "register")
+                .putNumber("address", 5)
+        );
+
+        assertEquals("error", replyCap.getValue().getString("status"));
+        assertTrue(
+            replyCap.getValue().getString("message").startsWith("error invoking register")
+        );
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ send
+    private Capture<JsonObject> send(final JsonObject body) {
+        Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = body;
+        msg.reply(capture(replyCap));
+
+        replay(msg);
+
+        registry.handle(msg);
+
+        verify(msg);
+
+        return replyCap;
+    }
+    // }}}
+}
@@ -0,0 +1,234 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RunEventCoalescerTest {
+    private static final long DELAY_MILLIS = 500L;
+
+    /** Delayed tasks; run by hand in place of the scheduler. */
+    private Capture<Runnable> scheduled;
+
+    /** What was published, one entry per message. */
+    private List<List<String>> published;
+    private List<Run> publishedRuns;
+
+    private RunEventCoalescer coalescer;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        scheduled = new Capture<>(CaptureType.ALL);
+        published = new ArrayList<>();
+        publishedRuns = new ArrayList<>();
+
+        ScheduledExecutorService mockScheduler =
+            EasyMock.createNiceMock("scheduler", ScheduledExecutorService.class);
+
+        expect(
+            mockScheduler.schedule(
+                capture(scheduled),
+                eq(DELAY_MILLIS),
+                eq(TimeUnit.MILLISECONDS)
+            )
+        ).andStubReturn(null);
+
+        replay(mockScheduler);
+
+        coalescer = new RunEventCoalescer(
+            mockScheduler,
+            DELAY_MILLIS,
+            new RunEventCoalescer.Publisher() {
+                public void publish(final List<String> actions, final Run r) {
+                    published.add(actions);
+                    publishedRuns.add(r);
+                }
+            }
+        );
+    }
+    // }}}
+
+    // {{{ mergesEventsWithinDelay
+    @Test
+    public void mergesEventsWithinDelay() {
+        Run run = mockRun();
+
+        coalescer.add("started", run);
+        coalescer.add("completed", run);
+        coalescer.add("finalized", run);
+
+        // held back, with a single flush scheduled
+        assertTrue(published.isEmpty());
+        assertEquals(1, scheduled.getValues().size());
+
+        scheduled.getValues().get(0).run();
+
+        assertEquals(1, published.size());
+        assertEquals(
+            Arrays.asList("started", "completed", "finalized"),
+            published.get(0)
+        );
+        assertSame(run, publishedRuns.get(0));
+    }
+    // }}}
+
+    // {{{ keepsRunsApart
+    @Test
+    public void keepsRunsApart() {
+        Run first = mockRun();
+        Run second = mockRun();
+
+        coalescer.add("started", first);
+        coalescer.add("started", second);
+        coalescer.add("completed", first);
+
+        assertEquals(2, scheduled.getValues().size());
+
+        scheduled.getValues().get(1).run();
+
+        assertEquals(1, published.size());
+        assertEquals(Arrays.asList("started"), published.get(0));
+        assertSame(second, publishedRuns.get(0));
+
+        scheduled.getValues().get(0).run();
+
+        assertEquals(Arrays.asList("started", "completed"), published.get(1));
+        assertSame(first, publishedRuns.get(1));
+    }
+    // }}}
+
+    // {{{ eventsAfterFlushStartNewWindow
+    @Test
+    public void eventsAfterFlushStartNewWindow() {
+        Run run = mockRun();
+
+        coalescer.add("started", run);
+        scheduled.getValues().get(0).run();
+
+        coalescer.add("completed", run);
+
+        assertEquals(1, published.size());
+        assertEquals(2, scheduled.getValues().size());
+
+        scheduled.getValues().get(1).run();
+
+        assertEquals(Arrays.asList("completed"), published.get(1));
+    }
+    // }}}
+
+    // {{{ flushesBeforeDelete
+    @Test
+    public void flushesBeforeDelete() {
+        Run run = mockRun();
+
+        coalescer.add("started", run);
+        coalescer.add("completed", run);
+        coalescer.publishNow("deleted", run);
+
+        assertEquals(2, published.size());
+        assertEquals(Arrays.asList("started", "completed"), published.get(0));
+        assertEquals(Arrays.asList("deleted"), published.get(1));
+
+        // the flush that was scheduled finds nothing left
+        scheduled.getValues().get(0).run();
+
+        assertEquals(2, published.size());
+    }
+    // }}}
+
+    // {{{ publishesRightAwayWithoutScheduler
+    @Test
+    public void publishesRightAwayWithoutScheduler() {
+        coalescer = new RunEventCoalescer(
+            null,
+            DELAY_MILLIS,
+            new RunEventCoalescer.Publisher() {
+                public void publish(final List<String> actions, final Run r) {
+                    published.add(actions);
+                }
+            }
+        );
+
+        Run run = mockRun();
+
+        coalescer.add("started", run);
+        coalescer.add("completed", run);
+
+        assertEquals(2, published.size());
+        assertEquals(Arrays.asList("started"), published.get(0));
+        assertEquals(Arrays.asList("completed"), published.get(1));
+    }
+    // }}}
+
+    // {{{ publishesRightAwayAfterShutdown
+    @Test
+    public void publishesRightAwayAfterShutdown() {
+        ScheduledExecutorService mockScheduler =
+            EasyMock.createNiceMock("scheduler", ScheduledExecutorService.class);
+
+        expect(
+            mockScheduler.schedule(
+                isA(Runnable.class),
+                eq(DELAY_MILLIS),
+                eq(TimeUnit.MILLISECONDS)
+            )
+        ).andStubThrow(new RejectedExecutionException("shut down"));
+
+        replay(mockScheduler);
+
+        coalescer = new RunEventCoalescer(
+            mockScheduler,
+            DELAY_MILLIS,
+            new RunEventCoalescer.Publisher() {
+                public void publish(final List<String> actions, final Run r) {
+                    published.add(actions);
+                }
+            }
+        );
+
+        Run run = mockRun();
+
+        coalescer.add("started", run);
+        coalescer.add("completed", run);
+
+        assertEquals(2, published.size());
+        assertEquals(Arrays.asList("started"), published.get(0));
+        assertEquals(Arrays.asList("completed"), published.get(1));
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ mockRun
+    private Run mockRun() {
+        Run run = EasyMock.createNiceMock(Run.class);
+
+        replay(run);
+
+        return run;
+    }
+    // }}}
+}
@@ -0,0 +1,104 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import org.kohsuke.stapler.export.TreePruner;
+
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.Result;
+import hudson.model.Run;
+
+public class RunJsonCacheTest {
+    private static final long WINDOW_MILLIS = 1000L;
+    private static final long NOW = 1348006835051L;
+
+    private final TreePruner pruner = new TreePruner.ByDepth(1);
+
+    private RunJsonCache cache;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        cache = new RunJsonCache(16, WINDOW_MILLIS);
+    }
+    // }}}
+
+    // {{{ returnsCopyWithinWindow
+    @Test
+    public void returnsCopyWithinWindow() {
+        Run run = mockRun(false, Result.SUCCESS);
+
+        cache.put(run, pruner, new JsonObject().putNumber("number", 12), NOW);
+
+        JsonObject first = cache.get(run, pruner, NOW + WINDOW_MILLIS - 1);
+        first.putString("modified", "yes");
+
+        JsonObject second = cache.get(run, pruner, NOW + WINDOW_MILLIS - 1);
+
+        assertEquals(12, second.getNumber("number").intValue());
+        assertNull(second.getString("modified"));
+    }
+    // }}}
+
+    // {{{ expiresAfterWindow
+    @Test
+    public void expiresAfterWindow() {
+        Run run = mockRun(false, Result.SUCCESS);
+
+        cache.put(run, pruner, new JsonObject(), NOW);
+
+        assertNull(cache.get(run, pruner, NOW + WINDOW_MILLIS));
+    }
+    // }}}
+
+    // {{{ stateChangeMisses
+    @Test
+    public void stateChangeMisses() {
+        Run building = mockRun(true, null);
+
+        cache.put(building, pruner, new JsonObject(), NOW);
+
+        // same Run, a moment later
+        EasyMock.reset(building);
+        expect(building.isBuilding()).andStubReturn(false);
+        expect(building.getResult()).andStubReturn(Result.FAILURE);
+        replay(building);
+
+        assertNull(cache.get(building, pruner, NOW));
+    }
+    // }}}
+
+    // {{{ prunerMisses
+    @Test
+    public void prunerMisses() {
+        Run run = mockRun(false, Result.SUCCESS);
+
+        cache.put(run, pruner, new JsonObject(), NOW);
+
+        assertNull(cache.get(run, new TreePruner.ByDepth(1), NOW));
+    }
+    // }}}
+
+    // {{{ mockRun
+    private Run mockRun(final boolean building, final Result result) {
+        Run run = EasyMock.createNiceMock(Run.class);
+
+        expect(run.isBuilding()).andStubReturn(building);
+        expect(run.getResult()).andStubReturn(result);
+
+        replay(run);
+
+        return run;
+    }
+    // }}}
+}
@@ -0,0 +1,92 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import org.vertx.java.core.json.JsonObject;
+
+import hudson.model.Action;
+
+public class SerializeUtilTest {
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        SerializeUtil.invalidateModels();
+    }
+    // }}}
+
+    // {{{ modelIsBuiltOnce
+    @Test
+    public void modelIsBuiltOnce() {
+        long misses = Metrics.get(SerializeUtil.METRIC_MODEL_MISSES);
+        long hits = Metrics.get(SerializeUtil.METRIC_MODEL_HITS);
+
+        JsonObject first = SerializeUtil.serializeToJson(new SampleAction("first"));
+        JsonObject second = SerializeUtil.serializeToJson(new SampleAction("second"));
+
+        assertEquals("first", first.getString("name"));
+        assertEquals("second", second.getString("name"));
+
+        assertEquals(misses + 1, Metrics.get(SerializeUtil.METRIC_MODEL_MISSES));
+        assertEquals(hits + 1, Metrics.get(SerializeUtil.METRIC_MODEL_HITS));
+    }
+    // }}}
+
+    // {{{ invalidateRebuildsModel
+    @Test
+    public void invalidateRebuildsModel() {
+        SerializeUtil.serializeToJson(new SampleAction("first"));
+
+        long misses = Metrics.get(SerializeUtil.METRIC_MODEL_MISSES);
+
+        SerializeUtil.invalidateModels();
+        SerializeUtil.serializeToJson(new SampleAction("second"));
+
+        assertEquals(misses + 1, Metrics.get(SerializeUtil.METRIC_MODEL_MISSES));
+    }
+    // }}}
+
+    @ExportedBean
+    public static class SampleAction implements Action {
+        private final String name;
+
+        // {{{ constructor
+        SampleAction(final String name) {
+            this.name = name;
+        }
+        // }}}
+
+        // {{{ getName
+        @Exported
+        public String getName() {
+            return name;
+        }
+        // }}}
+
+        // {{{ getIconFileName
+        /** {@inheritDoc} */
+        public String getIconFileName() {
+            return null;
+        }
+        // }}}
+
+        // {{{ getDisplayName
+        /** {@inheritDoc} */
+        public String getDisplayName() {
+            return name;
+        }
+        // }}}
+
+        // {{{ getUrlName
+        /** {@inheritDoc} */
+        public String getUrlName() {
+            return null;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,115 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import org.easymock.EasyMock;
+import org.easymock.Capture;
+
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.easymock.EasyMock.capture;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+public class SubscriptionRegistryTest {
+    private static final String ADDR = "jenkins.run";
+
+    private long now = 1348006835051L;
+
+    private SubscriptionRegistry registry;
+
+    // {{{ setUp
+    @Before
+    public void setUp() {
+        EventBus mockEventBus = EasyMock.createNiceMock("eventBus", EventBus.class);
+
+        replay(mockEventBus);
+
+        registry = new SubscriptionRegistry(mockEventBus, new Clock() {
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+    }
+    // }}}
+
+    // {{{ noSubscribersByDefault
+    @Test
+    public void noSubscribersByDefault() {
+        assertFalse(registry.hasSubscribers(ADDR));
+    }
+    // }}}
+
+    // {{{ subscriptionLapsesWithoutRenewal
+    @Test
+    public void subscriptionLapsesWithoutRenewal() {
+        Capture<JsonObject> replyCap = subscribe(1000L);
+
+        assertEquals("ok", replyCap.getValue().getString("status"));
+        assertTrue(registry.hasSubscribers(ADDR));
+
+        now += 999L;
+        subscribe(1000L);
+
+        now += 999L;
+        assertTrue(registry.hasSubscribers(ADDR));
+
+        now += 1L;
+        assertFalse(registry.hasSubscribers(ADDR));
+    }
+    // }}}
+
+    // {{{ unsubscribeRemovesSubscription
+    @Test
+    public void unsubscribeRemovesSubscription() {
+        subscribe(1000L);
+
+        Capture<JsonObject> replyCap = send(
+            new JsonObject()
+                .putString("action", "unsubscribe")
+                .putString("address", ADDR)
+                .putString("subscriberId", "dashboard")
+        );
+
+        assertEquals("ok", replyCap.getValue().getString("status"));
+        assertFalse(registry.hasSubscribers(ADDR));
+    }
+    // }}}
+
+    // {{{ subscribe
+    private Capture<JsonObject> subscribe(final long leaseMillis) {
+        return send(
+            new JsonObject()
+                .putString("action", "subscribe")
+                .putString("address", ADDR)
+                .putString("subscriberId", "dashboard")
+                .putNumber("leaseMillis", leaseMillis)
+        );
+    }
+    // }}}
+
+    // {{{ send
+    private Capture<JsonObject> send(final JsonObject body) {
+        Message<JsonObject> msg = EasyMock.createMock(Message.class);
+        Capture<JsonObject> replyCap = new Capture<>();
+
+        msg.body = body;
+        msg.reply(capture(replyCap));
+
+        replay(msg);
+
+        registry.handle(msg);
+
+        verify(msg);
+
+        return replyCap;
+    }
+    // }}}
+}
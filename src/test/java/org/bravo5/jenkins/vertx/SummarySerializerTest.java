@@ -0,0 +1,213 @@
+package org.bravo5.jenkins.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import org.easymock.EasyMock;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import org.kohsuke.stapler.export.TreePruner;
+
+import org.vertx.java.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class SummarySerializerTest {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int ITERATIONS = 1000;
+
+    // {{{ runSchema
+    /**
+     * Consumers depend on these names; changing them means a new
+     * {@link SummarySerializer#SCHEMA_VERSION}.
+     */
+    @Test
+    public void runSchema() {
+        JsonObject json = SummarySerializer.summarize(mockRun());
+
+        assertEquals(
+            keys(
+                "schema", "job", "number", "building", "result",
+                "duration", "timestamp", "causes"
+            ),
+            json.toMap().keySet()
+        );
+
+        assertEquals(1, json.getNumber("schema").intValue());
+        assertEquals(12, json.getNumber("number").intValue());
+        assertFalse(json.getBoolean("building"));
+        assertEquals("SUCCESS", json.getString("result"));
+        assertEquals(
+            SampleCause.class.getName(),
+            json.getArray("causes").iterator().next()
+        );
+    }
+    // }}}
+
+    // {{{ itemSchema
+    @Test
+    public void itemSchema() {
+        Item item = EasyMock.createNiceMock(Item.class);
+
+        expect(item.getFullName()).andStubReturn("folder/parameterized");
+        expect(item.getUrl()).andStubReturn("job/folder/job/parameterized/");
+
+        replay(item);
+
+        JsonObject json = SummarySerializer.summarize(item);
+
+        assertEquals(
+            keys("schema", "fullName", "url", "class", "buildable"),
+            json.toMap().keySet()
+        );
+
+        assertEquals(1, json.getNumber("schema").intValue());
+        assertEquals("folder/parameterized", json.getString("fullName"));
+        assertEquals("job/folder/job/parameterized/", json.getString("url"));
+        assertFalse(json.getBoolean("buildable"));
+    }
+    // }}}
+
+    // {{{ queueItemSchema
+    @Test
+    public void queueItemSchema() {
+        Queue.Task task = EasyMock.createNiceMock(Queue.Task.class);
+
+        expect(task.getName()).andStubReturn("parameterized");
+
+        replay(task);
+
+        Queue.Item queueItem = new Queue.WaitingItem(
+            Calendar.getInstance(),
+            task,
+            Collections.<Action>emptyList()
+        );
+
+        JsonObject json = SummarySerializer.summarize(queueItem);
+
+        assertEquals(
+            keys("schema", "id", "task", "blocked"),
+            json.toMap().keySet()
+        );
+
+        assertEquals(1, json.getNumber("schema").intValue());
+        assertEquals(queueItem.id, json.getNumber("id").intValue());
+        assertEquals("parameterized", json.getString("task"));
+        assertFalse(json.getBoolean("blocked"));
+    }
+    // }}}
+
+    // {{{ nullGivesNull
+    @Test
+    public void nullGivesNull() {
+        assertNull(SummarySerializer.summarize((Run) null));
+        assertNull(SummarySerializer.summarize((Item) null));
+        assertNull(SummarySerializer.summarize((Queue.Item) null));
+    }
+    // }}}
+
+    // {{{ cheaperThanSerializeUtil
+    /**
+     * The point of the summary: it should allocate less than serializing the
+     * Run via its Stapler model.  A fresh pruner makes every SerializeUtil
+     * call a cache miss, as it is the first time an event needs a Run.  Only
+     * logged, like the writer's comparison.
+     */
+    @Test
+    public void cheaperThanSerializeUtil() {
+        final Run run = mockRun();
+
+        Benchmark full = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    SerializeUtil.serializeToJson(run, new TreePruner.ByDepth(1));
+                }
+            },
+            ITERATIONS
+        );
+
+        Benchmark summary = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    SummarySerializer.summarize(run);
+                }
+            },
+            ITERATIONS
+        );
+
+        logger.info("SerializeUtil: {}; SummarySerializer: {}", full, summary);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ keys
+    private static Set<String> keys(final String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+    // }}}
+
+    // {{{ mockRun
+    private Run mockRun() {
+        ItemGroup folder = EasyMock.createNiceMock(ItemGroup.class);
+
+        expect(folder.getFullName()).andStubReturn("folder");
+
+        replay(folder);
+
+        Job job = EasyMock.createNiceMock(Job.class);
+
+        expect(job.getParent()).andStubReturn(folder);
+
+        replay(job);
+
+        Run run = EasyMock.createNiceMock(Run.class);
+
+        expect(run.getParent()).andStubReturn(job);
+        expect(run.getNumber()).andStubReturn(12);
+        expect(run.isBuilding()).andStubReturn(false);
+        expect(run.getResult()).andStubReturn(Result.SUCCESS);
+        expect(run.getCauses())
+            .andStubReturn(Collections.<Cause>singletonList(new SampleCause()));
+
+        replay(run);
+
+        return run;
+    }
+    // }}}
+
+    /**
+     * A Cause that doesn't need a running Jenkins.
+     */
+    public static class SampleCause extends Cause {
+        // {{{ getShortDescription
+        /** {@inheritDoc} */
+        @Override
+        public String getShortDescription() {
+            return "sample";
+        }
+        // }}}
+    }
+}
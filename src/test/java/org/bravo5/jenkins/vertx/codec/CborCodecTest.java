@@ -0,0 +1,189 @@
+package org.bravo5.jenkins.vertx.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.bravo5.jenkins.vertx.Benchmark;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+
+public class CborCodecTest {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ITERATIONS = 5000;
+
+    // {{{ encodesSmallMap
+    /**
+     * From the examples in RFC 7049, appendix A.
+     */
+    @Test
+    public void encodesSmallMap() {
+        JsonObject json = new JsonObject()
+            .putNumber("a", 1)
+            .putArray("b", new JsonArray().addNumber(2).addNumber(3));
+
+        assertArrayEquals(
+            new byte[] {
+                (byte) 0xa2,
+                0x61, 0x61, 0x01,
+                0x61, 0x62, (byte) 0x82, 0x02, 0x03
+            },
+            CborCodec.encode(json)
+        );
+    }
+    // }}}
+
+    // {{{ roundTrips
+    @Test
+    public void roundTrips() {
+        JsonObject json = new JsonObject()
+            .putNumber("num", 12)
+            .putNumber("timestamp", 1346971313525L)
+            .putNumber("negative", -500)
+            .putNumber("ratio", 0.25)
+            .putBoolean("building", false)
+            .putString("description", null)
+            .putString("fullDisplayName", "parameterized #12 ✓")
+            .putObject(
+                "result",
+                new JsonObject().putString("name", "SUCCESS")
+            )
+            .putArray(
+                "actions",
+                new JsonArray()
+                    .addObject(new JsonObject())
+                    .addString("loose")
+                    .addBoolean(true)
+            );
+
+        assertEquals(json.toMap(), CborCodec.decode(CborCodec.encode(json)).toMap());
+    }
+    // }}}
+
+    // {{{ smallerThanJson
+    /**
+     * The reason to choose CBOR: a Run-sized message encodes smaller than its
+     * JSON text.  Encode and decode times are logged alongside JSON's.
+     */
+    @Test
+    public void smallerThanJson() {
+        final JsonObject json = createRun();
+
+        final byte[] cbor = CborCodec.encode(json);
+        final String text = json.encode();
+        int jsonSize = text.getBytes(UTF8).length;
+
+        logger.info("CBOR: {} bytes; JSON: {} bytes", cbor.length, jsonSize);
+
+        assertTrue(cbor.length + " vs. " + jsonSize, cbor.length < jsonSize);
+
+        Benchmark cborEncode = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    CborCodec.encode(json);
+                }
+            },
+            ITERATIONS
+        );
+
+        Benchmark jsonEncode = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    json.encode().getBytes(UTF8);
+                }
+            },
+            ITERATIONS
+        );
+
+        Benchmark cborDecode = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    CborCodec.decode(cbor);
+                }
+            },
+            ITERATIONS
+        );
+
+        Benchmark jsonDecode = Benchmark.measure(
+            new Runnable() {
+                public void run() {
+                    new JsonObject(text);
+                }
+            },
+            ITERATIONS
+        );
+
+        logger.info("encode: CBOR {}; JSON {}", cborEncode, jsonEncode);
+        logger.info("decode: CBOR {}; JSON {}", cborDecode, jsonDecode);
+    }
+    // }}}
+
+    // {{{ rejectsTruncatedData
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedData() {
+        byte[] bytes = CborCodec.encode(new JsonObject().putString("key", "value"));
+        byte[] truncated = new byte[bytes.length - 2];
+
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        CborCodec.decode(truncated);
+    }
+    // }}}
+
+    // ========================================================== private stuff
+
+    // {{{ createRun
+    /**
+     * Roughly the shape of a serialized Run with a few parameters.
+     */
+    private JsonObject createRun() {
+        JsonArray parameters = new JsonArray();
+
+        for (int i = 0; i < 20; i++) {
+            parameters.addObject(
+                new JsonObject()
+                    .putString("name", "param" + i)
+                    .putString("value", "value " + i)
+            );
+        }
+
+        JsonArray artifacts = new JsonArray();
+
+        for (int i = 0; i < 50; i++) {
+            artifacts.addObject(
+                new JsonObject()
+                    .putString("fileName", "artifact" + i + ".jar")
+                    .putString("relativePath", "target/artifact" + i + ".jar")
+                    .putNumber("size", 1048576L * i)
+            );
+        }
+
+        return new JsonObject()
+            .putNumber("number", 12)
+            .putNumber("timestamp", 1346971313525L)
+            .putNumber("duration", 73542)
+            .putBoolean("building", false)
+            .putString("result", "SUCCESS")
+            .putString("id", "2012-09-06_16-41-53")
+            .putString("fullDisplayName", "parameterized #12")
+            .putArray(
+                "actions",
+                new JsonArray().addObject(
+                    new JsonObject().putArray("parameters", parameters)
+                )
+            )
+            .putArray("artifacts", artifacts);
+    }
+    // }}}
+}